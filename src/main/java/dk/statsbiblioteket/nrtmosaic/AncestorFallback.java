@@ -0,0 +1,201 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Degraded delivery of tiles that are not ready within a deadline, e.g. because the image server is slow or the
+ * tile workers are saturated. Instead of letting the viewer wait, the tile is answered with an upscaled crop of the
+ * nearest cached ancestor tile. The real tile is still produced in the background and cached, so it is delivered
+ * when the viewer requests it again.
+ * </p><p>
+ * Degraded tiles are marked with {@link EncodedTile#isDegraded()} and are never cached.
+ */
+public class AncestorFallback {
+    private static Log log = LogFactory.getLog(AncestorFallback.class);
+
+    private final long deadlineMS;
+    private final int maxLevels;
+    private final ScheduledThreadPoolExecutor timer;
+
+    private final LongAdder deadlines = new LongAdder();
+    private final LongAdder degraded = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @return a fallback created from the setup properties {@code prime.degraded.deadline.ms},
+     *         {@code prime.degraded.maxlevels} and {@code prime.degraded.threads} or null if
+     *         {@code prime.degraded.deadline.ms} is 0.
+     */
+    public static AncestorFallback create() {
+        final long deadlineMS = Config.getLong("prime.degraded.deadline.ms");
+        return deadlineMS <= 0 ? null : new AncestorFallback(
+                deadlineMS, Config.getInt("prime.degraded.maxlevels"), Config.getInt("prime.degraded.threads"));
+    }
+
+    /**
+     * @param deadlineMS the time to wait for the real tile before delivering a degraded tile.
+     * @param maxLevels  the maximum number of levels to go up when looking for a cached ancestor.
+     * @param threads    the number of threads for creating degraded tiles.
+     */
+    public AncestorFallback(long deadlineMS, int maxLevels, int threads) {
+        this.deadlineMS = deadlineMS;
+        this.maxLevels = maxLevels;
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        timer = new ScheduledThreadPoolExecutor(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "AncestorFallback-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        log.info("Created " + this);
+    }
+
+    /**
+     * If the tile is not ready within the deadline, the returned future is completed with a degraded tile derived
+     * from a cached ancestor, if possible. The tile future is not affected and will complete in the background.
+     * Cancelling the returned future cancels the tile future.
+     * @param tile    the future for the real tile.
+     * @param snippet the requested tile.
+     * @param cached  delivers the cached version of the given tile or null if it is not cached. This is called on
+     *                the shared deadline threads, so it must only look in caches and never fetch or map tiles.
+     * @return a future with the real tile or a degraded tile.
+     */
+    public CompletableFuture<EncodedTile> withDeadline(CompletableFuture<EncodedTile> tile, DeepZoomSnippet snippet,
+                                                       Function<DeepZoomSnippet, EncodedTile> cached) {
+        if (tile.isDone()) {
+            return tile;
+        }
+        final CompletableFuture<EncodedTile> result = new CompletableFuture<>();
+        final ScheduledFuture<?> deadline = timer.schedule(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            deadlines.increment();
+            final EncodedTile fallback = fromAncestor(snippet, cached);
+            if (fallback != null && result.complete(fallback)) {
+                degraded.increment();
+            }
+        }, deadlineMS, TimeUnit.MILLISECONDS);
+        result.whenComplete((encoded, error) -> {
+            if (result.isCancelled()) {
+                tile.cancel(false);
+            }
+        });
+        tile.whenComplete((encoded, error) -> {
+            deadline.cancel(false);
+            if (error == null) {
+                result.complete(encoded);
+            } else {
+                result.completeExceptionally(error);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Derive a degraded tile from the nearest cached ancestor of the given tile.
+     * @param snippet the requested tile.
+     * @param cached  delivers the cached version of the given tile or null if it is not cached. Must only look in
+     *                caches, see {@link #withDeadline}.
+     * @return a degraded tile or null if no ancestor was cached.
+     */
+    public EncodedTile fromAncestor(DeepZoomSnippet snippet, Function<DeepZoomSnippet, EncodedTile> cached) {
+        for (int up = 1 ; up <= maxLevels && up <= snippet.getLevel() ; up++) {
+            final DeepZoomSnippet ancestorSnippet = DeepZoomSnippet.of(
+                    snippet.getPre(), snippet.getLevel()-up, snippet.getFX() >> up, snippet.getFY() >> up,
+                    snippet.getPost(), snippet.getID());
+            try {
+                final EncodedTile ancestor = cached.apply(ancestorSnippet);
+                if (ancestor == null) {
+                    continue;
+                }
+                final BufferedImage image = ImageIO.read(new ByteArrayInputStream(ancestor.getBytes()));
+                final BufferedImage crop = image == null ? null :
+                        cropAndScale(image, up, snippet.getFX(), snippet.getFY(), Util.EDGE);
+                if (crop != null) {
+                    return EncodedTile.degraded(EncodedTile.encode(crop));
+                }
+            } catch (IOException | RuntimeException e) {
+                log.debug("Unable to derive degraded tile for " + snippet + " from " + ancestorSnippet, e);
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Crops the part of the ancestor tile that corresponds to the descendant tile and scales it up.
+     * @param ancestor the ancestor tile.
+     * @param up       the number of levels between the ancestor and the descendant.
+     * @param fx       horizontal tile coordinate of the descendant.
+     * @param fy       vertical tile coordinate of the descendant.
+     * @param edge     the edge of full tiles.
+     * @return the upscaled crop or null if the ancestor does not cover the descendant.
+     */
+    static BufferedImage cropAndScale(BufferedImage ancestor, int up, long fx, long fy, int edge) {
+        final int cropEdge = edge >> up;
+        if (cropEdge == 0) {
+            return null;
+        }
+        final int mask = (1 << up) - 1;
+        final int x = (int) (fx & mask) * cropEdge;
+        final int y = (int) (fy & mask) * cropEdge;
+        // Tiles at the right and bottom edges of images are smaller than edge
+        final int width = Math.min(cropEdge, ancestor.getWidth() - x);
+        final int height = Math.min(cropEdge, ancestor.getHeight() - y);
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        final int type = ancestor.getType() == BufferedImage.TYPE_BYTE_GRAY ?
+                BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+        final BufferedImage crop = new BufferedImage(width, height, type);
+        Graphics g = crop.getGraphics();
+        g.drawImage(ancestor.getSubimage(x, y, width, height), 0, 0, null);
+        g.dispose();
+        return Util.scale(crop, width << up, height << up);
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    public String getStats() {
+        return String.format(Locale.ENGLISH, "AncestorFallback(deadlineMS=%d, deadlines=%d, degraded=%d, misses=%d)",
+                             deadlineMS, deadlines.sum(), degraded.sum(), misses.sum());
+    }
+
+    @Override
+    public String toString() {
+        return "AncestorFallback(deadlineMS=" + deadlineMS + ", maxLevels=" + maxLevels + ", threads=" +
+               timer.getCorePoolSize() + ")";
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Signals that the result of a piece of work is no longer wanted, typically because the client disconnected.
+ * The cancellation for the current thread is available from {@link #current()} and long running steps, such as
+ * upstream fetches, mapping and rendering, call {@link #checkpoint()} before starting, so that abandoned work stops
+ * at the next step.
+ * </p><p>
+ * Work shared between multiple requests, such as the jobs in {@link SingleFlight}, uses an {@link Interest}, which is
+ * only cancelled when all requests sharing the work have been cancelled.
+ */
+public class Cancellation {
+    /**
+     * Used when there is no request that can be cancelled, e.g. for prefetching and warm start.
+     */
+    public static final Cancellation NONE = new Cancellation(false);
+
+    private static final ThreadLocal<Cancellation> CURRENT = ThreadLocal.withInitial(() -> NONE);
+
+    private final boolean cancellable;
+    private final List<Runnable> listeners = new ArrayList<>();
+    private volatile boolean cancelled = false;
+
+    public Cancellation() {
+        this(true);
+    }
+
+    private Cancellation(boolean cancellable) {
+        this.cancellable = cancellable;
+    }
+
+    /**
+     * @return the cancellation for the work performed by the current thread. Never null.
+     */
+    public static Cancellation current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Perform the job with the given cancellation as {@link #current()}.
+     * @param cancellation the cancellation for the job.
+     * @param job          the job to perform.
+     * @return the result of the job.
+     */
+    public static <V> V call(Cancellation cancellation, Callable<V> job) throws Exception {
+        final Cancellation previous = CURRENT.get();
+        CURRENT.set(cancellation);
+        try {
+            return job.call();
+        } finally {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * @throws CancellationException if the work for the current thread has been cancelled.
+     */
+    public static void checkpoint() {
+        if (current().isCancelled()) {
+            throw new CancellationException("The result is no longer wanted");
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Cancel the work and notify listeners. Subsequent calls have no effect.
+     */
+    public void cancel() {
+        if (!cancellable) {
+            throw new IllegalStateException("Cancellation.NONE cannot be cancelled");
+        }
+        final List<Runnable> notify;
+        synchronized (listeners) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            notify = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        notify.forEach(Runnable::run);
+    }
+
+    /**
+     * @param listener called when the work is cancelled. Called immediately if the work is already cancelled.
+     */
+    public void onCancel(Runnable listener) {
+        if (!cancellable) {
+            return;
+        }
+        synchronized (listeners) {
+            if (!cancelled) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Reference counted interest in shared work. The cancellation for the shared work is only cancelled when all
+     * members have left, either explicitly or because their own cancellation was cancelled.
+     */
+    public static final class Interest {
+        private final Cancellation shared = new Cancellation();
+        private int members = 0;
+        private boolean abandoned = false;
+
+        /**
+         * @return the cancellation for the shared work.
+         */
+        public Cancellation getCancellation() {
+            return shared;
+        }
+
+        /**
+         * Register interest in the shared work. The member leaves automatically if its cancellation is cancelled.
+         * @param member the cancellation for the member.
+         * @return a callback for leaving or null if the shared work has already been cancelled.
+         */
+        public Runnable join(Cancellation member) {
+            synchronized (this) {
+                if (abandoned) {
+                    return null;
+                }
+                members++;
+            }
+            final AtomicBoolean left = new AtomicBoolean(false);
+            final Runnable leave = () -> {
+                if (left.compareAndSet(false, true)) {
+                    leave();
+                }
+            };
+            member.onCancel(leave);
+            return leave;
+        }
+
+        private void leave() {
+            synchronized (this) {
+                if (--members > 0) {
+                    return;
+                }
+                abandoned = true;
+            }
+            shared.cancel();
+        }
+    }
+}
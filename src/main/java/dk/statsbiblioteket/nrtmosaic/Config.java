@@ -114,7 +114,7 @@ public class Config {
         conf.put("tile.fill.grey", 0xEE);
         conf.put("tile.debuggrey", 0x99);
         conf.put("tile.edge", 256);
-        conf.put("tile.cachesize", 100);*/
+        conf.put("tile.cache.mb", 32);*/
     }
     public static final PyramidGrey23 imhotep = new PyramidGrey23(Config.getInt("pyramid.maxlevel"));
     public static Integer getInt(String key) {
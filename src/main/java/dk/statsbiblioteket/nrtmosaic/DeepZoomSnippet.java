@@ -0,0 +1,178 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+/**
+ * A parsed DeepZoom tile request, such as
+ * {@code /avis-show/symlinks/9/c/0/5/9c05d958-b616-47c1-9e4f-63ec2dd9429e.jp2_files/10/2_1.jpg}, which consists of
+ * {@code pre/level/fx_fy post}. The UUID of the image is extracted once and carried along with the snippet.
+ * </p><p>
+ * Parsing is done by hand instead of using regular expressions, as it happens for every tile request.
+ * The result is the same as matching {@code (.*)/([0-9]+)/([0-9]+)_([0-9]+)(.*)}.
+ */
+public final class DeepZoomSnippet {
+    private static final int MAX_LEVEL_DIGITS = 9;
+    private static final int MAX_COORDINATE_DIGITS = 18;
+
+    private final String snippet;
+    private final int preEnd;
+    private final int level;
+    private final long fx;
+    private final long fy;
+    private final int postStart;
+    private final UUID id;
+
+    /**
+     * @param snippet a DeepZoom tile request.
+     * @return the parsed snippet.
+     * @throws IllegalArgumentException if the snippet could not be parsed.
+     */
+    public static DeepZoomSnippet parse(String snippet) {
+        DeepZoomSnippet parsed = find(snippet);
+        if (parsed == null) {
+            throw new IllegalArgumentException("The deepzoom request '" + snippet + "' could not be parsed");
+        }
+        return parsed;
+    }
+
+    /**
+     * Same as {@link #parse(String)}, but returns null if the snippet could not be parsed.
+     */
+    public static DeepZoomSnippet find(String snippet) {
+        // The rightmost match wins, as (.*) is greedy
+        for (int slash = snippet.lastIndexOf('/') ; slash >= 0 ; slash = snippet.lastIndexOf('/', slash-1)) {
+            DeepZoomSnippet parsed = parseAt(snippet, slash);
+            if (parsed != null) {
+                return parsed;
+            }
+        }
+        return null;
+    }
+
+    // Attempts to match /level/fx_fy at the given position
+    private static DeepZoomSnippet parseAt(String snippet, int slash) {
+        final int levelStart = slash+1;
+        final int levelEnd = digitsEnd(snippet, levelStart, MAX_LEVEL_DIGITS);
+        if (levelEnd == -1 || levelEnd >= snippet.length() || snippet.charAt(levelEnd) != '/') {
+            return null;
+        }
+        final int fxStart = levelEnd+1;
+        final int fxEnd = digitsEnd(snippet, fxStart, MAX_COORDINATE_DIGITS);
+        if (fxEnd == -1 || fxEnd >= snippet.length() || snippet.charAt(fxEnd) != '_') {
+            return null;
+        }
+        final int fyStart = fxEnd+1;
+        final int fyEnd = digitsEnd(snippet, fyStart, MAX_COORDINATE_DIGITS);
+        if (fyEnd == -1) {
+            return null;
+        }
+        return new DeepZoomSnippet(snippet, slash, (int) parseDigits(snippet, levelStart, levelEnd),
+                                   parseDigits(snippet, fxStart, fxEnd), parseDigits(snippet, fyStart, fyEnd),
+                                   fyEnd, UUID.find(snippet));
+    }
+
+    // Returns the end of the run of at least 1 digit or -1 if there are no digits or too many digits
+    private static int digitsEnd(String snippet, int start, int maxDigits) {
+        int end = start;
+        while (end < snippet.length() && snippet.charAt(end) >= '0' && snippet.charAt(end) <= '9') {
+            end++;
+        }
+        return end == start || end-start > maxDigits ? -1 : end;
+    }
+
+    private static long parseDigits(String snippet, int start, int end) {
+        long value = 0;
+        for (int i = start ; i < end ; i++) {
+            value = value*10 + (snippet.charAt(i) - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Create a snippet from known parts, without parsing.
+     * @param pre   the path to the image, such as {@code /avis-show/symlinks/.../9c05d958-....jp2_files}.
+     * @param level the DeepZoom level.
+     * @param fx    horizontal tile coordinate.
+     * @param fy    vertical tile coordinate.
+     * @param post  the suffix, such as {@code .jpg}.
+     * @param id    the ID of the image, null if unknown.
+     */
+    public static DeepZoomSnippet of(String pre, int level, long fx, long fy, String post, UUID id) {
+        final String snippet = new StringBuilder(pre.length() + post.length() + 24).
+                append(pre).append('/').append(level).append('/').append(fx).append('_').append(fy).append(post).
+                toString();
+        return new DeepZoomSnippet(snippet, pre.length(), level, fx, fy, snippet.length()-post.length(), id);
+    }
+
+    private DeepZoomSnippet(String snippet, int preEnd, int level, long fx, long fy, int postStart, UUID id) {
+        this.snippet = snippet;
+        this.preEnd = preEnd;
+        this.level = level;
+        this.fx = fx;
+        this.fy = fy;
+        this.postStart = postStart;
+        this.id = id;
+    }
+
+    /**
+     * @return the path to the image, before {@code /level/fx_fy}.
+     */
+    public String getPre() {
+        return snippet.substring(0, preEnd);
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public long getFX() {
+        return fx;
+    }
+
+    public long getFY() {
+        return fy;
+    }
+
+    /**
+     * @return the suffix after {@code /level/fx_fy}, typically {@code .jpg} or the empty String.
+     */
+    public String getPost() {
+        return snippet.substring(postStart);
+    }
+
+    /**
+     * @return the ID of the image or null if no ID could be extracted from the snippet.
+     */
+    public UUID getID() {
+        return id;
+    }
+
+    /**
+     * @return the snippet in normalised form, without leading zeroes in level and coordinates.
+     */
+    public String toNormalised() {
+        return new StringBuilder(snippet.length()).
+                append(snippet, 0, preEnd).append('/').append(level).append('/').append(fx).append('_').append(fy).
+                append(snippet, postStart, snippet.length()).toString();
+    }
+
+    /**
+     * @return the snippet as given.
+     */
+    @Override
+    public String toString() {
+        return snippet;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A tile encoded as an image file (JPEG), ready for delivery. The bytes are either held in memory or located in a
+ * segment file from {@link EncodedTileCache}.
+ */
+public abstract class EncodedTile {
+    public static final String FORMAT = "jpg";
+    public static final String MIME = "image/jpeg";
+
+    /**
+     * @return the number of bytes in the encoded tile.
+     */
+    public abstract long size();
+
+    /**
+     * Write the encoded tile to the given stream. This must be called at most once for tiles from disk.
+     * @param out the destination for the bytes.
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * @return the encoded tile as a byte array.
+     */
+    public abstract byte[] getBytes() throws IOException;
+
+    /**
+     * Tiles from the disk tier of {@link EncodedTileCache} hold a reference to their segment until they are written
+     * or read. Tiles handed to another thread, which might never use them, e.g. because the request is cancelled,
+     * must be converted with this method first, so that the reference is released.
+     * @return a version of the tile with the bytes held in memory. This can be the tile itself.
+     */
+    public EncodedTile inMemory() throws IOException {
+        return this;
+    }
+
+    /**
+     * @return true if the tile is a temporary stand-in for the real tile, see {@link AncestorFallback}.
+     *         Degraded tiles must not be cached.
+     */
+    public boolean isDegraded() {
+        return false;
+    }
+
+    /**
+     * @return false if the tile must not be cached, e.g. because it is a blank stand-in for a tile that could not be
+     *         fetched because of a transient upstream problem, see {@link TransientFallback}, or because it is
+     *         {@link #isDegraded()}.
+     */
+    public boolean isCacheable() {
+        return !isDegraded();
+    }
+
+    /**
+     * Encode the image using the same image writer that would otherwise be used by the web service.
+     * @param image the image to encode.
+     * @return the encoded image.
+     */
+    public static EncodedTile encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32*1024);
+        if (!ImageIO.write(image, FORMAT, out)) {
+            throw new IOException("No ImageIO writer for format " + FORMAT);
+        }
+        return of(out.toByteArray());
+    }
+
+    /**
+     * @param bytes an encoded image.
+     * @return true if the bytes start with the JPEG Start Of Image marker.
+     */
+    public static boolean isJPEG(byte[] bytes) {
+        return bytes.length >= 2 && (0xFF & bytes[0]) == 0xFF && (0xFF & bytes[1]) == 0xD8;
+    }
+
+    public static EncodedTile of(final byte[] bytes) {
+        return new EncodedTile() {
+            @Override
+            public long size() {
+                return bytes.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(bytes);
+            }
+
+            @Override
+            public byte[] getBytes() {
+                return bytes;
+            }
+        };
+    }
+
+    /**
+     * @param tile a stand-in for the real tile.
+     * @return the tile marked as degraded.
+     */
+    public static EncodedTile degraded(final EncodedTile tile) {
+        return marked(tile, true);
+    }
+
+    /**
+     * @param tile a tile derived from a stand-in because of a transient upstream problem.
+     * @return the tile marked as not cacheable.
+     */
+    public static EncodedTile uncacheable(final EncodedTile tile) {
+        return marked(tile, false);
+    }
+
+    private static EncodedTile marked(final EncodedTile tile, final boolean degraded) {
+        return new EncodedTile() {
+            @Override
+            public long size() {
+                return tile.size();
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                tile.writeTo(out);
+            }
+
+            @Override
+            public byte[] getBytes() throws IOException {
+                return tile.getBytes();
+            }
+
+            @Override
+            public EncodedTile inMemory() throws IOException {
+                final EncodedTile inMemory = tile.inMemory();
+                return inMemory == tile ? this : marked(inMemory, degraded);
+            }
+
+            @Override
+            public boolean isDegraded() {
+                return degraded;
+            }
+
+            @Override
+            public boolean isCacheable() {
+                return false;
+            }
+        };
+    }
+}
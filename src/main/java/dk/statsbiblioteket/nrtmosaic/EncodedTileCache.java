@@ -0,0 +1,464 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Two tier cache for {@link EncodedTile}s: A byte-budgeted {@link WeightedCache} on the heap, backed by
+ * append-only segment files on disk. Disk entries are promoted to the heap when requested, so hot tiles are read
+ * from disk once after a restart or an eviction from the heap. Entries too large for the heap are copied from the
+ * segment to the output stream through a buffer for each request.
+ * </p><p>
+ * Segment layout:
+ * <pre>
+ * Header (16 bytes): [magic][version][corpus signature]
+ * Record:            [key length][data length][key (UTF-8)][data]
+ * </pre>
+ * The index of the disk tier is re-build by scanning the segments on startup. Segments created for another
+ * corpus are discarded. When the disk tier exceeds its budget, the oldest segment is deleted.
+ */
+public class EncodedTileCache {
+    private static Log log = LogFactory.getLog(EncodedTileCache.class);
+
+    private static final int MAGIC = 0x454E4354; // ENCT
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final Pattern SEGMENT = Pattern.compile("segment_([0-9]+)[.]dat");
+
+    private final String designation;
+    private final long signature;
+    private final WeightedCache<String, byte[]> memory;
+
+    private final Path folder;
+    private final long diskMax;
+    private final long segmentMax;
+    private final ConcurrentHashMap<String, Location> diskIndex = new ConcurrentHashMap<>();
+    private final Deque<Segment> segments = new ArrayDeque<>(); // Oldest first. Guarded by this
+    private long diskBytes = 0; // Guarded by this
+
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder diskEvictions = new LongAdder();
+
+    /**
+     * Creates a cache from the setup, using the properties {@code <prefix>.mb}, {@code <prefix>.disk.folder},
+     * {@code <prefix>.disk.mb} and {@code <prefix>.disk.segment.mb}.
+     * @param designation name of the cache, used for statistics.
+     * @param prefix      the prefix for the properties.
+     * @param signature   the signature for the corpus. Disk entries with other signatures are discarded.
+     */
+    public static EncodedTileCache create(String designation, String prefix, long signature) {
+        final String folder = Config.getString(prefix + ".disk.folder");
+        return new EncodedTileCache(designation, Config.getInt(prefix + ".mb")*1024L*1024,
+                                    folder == null || folder.isEmpty() ? null : Paths.get(folder),
+                                    Config.getInt(prefix + ".disk.mb")*1024L*1024,
+                                    Config.getInt(prefix + ".disk.segment.mb")*1024L*1024, signature);
+    }
+
+    /**
+     * @param designation name of the cache, used for statistics.
+     * @param memoryMax   the maximum number of bytes to use on the heap.
+     * @param folder      where to store the segments. If null, there is no disk tier.
+     * @param diskMax     the maximum number of bytes to use on disk.
+     * @param segmentMax  the maximum size of a single segment.
+     * @param signature   the signature for the corpus. Disk entries with other signatures are discarded.
+     */
+    public EncodedTileCache(String designation, long memoryMax, Path folder, long diskMax, long segmentMax,
+                            long signature) {
+        this.designation = designation;
+        this.signature = signature;
+        this.memory = new WeightedCache<>(designation + ".memory", memoryMax, 20*1024,
+                                          (key, bytes) -> weigh(key, bytes.length));
+        this.diskMax = diskMax;
+        this.segmentMax = segmentMax;
+        Path diskFolder = folder;
+        if (folder != null && diskMax > 0) {
+            try {
+                openSegments(folder);
+            } catch (IOException e) {
+                log.warn("Unable to open disk cache at " + folder + " for " + designation + ". Disk tier disabled", e);
+                diskFolder = null;
+            }
+        } else {
+            diskFolder = null;
+        }
+        this.folder = diskFolder;
+        log.info("Created " + this);
+    }
+
+    /**
+     * @param key the key for the tile.
+     * @return the tile or null if not present in any tier.
+     */
+    public EncodedTile get(String key) {
+        byte[] bytes = memory.get(key);
+        if (bytes != null) {
+            return EncodedTile.of(bytes);
+        }
+        Location location = diskIndex.get(key);
+        if (location != null && location.segment.acquire()) {
+            diskHits.increment();
+            final DiskTile tile = new DiskTile(location);
+            if (!memory.canHold(weigh(key, location.length))) {
+                return tile;
+            }
+            try {
+                bytes = tile.getBytes();
+            } catch (IOException e) {
+                log.warn("Unable to read tile '" + key + "' from disk cache " + folder, e);
+                misses.increment();
+                return null;
+            }
+            memory.put(key, bytes);
+            return EncodedTile.of(bytes);
+        }
+        misses.increment();
+        return null;
+    }
+
+    private static long weigh(String key, long length) {
+        return length + key.length()*2L + 64;
+    }
+
+    /**
+     * Ensure that the tile for the key is in the memory tier, loading it from the disk tier if needed.
+     * @param key the key for the tile.
+     * @return true if the tile is in the memory tier after the call.
+     */
+    public boolean warm(String key) throws IOException {
+        if (memory.containsKey(key)) {
+            return true;
+        }
+        Location location = diskIndex.get(key);
+        if (location == null || !location.segment.acquire()) {
+            return false;
+        }
+        memory.put(key, new DiskTile(location).getBytes());
+        return true;
+    }
+
+    /**
+     * Add the tile to the memory tier and the disk tier.
+     * @param key   the key for the tile.
+     * @param bytes the encoded tile.
+     */
+    public void put(String key, byte[] bytes) {
+        memory.put(key, bytes);
+        if (folder != null && !diskIndex.containsKey(key)) {
+            try {
+                putDisk(key, bytes);
+            } catch (IOException e) {
+                log.warn("Unable to store tile '" + key + "' in disk cache " + folder, e);
+            }
+        }
+    }
+
+    private synchronized void putDisk(String key, byte[] bytes) throws IOException {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final int recordSize = RECORD_HEADER_SIZE + keyBytes.length + bytes.length;
+        if (HEADER_SIZE + recordSize > segmentMax || diskIndex.containsKey(key)) {
+            return;
+        }
+        Segment active = segments.peekLast();
+        if (active == null || active.size + recordSize > segmentMax) {
+            active = createSegment(active == null ? 0 : active.id+1);
+        }
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putInt(keyBytes.length).putInt(bytes.length).put(keyBytes).put(bytes);
+        record.flip();
+        long position = active.size;
+        while (record.hasRemaining()) {
+            position += active.channel.write(record, position);
+        }
+        diskIndex.put(key, new Location(active, active.size + RECORD_HEADER_SIZE + keyBytes.length, bytes.length));
+        active.size += recordSize;
+        diskBytes += recordSize;
+        while (diskBytes > diskMax && segments.size() > 1) {
+            evictOldest();
+        }
+    }
+
+    // Must be called under synchronization
+    private Segment createSegment(long id) throws IOException {
+        Segment segment = new Segment(id, getSegmentFile(folder, id));
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(signature);
+        header.flip();
+        while (header.hasRemaining()) {
+            segment.channel.write(header, header.position());
+        }
+        segment.size = HEADER_SIZE;
+        diskBytes += HEADER_SIZE;
+        segments.addLast(segment);
+        return segment;
+    }
+
+    // Must be called under synchronization
+    private void evictOldest() {
+        Segment oldest = segments.removeFirst();
+        diskIndex.values().removeIf(location -> location.segment == oldest);
+        diskBytes -= oldest.size;
+        diskEvictions.increment();
+        log.debug("Evicting segment " + oldest.file + " from " + designation);
+        oldest.release();
+    }
+
+    private void openSegments(Path folder) throws IOException {
+        if (!Files.exists(folder)) {
+            Files.createDirectories(folder);
+        }
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file: files) {
+                Matcher matcher = SEGMENT.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    ids.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        ids.sort(Long::compare);
+        final long startTime = System.nanoTime();
+        for (long id: ids) {
+            Segment segment = new Segment(id, getSegmentFile(folder, id));
+            if (!scan(segment)) {
+                log.info("Discarding segment " + segment.file + " as it is not compatible with the current corpus");
+                segment.release();
+                continue;
+            }
+            segments.addLast(segment);
+            diskBytes += segment.size;
+        }
+        while (diskBytes > diskMax && segments.size() > 1) {
+            evictOldest();
+        }
+        log.info("Opened " + segments.size() + " segments with " + diskIndex.size() + " tiles for " + designation +
+                 " in " + (System.nanoTime()-startTime)/1000000 + "ms");
+    }
+
+    // Re-builds the index for the segment. Returns false if the segment is incompatible
+    private boolean scan(Segment segment) throws IOException {
+        final long fileSize = segment.channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (fileSize < HEADER_SIZE || read(segment.channel, header, 0) < HEADER_SIZE ||
+            header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getLong(8) != signature) {
+            return false;
+        }
+        long position = HEADER_SIZE;
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position + RECORD_HEADER_SIZE <= fileSize) {
+            recordHeader.clear();
+            read(segment.channel, recordHeader, position);
+            final int keyLength = recordHeader.getInt(0);
+            final int dataLength = recordHeader.getInt(4);
+            if (keyLength <= 0 || dataLength < 0 ||
+                position + RECORD_HEADER_SIZE + keyLength + dataLength > fileSize) {
+                break;
+            }
+            ByteBuffer key = ByteBuffer.allocate(keyLength);
+            read(segment.channel, key, position + RECORD_HEADER_SIZE);
+            diskIndex.put(new String(key.array(), StandardCharsets.UTF_8),
+                          new Location(segment, position + RECORD_HEADER_SIZE + keyLength, dataLength));
+            position += RECORD_HEADER_SIZE + keyLength + dataLength;
+        }
+        if (position < fileSize) { // Partial write, probably from a crash
+            log.info("Truncating segment " + segment.file + " from " + fileSize + " to " + position + " bytes");
+            segment.channel.truncate(position);
+        }
+        segment.size = position;
+        return true;
+    }
+
+    private static int read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static Path getSegmentFile(Path folder, long id) {
+        return folder.resolve("segment_" + id + ".dat");
+    }
+
+    /**
+     * @return the number of tiles in the memory tier plus the number of tiles in the disk tier.
+     */
+    public int size() {
+        return memory.size() + diskIndex.size();
+    }
+
+    /**
+     * @return the keys for the memory tier, ordered by estimated popularity.
+     */
+    public List<String> getHottestKeys(int max) {
+        return memory.getHottestKeys(max);
+    }
+
+    public String getStats() {
+        synchronized (this) {
+            return memory.getStats() + "\n" + String.format(
+                    Locale.ENGLISH, "%s.disk(folder=%s, entries=%d, segments=%d, bytes=%,d/%,d, hits=%d, " +
+                                    "misses=%d, segmentEvictions=%d)",
+                    designation, folder, diskIndex.size(), segments.size(), diskBytes, diskMax, diskHits.sum(),
+                    misses.sum(), diskEvictions.sum());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EncodedTileCache(" + designation + ", memory=" + memory.getMaxWeight()/1024/1024 + "MB, folder=" +
+               folder + ", disk=" + diskMax/1024/1024 + "MB, diskEntries=" + diskIndex.size() + ")";
+    }
+
+    private static final class Location {
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+
+        public Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    // The channel is closed and the file deleted when the segment has been evicted and no readers are active
+    private static final class Segment {
+        private final long id;
+        private final Path file;
+        private final FileChannel channel;
+        private final AtomicInteger references = new AtomicInteger(1); // The cache itself holds a reference
+        private long size = 0;
+
+        public Segment(long id, Path file) throws IOException {
+            this.id = id;
+            this.file = file;
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                       StandardOpenOption.WRITE);
+        }
+
+        public boolean acquire() {
+            while (true) {
+                final int current = references.get();
+                if (current == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(current, current+1)) {
+                    return true;
+                }
+            }
+        }
+
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    log.warn("Unable to delete evicted segment " + file, e);
+                }
+            }
+        }
+    }
+
+    private static final class DiskTile extends EncodedTile {
+        private final Location location;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        public DiskTile(Location location) {
+            this.location = location;
+        }
+
+        @Override
+        public long size() {
+            return location.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try {
+                WritableByteChannel target = Channels.newChannel(out);
+                long position = location.offset;
+                long remaining = location.length;
+                while (remaining > 0) {
+                    long transferred = location.segment.channel.transferTo(position, remaining, target);
+                    if (transferred <= 0) {
+                        throw new IOException("Unable to transfer tile from " + location.segment.file);
+                    }
+                    position += transferred;
+                    remaining -= transferred;
+                }
+                out.flush();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public byte[] getBytes() throws IOException {
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(location.length);
+                if (read(location.segment.channel, buffer, location.offset) < location.length) {
+                    throw new IOException("Unable to read tile from " + location.segment.file);
+                }
+                return buffer.array();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public EncodedTile inMemory() throws IOException {
+            return EncodedTile.of(getBytes());
+        }
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                location.segment.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Dimensions and DZI properties for corpus images. The dimensions stored in the pyramids are derived from the basic
+ * level and are too imprecise for DZI, so the exact values are taken from the DZI delivered by the image server the
+ * first time an image is requested. Subsequent DZI and random image requests are answered locally.
+ * </p><p>
+ * The metadata is a property of the image itself and does not depend on the pyramid corpus. It is persisted as
+ * tab-separated lines that are appended when new images are encountered, so that the store survives restarts.
+ */
+public class ImageMetadataStore {
+    private static Log log = LogFactory.getLog(ImageMetadataStore.class);
+
+    private static final String HEADER = "# nrtmosaic image metadata: id, width, height, tilesize, overlap, format";
+
+    private final Path file;
+    private final Map<UUID, Metadata> metadata = new ConcurrentHashMap<>();
+    private BufferedWriter out = null;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @return a store persisted to {@code metadata.file} or a memory-only store if the property is empty.
+     */
+    public static ImageMetadataStore create() {
+        final String file = Config.getString("metadata.file");
+        return new ImageMetadataStore(file == null || file.isEmpty() ? null : Paths.get(file));
+    }
+
+    /**
+     * @param file where to persist the metadata. If null, metadata is only held in memory.
+     */
+    public ImageMetadataStore(Path file) {
+        this.file = file;
+        if (file != null) {
+            load();
+        }
+        log.info("Created " + this);
+    }
+
+    private void load() {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] tokens = line.split("\t");
+                try {
+                    metadata.put(new UUID(Long.parseUnsignedLong(tokens[0].substring(0, 16), 16),
+                                          Long.parseUnsignedLong(tokens[0].substring(16, 32), 16)), new Metadata(
+                            Long.parseLong(tokens[1]), Long.parseLong(tokens[2]), Integer.parseInt(tokens[3]),
+                            Integer.parseInt(tokens[4]), tokens[5]));
+                } catch (RuntimeException e) {
+                    log.warn("Skipping malformed line '" + line + "' in " + file);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Unable to load image metadata from " + file + ". Metadata will be fetched again", e);
+        }
+    }
+
+    /**
+     * @param id the ID of a corpus image.
+     * @return the metadata for the image or null if it is not known.
+     */
+    public Metadata get(UUID id) {
+        final Metadata entry = metadata.get(id);
+        (entry == null ? misses : hits).increment();
+        return entry;
+    }
+
+    /**
+     * Add the metadata for the image and persist it if it was not already known.
+     * @param id    the ID of a corpus image.
+     * @param entry the metadata for the image.
+     */
+    public void put(UUID id, Metadata entry) {
+        if (metadata.putIfAbsent(id, entry) == null && file != null) {
+            persist(id, entry);
+        }
+    }
+
+    private synchronized void persist(UUID id, Metadata entry) {
+        try {
+            if (out == null) {
+                final boolean fresh = !Files.exists(file);
+                if (file.getParent() != null) {
+                    Files.createDirectories(file.getParent());
+                }
+                out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                                              StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                if (fresh) {
+                    out.write(HEADER);
+                    out.newLine();
+                }
+            }
+            out.write(id.toHex() + "\t" + entry.getWidth() + "\t" + entry.getHeight() + "\t" +
+                      entry.getTileSize() + "\t" + entry.getOverlap() + "\t" + entry.getFormat());
+            out.newLine();
+            out.flush();
+        } catch (IOException e) {
+            log.warn("Unable to persist image metadata for " + id.toHex() + " to " + file, e);
+        }
+    }
+
+    /**
+     * Close the persistence file. Later additions re-opens it.
+     */
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.warn("Exception closing " + file, e);
+            }
+            out = null;
+        }
+    }
+
+    public int size() {
+        return metadata.size();
+    }
+
+    public String getStats() {
+        return String.format(Locale.ENGLISH, "ImageMetadataStore(images=%d, hits=%d, misses=%d)",
+                             metadata.size(), hits.sum(), misses.sum());
+    }
+
+    @Override
+    public String toString() {
+        return "ImageMetadataStore(file=" + file + ", images=" + metadata.size() + ")";
+    }
+
+    /**
+     * The properties from a DZI.
+     */
+    public static final class Metadata {
+        private static final Pattern WIDTH = Pattern.compile("Width=\"([0-9]+)\"");
+        private static final Pattern HEIGHT = Pattern.compile("Height=\"([0-9]+)\"");
+        private static final Pattern TILE_SIZE = Pattern.compile("TileSize=\"([0-9]+)\"");
+        private static final Pattern OVERLAP = Pattern.compile("Overlap=\"([0-9]+)\"");
+        private static final Pattern FORMAT = Pattern.compile("Format=\"([^\"]+)\"");
+
+        private final long width;
+        private final long height;
+        private final int tileSize;
+        private final int overlap;
+        private final String format;
+
+        public Metadata(long width, long height, int tileSize, int overlap, String format) {
+            this.width = width;
+            this.height = height;
+            this.tileSize = tileSize;
+            this.overlap = overlap;
+            this.format = format;
+        }
+
+        /**
+         * @param dzi a DeepZoom Image descriptor as delivered by the image server.
+         * @return the properties of the DZI.
+         * @throws IllegalArgumentException if Width or Height could not be located.
+         */
+        public static Metadata parseDZI(String dzi) {
+            return new Metadata(Long.parseLong(extract(dzi, WIDTH, null)), Long.parseLong(extract(dzi, HEIGHT, null)),
+                                Integer.parseInt(extract(dzi, TILE_SIZE, Integer.toString(Util.EDGE))),
+                                Integer.parseInt(extract(dzi, OVERLAP, "0")), extract(dzi, FORMAT, "jpg"));
+        }
+
+        private static String extract(String dzi, Pattern pattern, String defaultValue) {
+            Matcher matcher = pattern.matcher(dzi);
+            if (matcher.find()) {
+                return matcher.group(1);
+            }
+            if (defaultValue == null) {
+                throw new IllegalArgumentException("Unable to locate " + pattern.pattern() + " in DZI '" + dzi + "'");
+            }
+            return defaultValue;
+        }
+
+        /**
+         * @param width  the width to state in the DZI.
+         * @param height the height to state in the DZI.
+         * @return a DZI with the properties from this metadata, except for the size.
+         */
+        public String toDZI(long width, long height) {
+            return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                   "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" TileSize=\"" + tileSize +
+                   "\" Overlap=\"" + overlap + "\" Format=\"" + format + "\">" +
+                   "<Size Width=\"" + width + "\" Height=\"" + height + "\"/></Image>";
+        }
+
+        public long getWidth() {
+            return width;
+        }
+
+        public long getHeight() {
+            return height;
+        }
+
+        public int getTileSize() {
+            return tileSize;
+        }
+
+        public int getOverlap() {
+            return overlap;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+    }
+}
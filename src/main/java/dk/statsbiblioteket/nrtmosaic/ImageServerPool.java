@@ -0,0 +1,367 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distributes requests for the image server between a number of replicas serving the same images.
+ * Sources are stated relative to the canonical image server (the setup property {@code imageserver}), which keeps
+ * cache keys stable, and the prefix is replaced with the selected replica when the request is issued.
+ * </p><p>
+ * Requests for the same image are routed to the same replica using rendezvous hashing on the UUID of the image,
+ * so that each replica only needs to cache its share of the images. If the preferred replica is more than
+ * {@code loadFactor} times as loaded as the least loaded replica, the least loaded replica is used instead.
+ * Load is the exponentially weighted moving average of the response time multiplied by the outstanding requests.
+ * </p><p>
+ * Replicas failing {@code ejectFailures} times in a row are ejected for {@code ejectMS}, doubling with each
+ * consecutive ejection. Ejected replicas are probed in the background and reinstated when they respond. Failed
+ * requests are retried on the next replica in line. If all replicas are ejected, the one closest to reinstatement is
+ * used, so requests are never failed without trying.
+ */
+public class ImageServerPool {
+    private static Log log = LogFactory.getLog(ImageServerPool.class);
+
+    private static final double EWMA_WEIGHT = 0.2; // Weight of the newest response time
+    private static final int MAX_EJECT_DOUBLINGS = 6;
+
+    private final String canonical;
+    private final Endpoint[] endpoints;
+    private final UpstreamClient client;
+    private final double loadFactor;
+    private final int ejectFailures;
+    private final long ejectNS;
+    private final int healthCheckMS;
+    private final ScheduledExecutorService healthChecker; // null if there is only 1 endpoint or checks are disabled
+
+    private final LongAdder failovers = new LongAdder();
+
+    /**
+     * @param imageServer the canonical image server.
+     * @return a pool created from the setup properties {@code imageserver.endpoints},
+     *         {@code imageserver.endpoints.loadfactor}, {@code imageserver.endpoints.eject.failures},
+     *         {@code imageserver.endpoints.eject.ms} and {@code imageserver.endpoints.healthcheck.ms}.
+     */
+    public static ImageServerPool create(String imageServer) {
+        final List<String> endpoints = new ArrayList<>();
+        for (String endpoint: Config.getString("imageserver.endpoints").split(" *, *")) {
+            if (!endpoint.trim().isEmpty()) {
+                endpoints.add(endpoint.trim());
+            }
+        }
+        if (endpoints.isEmpty()) {
+            endpoints.add(imageServer);
+        }
+        return new ImageServerPool(imageServer, endpoints, UpstreamClient.getInstance(),
+                                   Double.parseDouble(Config.getString("imageserver.endpoints.loadfactor")),
+                                   Config.getInt("imageserver.endpoints.eject.failures"),
+                                   Config.getInt("imageserver.endpoints.eject.ms"),
+                                   Config.getInt("imageserver.endpoints.healthcheck.ms"));
+    }
+
+    /**
+     * @param canonical     the image server used in sources.
+     * @param endpoints     the replicas, stated the same way as the canonical image server.
+     * @param client        used for fetching from the replicas.
+     * @param loadFactor    how much more loaded than the least loaded replica the preferred replica for an image
+     *                      can be before the least loaded replica is used instead.
+     * @param ejectFailures the number of consecutive failures before a replica is ejected.
+     * @param ejectMS       the initial ejection time.
+     * @param healthCheckMS the interval for probing ejected replicas. 0 disables probing.
+     */
+    public ImageServerPool(String canonical, List<String> endpoints, UpstreamClient client,
+                           double loadFactor, int ejectFailures, int ejectMS, int healthCheckMS) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least 1 image server endpoint must be specified");
+        }
+        this.canonical = canonical;
+        this.endpoints = new Endpoint[endpoints.size()];
+        for (int i = 0 ; i < endpoints.size() ; i++) {
+            this.endpoints[i] = new Endpoint(i, endpoints.get(i));
+        }
+        this.client = client;
+        this.loadFactor = Math.max(1, loadFactor);
+        this.ejectFailures = Math.max(1, ejectFailures);
+        this.ejectNS = TimeUnit.MILLISECONDS.toNanos(ejectMS);
+        this.healthCheckMS = healthCheckMS;
+        if (endpoints.size() > 1 && healthCheckMS > 0) {
+            healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ImageServerHealthCheck");
+                thread.setDaemon(true);
+                return thread;
+            });
+            healthChecker.scheduleWithFixedDelay(this::checkEjected, healthCheckMS, healthCheckMS,
+                                                 TimeUnit.MILLISECONDS);
+        } else {
+            healthChecker = null;
+        }
+        log.info("Created " + this);
+    }
+
+    /**
+     * Fetch the source from the replica selected for the image in the source.
+     * @param source an URL starting with the canonical image server. Other URLs are fetched directly.
+     * @return the content of the source.
+     * @throws IOException if the content could not be fetched from any replica.
+     */
+    public byte[] fetchBytes(String source) throws IOException {
+        if (!source.startsWith(canonical) || isDirect()) {
+            return client.fetchBytes(resolve(source));
+        }
+        final String relative = source.substring(canonical.length());
+        final UUID id = UUID.find(relative);
+        final boolean[] tried = new boolean[endpoints.length];
+        RuntimeException overloaded = null;
+        IOException failure = null;
+        for (int attempt = 0 ; attempt < endpoints.length ; attempt++) {
+            final Endpoint endpoint = select(id, tried);
+            if (endpoint == null) {
+                break;
+            }
+            tried[endpoint.index] = true;
+            if (attempt > 0) {
+                failovers.increment();
+            }
+            final long startNS = System.nanoTime();
+            endpoint.outstanding.incrementAndGet();
+            try {
+                final byte[] content = client.fetchBytes(resolve(endpoint.base + relative));
+                endpoint.succeeded(System.nanoTime()-startNS);
+                return content;
+            } catch (UpstreamOverloadedException e) {
+                // Local congestion control for the replica rejected the request. Not a fault of the replica
+                overloaded = e;
+            } catch (IOException e) {
+                if (!UpstreamClient.isRetryable(e)) {
+                    // The replica answered properly, the resource is just not there
+                    endpoint.succeeded(System.nanoTime()-startNS);
+                    throw e;
+                }
+                endpoint.failed();
+                failure = e;
+                if (log.isDebugEnabled()) {
+                    log.debug("Failed fetching '" + relative + "' from " + endpoint.base + ": " + e);
+                }
+            } finally {
+                endpoint.outstanding.decrementAndGet();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        throw overloaded;
+    }
+
+    private boolean isDirect() {
+        return endpoints.length == 1 && endpoints[0].base.equals(canonical);
+    }
+
+    private URL resolve(String source) {
+        final URL url = Util.resolveURL(source);
+        if (url == null) {
+            throw new IllegalArgumentException("Unable to resolve image url '" + source + "'");
+        }
+        return url;
+    }
+
+    /**
+     * Select the replica for the image, disregarding already tried replicas.
+     * @param id    the image, null if unknown.
+     * @param tried replicas that has already been tried.
+     * @return the replica to use or null if all replicas has been tried or are ejected.
+     */
+    private Endpoint select(UUID id, boolean[] tried) {
+        final long now = System.nanoTime();
+        Endpoint preferred = null;
+        double preferredWeight = 0;
+        Endpoint leastLoaded = null;
+        double leastLoad = Double.MAX_VALUE;
+        boolean first = true;
+        for (Endpoint endpoint: endpoints) {
+            first &= !tried[endpoint.index];
+            if (tried[endpoint.index] || endpoint.isEjected(now)) {
+                continue;
+            }
+            final double load = endpoint.getLoad();
+            if (load < leastLoad) {
+                leastLoaded = endpoint;
+                leastLoad = load;
+            }
+            final double weight = id == null ? 0 : endpoint.getWeight(id);
+            if (preferred == null || weight > preferredWeight) {
+                preferred = endpoint;
+                preferredWeight = weight;
+            }
+        }
+        if (leastLoaded == null) {
+            return first ? getClosestToReinstatement() : null;
+        }
+        return id == null || preferred.getLoad() > leastLoad * loadFactor ? leastLoaded : preferred;
+    }
+
+    private Endpoint getClosestToReinstatement() {
+        Endpoint closest = endpoints[0];
+        for (Endpoint endpoint: endpoints) {
+            if (endpoint.getEjectedUntilNS() < closest.getEjectedUntilNS()) {
+                closest = endpoint;
+            }
+        }
+        return closest;
+    }
+
+    // Probes the ejected replicas. Any response below HTTP 500 means that the replica is alive
+    private void checkEjected() {
+        final long now = System.nanoTime();
+        for (Endpoint endpoint: endpoints) {
+            if (!endpoint.isEjected(now)) {
+                continue;
+            }
+            try {
+                final HttpURLConnection connection = (HttpURLConnection) resolve(endpoint.base).openConnection();
+                connection.setConnectTimeout(healthCheckMS);
+                connection.setReadTimeout(healthCheckMS);
+                final int status = connection.getResponseCode();
+                connection.disconnect();
+                if (status < 500) {
+                    endpoint.reinstate();
+                }
+            } catch (Exception e) {
+                log.trace("Health check failed for " + endpoint.base, e);
+            }
+        }
+    }
+
+    /**
+     * Stop probing ejected replicas.
+     */
+    public void close() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+    }
+
+    public String getStats() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("imageServerPool(failovers=").append(failovers.sum()).append(", endpoints=[");
+        for (int i = 0 ; i < endpoints.length ; i++) {
+            sb.append(i == 0 ? "" : ", ").append(endpoints[i].getStats());
+        }
+        return sb.append("])").toString();
+    }
+
+    @Override
+    public String toString() {
+        return "ImageServerPool(canonical=" + canonical + ", endpoints=" + endpoints.length + ", loadFactor=" +
+               loadFactor + ", ejectFailures=" + ejectFailures + ", ejectMS=" +
+               TimeUnit.NANOSECONDS.toMillis(ejectNS) + ", healthCheckMS=" + healthCheckMS + ")";
+    }
+
+    // A single replica with health and load statistics
+    private final class Endpoint {
+        private final int index;
+        private final String base;
+        private final long hash;
+        private final AtomicInteger outstanding = new AtomicInteger(0);
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+
+        private double ewmaMS = 0;
+        private int consecutiveFailures = 0;
+        private int ejections = 0;   // Consecutive ejections without a successful request in between
+        private long ejectedUntilNS = 0;
+        private long totalEjections = 0;
+
+        public Endpoint(int index, String base) {
+            this.index = index;
+            this.base = base;
+            this.hash = mix(base.hashCode());
+        }
+
+        // Rendezvous hashing: The endpoint with the highest weight for the ID is the preferred one
+        public double getWeight(UUID id) {
+            return mix(id.getFirst64() ^ Long.rotateLeft(id.getSecond64(), 17) ^ hash) >>> 11;
+        }
+
+        // Unknown response times count as 0, so new replicas are tried
+        public synchronized double getLoad() {
+            return (ewmaMS + 1) * (outstanding.get() + 1);
+        }
+
+        public synchronized boolean isEjected(long nowNS) {
+            return ejectedUntilNS != 0 && nowNS - ejectedUntilNS < 0;
+        }
+
+        public synchronized long getEjectedUntilNS() {
+            return ejectedUntilNS;
+        }
+
+        public synchronized void succeeded(long spentNS) {
+            requests.increment();
+            final double ms = spentNS / 1000000.0;
+            ewmaMS = ewmaMS == 0 ? ms : ewmaMS + EWMA_WEIGHT * (ms - ewmaMS);
+            consecutiveFailures = 0;
+            ejections = 0;
+        }
+
+        public synchronized void failed() {
+            requests.increment();
+            failures.increment();
+            if (++consecutiveFailures < ejectFailures) {
+                return;
+            }
+            final long duration = ejectNS << Math.min(ejections++, MAX_EJECT_DOUBLINGS);
+            ejectedUntilNS = System.nanoTime() + duration;
+            totalEjections++;
+            // A single failure after reinstatement ejects the replica again
+            consecutiveFailures = ejectFailures-1;
+            log.warn("Ejecting image server " + base + " for " + TimeUnit.NANOSECONDS.toMillis(duration) +
+                     "ms after " + ejectFailures + " consecutive failures");
+        }
+
+        public synchronized void reinstate() {
+            if (ejectedUntilNS != 0) {
+                log.info("Reinstating image server " + base + " as it responds to health checks");
+            }
+            ejectedUntilNS = 0;
+        }
+
+        public synchronized String getStats() {
+            return String.format(Locale.ENGLISH, "%s(outstanding=%d, requests=%d, failures=%d, ewmaMS=%.1f, " +
+                                                 "ejected=%b, ejections=%d)",
+                                 base, outstanding.get(), requests.sum(), failures.sum(), ewmaMS,
+                                 isEjected(System.nanoTime()), totalEjections);
+        }
+    }
+
+    // Finalizer from SplitMix64, spreading the bits of the input
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fetches tiles and DZIs from the external image server, using the shared {@link UpstreamClient}.
+ * If the setup property {@code imageserver.endpoints} lists replicas, requests are distributed between them by
+ * an {@link ImageServerPool}.
+ */
+public class ImageServerTileSource implements TileSource {
+    private final String imageServer;
+    private final ImageServerPool pool;
+
+    /**
+     * @param imageServer the base URL for the image server, as stated in the setup property {@code imageserver}.
+     */
+    public ImageServerTileSource(String imageServer) {
+        this(imageServer, ImageServerPool.create(imageServer));
+    }
+
+    /**
+     * @param imageServer the base URL for the image server, as used in sources.
+     * @param pool        the replicas to fetch from.
+     */
+    public ImageServerTileSource(String imageServer, ImageServerPool pool) {
+        this.imageServer = imageServer;
+        this.pool = pool;
+    }
+
+    @Override
+    public byte[] getTileBytes(String source) throws IOException {
+        return pool.fetchBytes(source);
+    }
+
+    @Override
+    public BufferedImage getTile(String source) throws IOException {
+        final byte[] content;
+        try {
+            content = pool.fetchBytes(source);
+        } catch (IOException e) {
+            throw new IIOException("Can't get input stream from URL " + source, e);
+        }
+        return ImageIO.read(new ByteArrayInputStream(content));
+    }
+
+    @Override
+    public String getDZI(String deepZoom) throws IOException {
+        return new String(pool.fetchBytes(imageServer + "?DeepZoom=" + deepZoom + ".dzi"), StandardCharsets.UTF_8).
+                trim();
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    @Override
+    public String getStats() {
+        return "ImageServerTileSource(" + imageServer + ", " + pool.getStats() + ")";
+    }
+
+    @Override
+    public String toString() {
+        return getStats();
+    }
+}
@@ -27,6 +27,7 @@ import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -41,6 +42,9 @@ public class Keeper {
     private final List<List<PyramidGrey23>> pyramidsTop;
     private final List<List<PyramidGrey23>> pyramidsBottom;
     private final Map<UUID, PyramidGrey23> pyramids;
+    private volatile List<List<PyramidGrey23>> definedTop = Collections.emptyList(); // Non-empty pyramidsTop
+    private PyramidGrey23[] byOrdinal = new PyramidGrey23[0]; // Concatenation order == file offset order
+    private long signature = 0;
 
 
     public Keeper() {
@@ -73,17 +77,12 @@ public class Keeper {
         if (!Files.exists(concatRoot)) {
             throw new RuntimeException("The expected concatenation cache did not exist at " + concatRoot);
         }
+        // Resolve all concatenation files first, so that ordinals can be assigned in file offset order
+        List<Path> concatFiles = new ArrayList<>();
+        List<Long> concatSizes = new ArrayList<>();
         int i = 0;
-        AtomicLong pixels = new AtomicLong(0);
-        ExecutorService executor = Executors.newFixedThreadPool(Config.getInt("keeper.mapping.threads"));
-        log.info(String.format("Mapping concatenated pyramid data from '%s' into Pyramids, using %d threads",
-                               concatRoot.toString(), Config.getInt("keeper.mapping.threads")));
         while (Files.exists(concatRoot.resolve(i + ".dat"))) {
             Path concatFile = concatRoot.resolve(i++ + ".dat");
-            if (!Files.exists(concatFile)) {
-                log.warn("Expected concatenation file at " + concatFile);
-                continue;
-            }
             long concatSize;
             try {
                 concatSize = Files.size(concatFile);
@@ -99,7 +98,23 @@ public class Keeper {
                 throw new UnsupportedOperationException(
                         "Sorry, but " + concatFile + " is > 2GB, which is not currently supported");
             }
+            concatFiles.add(concatFile);
+            concatSizes.add(concatSize);
+        }
+        long totalPyramids = 0;
+        for (long concatSize: concatSizes) {
+            totalPyramids += concatSize / Config.imhotep.getBytecount();
+        }
+        byOrdinal = new PyramidGrey23[(int) totalPyramids];
 
+        AtomicLong pixels = new AtomicLong(0);
+        ExecutorService executor = Executors.newFixedThreadPool(Config.getInt("keeper.mapping.threads"));
+        log.info(String.format("Mapping concatenated pyramid data from '%s' into Pyramids, using %d threads",
+                               concatRoot.toString(), Config.getInt("keeper.mapping.threads")));
+        int ordinalBase = 0;
+        for (int f = 0 ; f < concatFiles.size() ; f++) {
+            Path concatFile = concatFiles.get(f);
+            long concatSize = concatSizes.get(f);
             MappedByteBuffer mapped;
             try {
                 mapped = new RandomAccessFile(concatFile.toFile().getCanonicalFile(), "r").getChannel().
@@ -107,7 +122,8 @@ public class Keeper {
             } catch (IOException e) {
                 throw new RuntimeException("Unable to map concatenated pyramids file " + concatFile, e);
             }
-            executor.submit(new PyramidMapper(mapped, concatFile, concatSize, pixels));
+            executor.submit(new PyramidMapper(mapped, concatFile, concatSize, pixels, ordinalBase));
+            ordinalBase += (int) (concatSize / Config.imhotep.getBytecount());
         }
         executor.shutdown();
         try {
@@ -116,6 +132,7 @@ public class Keeper {
             log.error("Waited more than 1 day for the mapping threads to finish. Giving up.");
             throw new RuntimeException("Unable to finish mapping as it took more than 1 day", e);
         }
+        signature = calculateSignature();
         sortPyramids();
         long scale = (long) Math.pow(2, Config.getInt("prime.lastbasiclevel") - Config.getInt("prime.firstbasiclevel"));
         long backingPixels = pixels.get() * scale*scale;
@@ -130,12 +147,15 @@ public class Keeper {
         private final Path concatFile;
         private final long concatSize;
         private final AtomicLong pixels;
+        private final int ordinalBase;
 
-        public PyramidMapper(MappedByteBuffer mapped, Path concatFile, long concatSize, AtomicLong pixels) {
+        public PyramidMapper(MappedByteBuffer mapped, Path concatFile, long concatSize, AtomicLong pixels,
+                             int ordinalBase) {
             this.mapped = mapped;
             this.concatFile = concatFile;
             this.concatSize = concatSize;
             this.pixels = pixels;
+            this.ordinalBase = ordinalBase;
         }
 
         @Override
@@ -144,7 +164,10 @@ public class Keeper {
             long mapCount = 0;
             byte[] bulkGetBuffer = Config.imhotep.createBulkGetBuffer();
             while (offset < concatSize) {
-                pixels.addAndGet(addPyramid(Config.imhotep.createNew(mapped, offset, bulkGetBuffer)));
+                PyramidGrey23 pyramid = Config.imhotep.createNew(mapped, offset, bulkGetBuffer);
+                pyramid.setOrdinal(ordinalBase + (int) mapCount);
+                byOrdinal[pyramid.getOrdinal()] = pyramid;
+                pixels.addAndGet(addPyramid(pyramid));
                 offset += Config.imhotep.getBytecount();
                 mapCount++;
             }
@@ -153,6 +176,20 @@ public class Keeper {
         }
     }
 
+    // Order-dependent fingerprint of the pyramid IDs, used for detecting stale ordinal-based mappings
+    private long calculateSignature() {
+        long sig = byOrdinal.length;
+        for (PyramidGrey23 pyramid: byOrdinal) {
+            if (pyramid == null) {
+                continue;
+            }
+            UUID id = pyramid.getID();
+            sig = sig * 31 + id.getFirst64();
+            sig = sig * 31 + id.getSecond64();
+        }
+        return sig;
+    }
+
     private void loadFromIndividualFiles(Path root) {
         log.debug("Loading pyramids from " + root);
         Util.wrappedList(root).
@@ -176,6 +213,14 @@ public class Keeper {
         }
         log.info("Pyramids sorted into buckets " + listBuckets());
         collapsePyramids();
+        // The buckets are fixed from here on, so the non-empty ones are resolved once for fast random selection
+        List<List<PyramidGrey23>> defined = new ArrayList<>(pyramidsTop.size());
+        for (List<PyramidGrey23> pList: pyramidsTop) {
+            if (!pList.isEmpty()) {
+                defined.add(pList);
+            }
+        }
+        definedTop = defined;
     }
 
     private void sanityCheck(String designation, List<List<PyramidGrey23>> pyramids) {
@@ -248,16 +293,27 @@ public class Keeper {
 
     // Attempts to extract UUID from origin and use cached fill color
     public int getFillGrey(String origin, Integer dynamicGrey) {
+        if (Util.DEFAULT_FILL_STYLE == Util.FILL_STYLE.average) {
+            final UUID id = UUID.find(origin);
+            if (id == null) {
+                log.warn("Unable to extract UUID from '" + origin + "'. Using default grey " + Util.FILL_COLOR_INT);
+                return Util.FILL_COLOR_INT;
+            }
+            return getFillGrey(id, dynamicGrey);
+        }
+        return getFillGrey((UUID) null, dynamicGrey);
+    }
+    /**
+     * Same as {@link #getFillGrey(String, Integer)} for callers that have already extracted the UUID.
+     * @param pyramidID   the ID of the pyramid. If null, the default grey is used for fill style average.
+     * @param dynamicGrey the grey to use for fill style dynamic.
+     */
+    public int getFillGrey(UUID pyramidID, Integer dynamicGrey) {
         switch (Util.DEFAULT_FILL_STYLE) {
             case fixed:
                 return Util.FILL_COLOR_INT;
             case average:
-                try {
-                    return getFillGrey(new UUID(origin));
-                } catch (IllegalArgumentException e) {
-                    log.warn("Unable to extract UUID from '" + origin + "'. Using default grey " + Util.FILL_COLOR_INT);
-                    return Util.FILL_COLOR_INT;
-                }
+                return pyramidID == null ? Util.FILL_COLOR_INT : getFillGrey(pyramidID);
             case dynamic:
                 return dynamicGrey == null ? Util.FILL_COLOR_INT : dynamicGrey;
             default: throw new UnsupportedOperationException(
@@ -280,23 +336,60 @@ public class Keeper {
         return pyramid.getAverageGrey();
     }
     public PyramidGrey23 getPyramid(String origin) {
-        try {
-            UUID id = new UUID(origin);
-            PyramidGrey23 pyramid = getPyramid(id);
-            if (pyramid == null) {
-                log.warn("Unable to locate pyramid for resolved id '" + id.toHex() +"' from source '" + origin + "'");
-                return null;
-            }
-            return pyramid;
-        } catch (IllegalArgumentException e) {
+        final UUID id = UUID.find(origin);
+        if (id == null) {
             log.warn("getPyramid(" + origin + "): Unable to extract UUID");
+            return null;
+        }
+        return getPyramid(id, origin);
+    }
+    /**
+     * @param snippet a parsed DeepZoom request.
+     * @return the pyramid for the image in the snippet or null if it could not be resolved.
+     */
+    public PyramidGrey23 getPyramid(DeepZoomSnippet snippet) {
+        if (snippet.getID() == null) {
+            log.warn("getPyramid(" + snippet + "): Unable to extract UUID");
+            return null;
         }
-        return null;
+        return getPyramid(snippet.getID(), snippet);
+    }
+    private PyramidGrey23 getPyramid(UUID id, Object origin) {
+        PyramidGrey23 pyramid = getPyramid(id);
+        if (pyramid == null) {
+            log.warn("Unable to locate pyramid for resolved id '" + id.toHex() +"' from source '" + origin + "'");
+        }
+        return pyramid;
     }
     public PyramidGrey23 getPyramid(UUID id) {
         return pyramids.get(id);
     }
 
+    /**
+     * @param ordinal the position of the pyramid in the concatenated pyramid data, as returned by
+     *                {@link PyramidGrey23#getOrdinal()}.
+     * @return the pyramid at the given ordinal or null if the ordinal is out of range.
+     */
+    public PyramidGrey23 getPyramid(int ordinal) {
+        return ordinal < 0 || ordinal >= byOrdinal.length ? null : byOrdinal[ordinal];
+    }
+
+    /**
+     * @return the number of pyramids addressable by ordinal.
+     */
+    public int getOrdinalCount() {
+        return byOrdinal.length;
+    }
+
+    /**
+     * The signature changes if the pyramid corpus is re-generated or re-ordered. Persistent structures that
+     * reference pyramids by ordinal should store the signature and discard their content if it does not match.
+     * @return a fingerprint of the pyramid IDs in ordinal order.
+     */
+    public long getSignature() {
+        return signature;
+    }
+
     private List<PyramidGrey23> getClosest(List<List<PyramidGrey23>> pyramids, final int ideal, Random random) {
         int delta = -1;
         while (delta++ < bucketCount*2) { // Linear search out from origo
@@ -360,16 +453,11 @@ public class Keeper {
      * @return a random Pyramid from the full collection of Pyramids.
      */
     public PyramidGrey23 getRandom() {
-        Random random = new Random();
-        List<List<PyramidGrey23>> defined = new ArrayList<>(pyramidsTop.size());
-        for (List<PyramidGrey23> pList: pyramidsTop) {
-            if (!pList.isEmpty()) {
-                defined.add(pList);
-            }
-        }
+        final List<List<PyramidGrey23>> defined = definedTop;
         if (defined.isEmpty()) {
             throw new IllegalStateException("No pyramids defined");
         }
+        final Random random = ThreadLocalRandom.current();
         List<PyramidGrey23> pList = defined.get(random.nextInt(defined.size()));
         return pList.get(random.nextInt(pList.size()));
     }
@@ -0,0 +1,355 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads tiles and DZIs directly from image files on local storage, for nodes that have the corpus images locally.
+ * This avoids the network hop and the image server for basic tiles and mapping tiles. Tiles are cut the same way
+ * as the image server does it: At DeepZoom level L, the image is scaled by 2^(L-maxLevel), where maxLevel is the
+ * level where the image is shown at full size, and tiles are {@code tile.edge} pixels without overlap.
+ * </p><p>
+ * Any format with an ImageIO reader can be used. Multi-resolution TIFFs, with tiled images at decreasing
+ * resolutions, are the most efficient as tiles are read from the smallest sufficient resolution and only the tiles
+ * overlapping the requested region are decoded. JPEG 2000 is not supported by ImageIO.
+ * </p><p>
+ * Opening a reader means opening the file and parsing the image headers, so readers are kept open in a pool and
+ * reused for later tiles from the same image. Images that are not available locally are delivered by the fallback
+ * source, if one is given.
+ */
+public class LocalTileSource implements TileSource {
+    private static Log log = LogFactory.getLog(LocalTileSource.class);
+
+    private final PathTemplate pathTemplate; // null if the regexp is not supported by PathTemplate
+    private final Pattern pathRegexp;
+    private final String pathReplacement;
+    private final int maxReaders;
+    private final int edge;
+    private final TileSource fallback;
+
+    // Idle readers, with the least recently used image first
+    private final LinkedHashMap<Path, Deque<ImageReader>> readers = new LinkedHashMap<>(16, 0.75f, true);
+    private int pooled = 0;
+
+    private final LongAdder tiles = new LongAdder();
+    private final LongAdder tileNS = new LongAdder();
+    private final LongAdder readerHits = new LongAdder();
+    private final LongAdder readerMisses = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+
+    /**
+     * @param fallback used for images that are not available locally. Can be null.
+     * @return a source created from the setup properties {@code tilesource.local.*}.
+     */
+    public static LocalTileSource create(TileSource fallback) {
+        return new LocalTileSource(Config.getString("tilesource.local.path.regexp"),
+                                   Config.getString("tilesource.local.path.replacement"),
+                                   Config.getInt("tilesource.local.readers"), Config.getInt("tile.edge"), fallback);
+    }
+
+    /**
+     * @param pathRegexp      regexp for the 32 digit hex representation of the image UUIDs.
+     * @param pathReplacement the local path for the image, with {@code $n} group references to pathRegexp.
+     * @param maxReaders      the maximum number of idle readers to keep open.
+     * @param edge            the size of the tiles.
+     * @param fallback        used for images that are not available locally. Can be null.
+     */
+    public LocalTileSource(String pathRegexp, String pathReplacement, int maxReaders, int edge,
+                           TileSource fallback) {
+        this.pathTemplate = PathTemplate.compile(pathRegexp, pathReplacement);
+        this.pathRegexp = Pattern.compile(pathRegexp);
+        this.pathReplacement = pathReplacement;
+        this.maxReaders = maxReaders;
+        this.edge = edge;
+        this.fallback = fallback;
+        log.info("Created " + this);
+    }
+
+    @Override
+    public byte[] getTileBytes(String source) throws IOException {
+        final Path image = resolveImage(source);
+        if (image == null) {
+            fallbacks.increment();
+            return fallback.getTileBytes(source);
+        }
+        return EncodedTile.encode(readTile(image, DeepZoomSnippet.parse(source))).getBytes();
+    }
+
+    @Override
+    public BufferedImage getTile(String source) throws IOException {
+        try {
+            final Path image = resolveImage(source);
+            if (image != null) {
+                return readTile(image, DeepZoomSnippet.parse(source));
+            }
+        } catch (IIOException e) {
+            throw e;
+        } catch (IOException e) { // Same contract as UpstreamClient.fetchImage
+            throw new IIOException("Unable to read local tile for '" + source + "'", e);
+        }
+        fallbacks.increment();
+        return fallback.getTile(source);
+    }
+
+    @Override
+    public String getDZI(String deepZoom) throws IOException {
+        final UUID id = UUID.find(deepZoom);
+        final Path image = id == null ? null : toPath(id);
+        if (image == null || !Files.isReadable(image)) {
+            if (fallback == null) {
+                throw new FileNotFoundException("No local image for '" + deepZoom + "'");
+            }
+            fallbacks.increment();
+            return fallback.getDZI(deepZoom);
+        }
+        ImageReader reader = borrow(image);
+        try {
+            final String dzi = new ImageMetadataStore.Metadata(
+                    reader.getWidth(0), reader.getHeight(0), edge, 0, EncodedTile.FORMAT).
+                    toDZI(reader.getWidth(0), reader.getHeight(0));
+            release(image, reader);
+            return dzi;
+        } catch (IOException | RuntimeException e) {
+            dispose(reader);
+            throw e;
+        }
+    }
+
+    // Returns the local image or null if the fallback should be used
+    private Path resolveImage(String source) throws FileNotFoundException {
+        final DeepZoomSnippet snippet = DeepZoomSnippet.find(source);
+        final Path image = snippet == null || snippet.getID() == null ? null : toPath(snippet.getID());
+        if (image != null && Files.isReadable(image)) {
+            return image;
+        }
+        if (fallback == null) {
+            throw new FileNotFoundException("No local image for '" + source + "'");
+        }
+        return null;
+    }
+
+    private Path toPath(UUID id) {
+        if (pathTemplate != null) {
+            return Paths.get(pathTemplate.apply(id));
+        }
+        final Matcher matcher = pathRegexp.matcher(id.toHex());
+        return matcher.matches() ? Paths.get(matcher.replaceFirst(pathReplacement)) : null;
+    }
+
+    private BufferedImage readTile(Path image, DeepZoomSnippet snippet) throws IOException {
+        final long startTime = System.nanoTime();
+        final ImageReader reader = borrow(image);
+        try {
+            final BufferedImage tile = readTile(reader, snippet.getLevel(), snippet.getFX(), snippet.getFY());
+            release(image, reader);
+            tiles.increment();
+            tileNS.add(System.nanoTime()-startTime);
+            if (log.isTraceEnabled()) {
+                log.trace("Read tile " + snippet + " from " + image + " in " +
+                          (System.nanoTime()-startTime)/1000000 + "ms");
+            }
+            return tile;
+        } catch (FileNotFoundException e) {
+            release(image, reader); // Requests outside of the image does not affect the reader
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            dispose(reader);
+            throw e;
+        }
+    }
+
+    private BufferedImage readTile(ImageReader reader, int level, long fx, long fy) throws IOException {
+        final int width = reader.getWidth(0);
+        final int height = reader.getHeight(0);
+        final int maxLevel = getMaxLevel(width, height);
+        if (level > maxLevel) {
+            throw new FileNotFoundException("Level " + level + " is above max level " + maxLevel);
+        }
+        final double scale = Math.pow(2, level - maxLevel);
+        final long levelWidth = (long) Math.ceil(width * scale);
+        final long levelHeight = (long) Math.ceil(height * scale);
+        final long x0 = fx*edge;
+        final long y0 = fy*edge;
+        if (x0 >= levelWidth || y0 >= levelHeight) {
+            throw new FileNotFoundException("Tile " + fx + "_" + fy + " is outside of the image at level " + level);
+        }
+        final int tileWidth = (int) (Math.min(levelWidth, x0 + edge) - x0);
+        final int tileHeight = (int) (Math.min(levelHeight, y0 + edge) - y0);
+
+        // The smallest sub-image that is at least as large as the level, to avoid decoding more than needed
+        int index = 0;
+        int indexWidth = width;
+        final int images = reader.getNumImages(true);
+        for (int i = 1 ; i < images ; i++) {
+            final int subWidth = reader.getWidth(i);
+            if (subWidth >= levelWidth && subWidth < indexWidth) {
+                index = i;
+                indexWidth = subWidth;
+            }
+        }
+        final int indexHeight = reader.getHeight(index);
+        final double factor = (double) indexWidth / width / scale; // level pixels to sub-image pixels
+
+        final int sx = (int) Math.floor(x0 * factor);
+        final int sy = (int) Math.floor(y0 * factor);
+        final int sw = Math.max(1, Math.min(indexWidth - sx, (int) Math.ceil(tileWidth * factor)));
+        final int sh = Math.max(1, Math.min(indexHeight - sy, (int) Math.ceil(tileHeight * factor)));
+        final int subsampling = Math.max(1, Math.min(sw / tileWidth, sh / tileHeight));
+        final ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(sx, sy, sw, sh));
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        return scale(reader.read(index, param), tileWidth, tileHeight);
+    }
+
+    // The DeepZoom level where the image is shown at full size
+    static int getMaxLevel(int width, int height) {
+        final int max = Math.max(width, height);
+        return max <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(max - 1);
+    }
+
+    private BufferedImage scale(BufferedImage image, int width, int height) {
+        if (image.getWidth() == width && image.getHeight() == height) {
+            return image;
+        }
+        final BufferedImage scaled = new BufferedImage(
+                width, height, image.getType() == BufferedImage.TYPE_CUSTOM ? BufferedImage.TYPE_INT_RGB :
+                image.getType());
+        final Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return scaled;
+    }
+
+    private ImageReader borrow(Path image) throws IOException {
+        synchronized (readers) {
+            final Deque<ImageReader> idle = readers.get(image);
+            if (idle != null && !idle.isEmpty()) {
+                pooled--;
+                readerHits.increment();
+                return idle.pop();
+            }
+        }
+        readerMisses.increment();
+        final ImageInputStream in = ImageIO.createImageInputStream(image.toFile());
+        if (in == null) {
+            throw new FileNotFoundException("Unable to open " + image);
+        }
+        final Iterator<ImageReader> candidates = ImageIO.getImageReaders(in);
+        if (!candidates.hasNext()) {
+            in.close();
+            throw new IIOException("No ImageIO reader available for " + image);
+        }
+        final ImageReader reader = candidates.next();
+        reader.setInput(in, false, true);
+        return reader;
+    }
+
+    private void release(Path image, ImageReader reader) {
+        if (maxReaders <= 0) {
+            dispose(reader);
+            return;
+        }
+        synchronized (readers) {
+            if (pooled >= maxReaders) { // Evict a reader for the least recently used image
+                final Iterator<Map.Entry<Path, Deque<ImageReader>>> lru = readers.entrySet().iterator();
+                final Map.Entry<Path, Deque<ImageReader>> eldest = lru.next();
+                dispose(eldest.getValue().pop());
+                pooled--;
+                if (eldest.getValue().isEmpty()) {
+                    lru.remove();
+                }
+            }
+            readers.computeIfAbsent(image, i -> new ArrayDeque<>()).push(reader);
+            pooled++;
+        }
+    }
+
+    private void dispose(ImageReader reader) {
+        try {
+            final Object input = reader.getInput();
+            if (input instanceof ImageInputStream) {
+                ((ImageInputStream) input).close();
+            }
+        } catch (IOException e) {
+            log.debug("Exception closing image input stream", e);
+        }
+        reader.dispose();
+    }
+
+    /**
+     * Close all pooled readers and the fallback.
+     */
+    @Override
+    public void close() {
+        if (fallback != null) {
+            fallback.close();
+        }
+        synchronized (readers) {
+            for (Deque<ImageReader> idle: readers.values()) {
+                for (ImageReader reader: idle) {
+                    dispose(reader);
+                }
+            }
+            readers.clear();
+            pooled = 0;
+        }
+    }
+
+    @Override
+    public String getStats() {
+        final int idle;
+        synchronized (readers) {
+            idle = pooled;
+        }
+        return String.format(Locale.ENGLISH, "LocalTileSource(tiles=%d, avgTileMS=%.1f, idleReaders=%d, " +
+                                             "readerHits=%d, readerMisses=%d, fallbacks=%d)",
+                             tiles.sum(), tileNS.sum()/1000000.0/Math.max(1, tiles.sum()), idle, readerHits.sum(),
+                             readerMisses.sum(), fallbacks.sum()) +
+               (fallback == null ? "" : "\n" + fallback.getStats());
+    }
+
+    @Override
+    public String toString() {
+        return "LocalTileSource(path=" + pathRegexp.pattern() + " -> " + pathReplacement + ", maxReaders=" +
+               maxReaders + ", edge=" + edge + ", fallback=" + fallback + ")";
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Memory mapped, read-only index of precomputed {@link Tile23} mappings, keyed by pyramid UUID and the
+ * coordinates of the basic tile at {@code prime.lastbasiclevel}. Created with {@link MappingIndexCreator}.
+ * </p><p>
+ * The index is stored in a folder as {@code index.dat} and one or more {@code data_N.dat} files.
+ * {@code index.dat} holds a header followed by fixed size entries sorted by (first64, second64, fx, fy):
+ * <pre>
+ * Header (64 bytes): [magic][version][corpus signature][tile edge][entry count][GAM (16 bytes)][CNT (16 bytes)]
+ * Entry (32 bytes):  [first64][second64][fx][fy][data file][data offset]
+ * </pre>
+ * The data files contains serialized mappings, as produced by {@link Tile23#store(ByteBuffer)}.
+ */
+public class MappingIndex {
+    private static Log log = LogFactory.getLog(MappingIndex.class);
+
+    public static final String INDEX_FILE = "index.dat";
+    private static final int MAGIC = 0x4D415049; // MAPI
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int ENTRY_SIZE = 32;
+    private static final int VARIANT_SIZE = 16;
+    private static final long MAX_DATA_SIZE = (long)Math.pow(2, 30); // 1GB, same as concatenated pyramids
+
+    private final Path root;
+    private final Keeper keeper;
+    private final ByteBuffer index;
+    private final int entryCount;
+    private final String gam;
+    private final String cnt;
+    private final List<ByteBuffer> data = new ArrayList<>();
+
+    /**
+     * Opens the index if it exists and matches the current pyramid corpus.
+     * @param root   the folder with the index.
+     * @param keeper provider of the pyramids.
+     * @return the index or null if it could not be opened.
+     */
+    public static MappingIndex open(Path root, Keeper keeper) {
+        if (!Files.exists(root.resolve(INDEX_FILE))) {
+            log.info("No mapping index present at " + root);
+            return null;
+        }
+        try {
+            return new MappingIndex(root, keeper);
+        } catch (Exception e) {
+            log.warn("Unable to open mapping index at " + root + ". Tiles will be mapped live", e);
+            return null;
+        }
+    }
+
+    private MappingIndex(Path root, Keeper keeper) throws IOException {
+        final long startTime = System.nanoTime();
+        this.root = root;
+        this.keeper = keeper;
+        index = map(root.resolve(INDEX_FILE));
+        if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION) {
+            throw new IOException("Unsupported format for " + root.resolve(INDEX_FILE));
+        }
+        if (index.getLong(8) != keeper.getSignature()) {
+            throw new IOException("The mapping index at " + root + " was created for another pyramid corpus");
+        }
+        if (index.getInt(16) != Tile23.edge) {
+            throw new IOException("The mapping index at " + root + " has tile edge " + index.getInt(16) +
+                                  " while the current tile edge is " + Tile23.edge);
+        }
+        entryCount = index.getInt(20);
+        gam = getVariant(index, 24);
+        cnt = getVariant(index, 24+VARIANT_SIZE);
+        int fileID = 0;
+        while (Files.exists(getDataFile(root, fileID))) {
+            data.add(map(getDataFile(root, fileID++)));
+        }
+        log.info("Opened mapping index with " + entryCount + " mappings in " + data.size() + " data files for " +
+                 "GAM=" + gam + ", CNT=" + cnt + " from " + root + " in " +
+                 (System.nanoTime()-startTime)/1000000 + "ms");
+    }
+
+    /**
+     * Resolve a precomputed mapping.
+     * @param id  the ID of the pyramid for the mosaic source image.
+     * @param fx  horizontal tile coordinate at {@code prime.lastbasiclevel}.
+     * @param fy  vertical tile coordinate at {@code prime.lastbasiclevel}.
+     * @param gam gamma used for the source tile.
+     * @param cnt contrast used for the source tile.
+     * @return the precomputed mapping or null if not present in the index.
+     */
+    public Tile23 getTile(UUID id, long fx, long fy, String gam, String cnt) {
+        if (id == null || !this.gam.equals(String.valueOf(gam)) || !this.cnt.equals(String.valueOf(cnt))) {
+            return null;
+        }
+        int low = 0;
+        int high = entryCount-1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int entryOffset = HEADER_SIZE + mid*ENTRY_SIZE;
+            final int cmp = compare(index.getLong(entryOffset), index.getLong(entryOffset+8),
+                                    index.getInt(entryOffset+16), index.getInt(entryOffset+20),
+                                    id.getFirst64(), id.getSecond64(), (int) fx, (int) fy);
+            if (cmp < 0) {
+                low = mid+1;
+            } else if (cmp > 0) {
+                high = mid-1;
+            } else {
+                return Tile23.load(data.get(index.getInt(entryOffset+24)), index.getInt(entryOffset+28), keeper);
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return entryCount;
+    }
+
+    @Override
+    public String toString() {
+        return "MappingIndex(root=" + root + ", mappings=" + entryCount + ", GAM=" + gam + ", CNT=" + cnt + ")";
+    }
+
+    static int compare(long first1, long second1, int fx1, int fy1, long first2, long second2, int fx2, int fy2) {
+        int cmp = Long.compare(first1, first2);
+        if (cmp == 0) {
+            cmp = Long.compare(second1, second2);
+        }
+        if (cmp == 0) {
+            cmp = Integer.compare(fx1, fx2);
+        }
+        return cmp == 0 ? Integer.compare(fy1, fy2) : cmp;
+    }
+
+    private static Path getDataFile(Path root, int fileID) {
+        return root.resolve("data_" + fileID + ".dat");
+    }
+
+    private static MappedByteBuffer map(Path file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, Files.size(file));
+        }
+    }
+
+    private static String getVariant(ByteBuffer buffer, int offset) {
+        byte[] bytes = new byte[VARIANT_SIZE];
+        for (int i = 0 ; i < VARIANT_SIZE ; i++) {
+            bytes[i] = buffer.get(offset+i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8).trim();
+    }
+
+    private static void putVariant(ByteBuffer buffer, String variant) {
+        byte[] bytes = String.valueOf(variant).getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > VARIANT_SIZE) {
+            throw new IllegalArgumentException("The value '" + variant + "' exceeds " + VARIANT_SIZE + " bytes");
+        }
+        for (int i = 0 ; i < VARIANT_SIZE ; i++) {
+            buffer.put(i < bytes.length ? bytes[i] : (byte) ' ');
+        }
+    }
+
+    /**
+     * Sequential writer for mapping indexes. Mappings must be added in ascending (UUID, fx, fy) order.
+     * The files are written with a temporary suffix and moved in place on {@link #close()}.
+     */
+    public static class Writer implements Closeable {
+        private final Path root;
+        private final long signature;
+        private final String gam;
+        private final String cnt;
+        private final ByteBuffer tileBuffer = ByteBuffer.allocate(Tile23.SERIALIZED_SIZE);
+        private final Path tmpIndex;
+        private final FileChannel indexChannel;
+        private final ByteBuffer entryBuffer = ByteBuffer.allocate(ENTRY_SIZE);
+
+        private FileChannel dataChannel = null;
+        private int dataFileID = -1;
+        private long dataSize = 0;
+        private int entryCount = 0;
+        private long lastFirst = Long.MIN_VALUE;
+        private long lastSecond = Long.MIN_VALUE;
+        private int lastFX = Integer.MIN_VALUE;
+        private int lastFY = Integer.MIN_VALUE;
+
+        public Writer(Path root, Keeper keeper, String gam, String cnt) throws IOException {
+            this.root = root;
+            this.signature = keeper.getSignature();
+            this.gam = gam;
+            this.cnt = cnt;
+            if (!Files.exists(root)) {
+                Files.createDirectories(root);
+            }
+            tmpIndex = root.resolve(INDEX_FILE + ".tmp");
+            indexChannel = new FileOutputStream(tmpIndex.toFile()).getChannel();
+            indexChannel.write(ByteBuffer.allocate(HEADER_SIZE)); // Placeholder until close
+        }
+
+        public synchronized void add(UUID id, long fx, long fy, Tile23 tile) throws IOException {
+            if (compare(lastFirst, lastSecond, lastFX, lastFY, id.getFirst64(), id.getSecond64(), (int)fx, (int)fy)
+                >= 0) {
+                throw new IllegalArgumentException(
+                        "Mappings must be added in ascending order, but " + id + " " + fx + "x" + fy +
+                        " came after " + new UUID(lastFirst, lastSecond) + " " + lastFX + "x" + lastFY);
+            }
+            if (dataChannel == null || dataSize + Tile23.SERIALIZED_SIZE > MAX_DATA_SIZE) {
+                if (dataChannel != null) {
+                    dataChannel.close();
+                }
+                dataChannel = new FileOutputStream(getTmp(getDataFile(root, ++dataFileID)).toFile()).getChannel();
+                dataSize = 0;
+            }
+            tileBuffer.clear();
+            tile.store(tileBuffer);
+            tileBuffer.flip();
+            while (tileBuffer.hasRemaining()) {
+                dataChannel.write(tileBuffer);
+            }
+
+            entryBuffer.clear();
+            entryBuffer.putLong(id.getFirst64()).putLong(id.getSecond64()).putInt((int) fx).putInt((int) fy).
+                    putInt(dataFileID).putInt((int) dataSize);
+            entryBuffer.flip();
+            while (entryBuffer.hasRemaining()) {
+                indexChannel.write(entryBuffer);
+            }
+            dataSize += Tile23.SERIALIZED_SIZE;
+            entryCount++;
+            lastFirst = id.getFirst64();
+            lastSecond = id.getSecond64();
+            lastFX = (int) fx;
+            lastFY = (int) fy;
+        }
+
+        public int size() {
+            return entryCount;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (dataChannel != null) {
+                dataChannel.close();
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(signature).putInt(Tile23.edge).putInt(entryCount);
+            putVariant(header, gam);
+            putVariant(header, cnt);
+            header.position(0);
+            indexChannel.write(header, 0);
+            indexChannel.close();
+
+            // Remove leftovers from previous indexes before moving the new files in place
+            int oldID = dataFileID+1;
+            while (Files.deleteIfExists(getDataFile(root, oldID))) {
+                oldID++;
+            }
+            for (int fileID = 0 ; fileID <= dataFileID ; fileID++) {
+                Files.move(getTmp(getDataFile(root, fileID)), getDataFile(root, fileID),
+                           StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(tmpIndex, root.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING);
+            log.info("Finished writing mapping index with " + entryCount + " mappings in " + (dataFileID+1) +
+                     " data files to " + root);
+        }
+
+        private Path getTmp(Path file) {
+            return file.resolveSibling(file.getFileName() + ".tmp");
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Batch job that precomputes the {@link Tile23} mappings for all basic tiles at {@code prime.lastbasiclevel} for
+ * all images in the pyramid corpus and stores them as a {@link MappingIndex}.
+ * </p><p>
+ * The basic tiles are fetched from the image server, so this is a heavy job. It only needs to be re-run when
+ * the pyramid corpus changes, as the index is tied to the corpus signature.
+ */
+public class MappingIndexCreator {
+    private static Log log = LogFactory.getLog(MappingIndexCreator.class);
+
+    public static void main(String[] args) throws IOException {
+        create();
+    }
+
+    public static void create() throws IOException {
+        final String indexRoot = Config.getString("mapping.index");
+        if (indexRoot == null || indexRoot.isEmpty()) {
+            throw new IllegalStateException("No mapping.index specified in the setup");
+        }
+        // GAM and CNT are applied locally, so the index holds neutral mappings
+        new MappingIndexCreator().createInternal(Paths.get(indexRoot), ToneCurve.NEUTRAL_GAM, ToneCurve.NEUTRAL_CNT);
+    }
+
+    private void createInternal(Path root, String gam, String cnt) throws IOException {
+        final long startTime = System.nanoTime();
+        final Prime prime = Prime.instance();
+        final Keeper keeper = prime.getKeeper();
+        final int threads = Config.getInt("mapping.index.threads");
+
+        List<PyramidGrey23> sources = new ArrayList<>(keeper.getOrdinalCount());
+        for (int ordinal = 0 ; ordinal < keeper.getOrdinalCount() ; ordinal++) {
+            if (keeper.getPyramid(ordinal) != null) {
+                sources.add(keeper.getPyramid(ordinal));
+            }
+        }
+        sources.sort((p1, p2) -> MappingIndex.compare(
+                p1.getID().getFirst64(), p1.getID().getSecond64(), 0, 0,
+                p2.getID().getFirst64(), p2.getID().getSecond64(), 0, 0));
+        log.info("Creating mapping index for " + sources.size() + " source images with GAM=" + gam + ", CNT=" + cnt +
+                 " using " + threads + " threads at " + root);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // Mappings are calculated in parallel but must be written in order, so we keep a window of pending jobs
+        Deque<Pending> pending = new ArrayDeque<>();
+        int failed = 0;
+        try (MappingIndex.Writer writer = new MappingIndex.Writer(root, keeper, gam, cnt)) {
+            for (PyramidGrey23 pyramid: sources) {
+                final long[] counts = prime.getBasicTileCounts(pyramid);
+                for (long fx = 0 ; fx < counts[0] ; fx++) {
+                    for (long fy = 0 ; fy < counts[1] ; fy++) {
+                        final String source = prime.toBasicTileSource(pyramid, fx, fy);
+                        pending.add(new Pending(pyramid.getID(), fx, fy, source, executor.submit(
+                                () -> prime.getTileProvider().mapTile(source, false))));
+                        while (pending.size() > threads*2) {
+                            failed += flush(pending.removeFirst(), writer);
+                        }
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                failed += flush(pending.removeFirst(), writer);
+            }
+            log.info("Created mapping index with " + writer.size() + " mappings (" + failed + " failed) in " +
+                     (System.nanoTime()-startTime)/1000000 + "ms");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Returns the number of failed mappings (0 or 1)
+    private int flush(Pending job, MappingIndex.Writer writer) throws IOException {
+        Tile23 tile;
+        try {
+            tile = job.tile.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for mapping of " + job.source, e);
+        } catch (ExecutionException e) {
+            log.warn("Unable to map " + job.source + ". The tile will be mapped live when requested", e.getCause());
+            return 1;
+        }
+        writer.add(job.id, job.fx, job.fy, tile);
+        if (writer.size() % 1000 == 0) {
+            log.info("Added mapping #" + writer.size() + " for " + job.source);
+        }
+        return 0;
+    }
+
+    private static final class Pending {
+        private final UUID id;
+        private final long fx;
+        private final long fy;
+        private final String source;
+        private final Future<Tile23> tile;
+
+        public Pending(UUID id, long fx, long fy, String source, Future<Tile23> tile) {
+            this.id = id;
+            this.fx = fx;
+            this.fy = fy;
+            this.source = source;
+            this.tile = tile;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Bounded, memory mapped store of {@link Tile23} mappings keyed by the MD5 of the source URL, persisting mapping
+ * work across restarts. Contrary to {@link MappingIndex}, the store is written live by {@link TileProvider}.
+ * </p><p>
+ * The store is a single file with a header followed by a fixed number of slots, organized as a 2-way set
+ * associative cache: A source can only be stored in one of the 2 slots of its set and when both are taken, the
+ * least recently used is overwritten.
+ * <pre>
+ * Header (64 bytes): [magic][version][corpus signature][tile edge][slot count]
+ * Slot:              [sequence][unused][MD5 (16 bytes)][last access (8 bytes)][serialized Tile23]
+ * </pre>
+ * The sequence is odd while the slot is being written. Readers discard slots where the sequence is odd or changed
+ * during the read. Together with region file locks for writers, this allows nodes sharing a volume to use the
+ * same store. The store is cleared if the pyramid corpus changes. A store for the same corpus with another size is
+ * not cleared, as it might be in use by other nodes. It is disabled instead.
+ */
+public class MappingStore {
+    private static Log log = LogFactory.getLog(MappingStore.class);
+
+    private static final int MAGIC = 0x4D415053; // MAPS
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = SLOT_HEADER_SIZE + Tile23.SERIALIZED_SIZE;
+    private static final int SLOTS_PER_REGION = (int) (Math.pow(2, 30) / SLOT_SIZE); // 1GB mapped regions
+    private static final int LOCK_STRIPES = 64;
+
+    private static final ThreadLocal<MessageDigest> md5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    });
+
+    private final Path file;
+    private final Keeper keeper;
+    private final int slotCount;
+    private final int setCount;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] regions;
+    private final ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[LOCK_STRIPES];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    /**
+     * Opens the store from the setup properties {@code mapping.store} and {@code mapping.store.mb}.
+     * @param keeper provider of the pyramids.
+     * @return the store or null if disabled or it could not be opened.
+     */
+    public static MappingStore create(Keeper keeper) {
+        final String storeFile = Config.getString("mapping.store");
+        if (storeFile == null || storeFile.isEmpty()) {
+            log.info("No mapping.store specified. Mappings will not be persisted");
+            return null;
+        }
+        try {
+            return new MappingStore(Paths.get(storeFile), Config.getInt("mapping.store.mb")*1024L*1024,
+                                    keeper);
+        } catch (Exception e) {
+            log.warn("Unable to open mapping store at " + storeFile + ". Mappings will not be persisted", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param file   the file holding the store. Created if not existing.
+     * @param bytes  the maximum size of the store. At least 2 slots will be allocated.
+     * @param keeper provider of the pyramids.
+     */
+    public MappingStore(Path file, long bytes, Keeper keeper) throws IOException {
+        this.file = file;
+        this.keeper = keeper;
+        this.setCount = (int) Math.max(1, Math.min(Integer.MAX_VALUE/2, (bytes-HEADER_SIZE)/SLOT_SIZE/2));
+        this.slotCount = setCount*2;
+        for (int i = 0 ; i < LOCK_STRIPES ; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        if (file.getParent() != null && !Files.exists(file.getParent())) {
+            Files.createDirectories(file.getParent());
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+        ensureHeader();
+        final int regionCount = (slotCount + SLOTS_PER_REGION - 1) / SLOTS_PER_REGION;
+        regions = new MappedByteBuffer[regionCount];
+        for (int region = 0 ; region < regionCount ; region++) {
+            final int slots = Math.min(SLOTS_PER_REGION, slotCount - region*SLOTS_PER_REGION);
+            regions[region] = channel.map(FileChannel.MapMode.READ_WRITE,
+                                          HEADER_SIZE + (long)region*SLOTS_PER_REGION*SLOT_SIZE,
+                                          (long)slots*SLOT_SIZE);
+        }
+        log.info("Opened " + this);
+    }
+
+    // Clears the store if it is for another corpus. Other nodes might have the store mapped, so a store for the same
+    // corpus with another layout is not cleared, as truncating it would crash those nodes
+    private void ensureHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (channel.size() >= HEADER_SIZE) {
+            channel.read(header, 0);
+            if (header.getInt(0) == MAGIC && header.getInt(4) == VERSION &&
+                header.getLong(8) == keeper.getSignature()) {
+                if (header.getInt(16) == Tile23.edge && header.getInt(20) == slotCount) {
+                    return;
+                }
+                final String message = "The mapping store at " + file + " has tile edge " + header.getInt(16) +
+                                       " and " + header.getInt(20) + " slots, but the setup specifies tile edge " +
+                                       Tile23.edge + " and " + slotCount + " slots. The store might be in use by " +
+                                       "other nodes and will not be cleared. Check mapping.store.mb";
+                log.error(message);
+                throw new IOException(message);
+            }
+            log.info("The mapping store at " + file + " does not match the current corpus. Clearing it");
+        }
+        final FileLock lock = channel.lock(0, HEADER_SIZE, false);
+        try {
+            channel.truncate(0);
+            header.clear();
+            header.putInt(MAGIC).putInt(VERSION).putLong(keeper.getSignature()).putInt(Tile23.edge).
+                    putInt(slotCount);
+            header.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * @param source the source for the tile, normally an URL.
+     * @return the stored mapping for the source or null if not present.
+     */
+    public Tile23 get(String source) {
+        final byte[] digest = digest(source);
+        final int set = getSet(digest);
+        final ReentrantReadWriteLock.ReadLock lock = locks[set % LOCK_STRIPES].readLock();
+        lock.lock();
+        try {
+            for (int slot = set*2 ; slot < set*2+2 ; slot++) {
+                final ByteBuffer region = regions[slot / SLOTS_PER_REGION];
+                final int offset = (slot % SLOTS_PER_REGION) * SLOT_SIZE;
+                final int sequence = region.getInt(offset);
+                if ((sequence & 1) == 1 || !matches(region, offset+8, digest)) {
+                    continue;
+                }
+                final Tile23 tile;
+                try {
+                    tile = Tile23.load(region, offset + SLOT_HEADER_SIZE, keeper);
+                } catch (IllegalStateException e) { // Probably torn by another node
+                    log.debug("Unable to load mapping for " + source + " from slot " + slot, e);
+                    continue;
+                }
+                if (region.getInt(offset) != sequence) { // Written by another node while reading
+                    continue;
+                }
+                region.putLong(offset+24, System.currentTimeMillis());
+                hits.increment();
+                return tile;
+            }
+        } finally {
+            lock.unlock();
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Store the mapping for the source, overwriting the least recently used mapping in the set if needed.
+     * If another node is writing to the slot, the mapping is not stored.
+     * @param source the source for the tile, normally an URL.
+     * @param tile   the mapping for the source.
+     */
+    public void put(String source, Tile23 tile) {
+        final byte[] digest = digest(source);
+        final int set = getSet(digest);
+        final ReentrantReadWriteLock.WriteLock lock = locks[set % LOCK_STRIPES].writeLock();
+        lock.lock();
+        try {
+            int slot = -1;
+            long oldest = Long.MAX_VALUE;
+            for (int candidate = set*2 ; candidate < set*2+2 ; candidate++) {
+                final ByteBuffer region = regions[candidate / SLOTS_PER_REGION];
+                final int offset = (candidate % SLOTS_PER_REGION) * SLOT_SIZE;
+                if (matches(region, offset+8, digest)) { // Refresh of existing mapping
+                    slot = candidate;
+                    oldest = 0;
+                    break;
+                }
+                final long lastAccess = region.getLong(offset+24);
+                if (lastAccess < oldest) {
+                    oldest = lastAccess;
+                    slot = candidate;
+                }
+            }
+            write(slot, digest, tile, oldest != 0);
+        } catch (IOException | IllegalStateException e) {
+            log.warn("Unable to store mapping for " + source + " in " + file, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Must be called with the write lock for the set held
+    private void write(int slot, byte[] digest, Tile23 tile, boolean evicting) throws IOException {
+        final ByteBuffer region = regions[slot / SLOTS_PER_REGION];
+        final int offset = (slot % SLOTS_PER_REGION) * SLOT_SIZE;
+        final long position = HEADER_SIZE + (long)slot*SLOT_SIZE;
+        try (FileLock fileLock = channel.tryLock(position, SLOT_SIZE, false)) {
+            if (fileLock == null) {
+                skipped.increment();
+                return;
+            }
+            final int writing = region.getInt(offset) | 1;
+            region.putInt(offset, writing);
+            final ByteBuffer slotBuffer = region.duplicate();
+            slotBuffer.position(offset + SLOT_HEADER_SIZE);
+            tile.store(slotBuffer);
+            slotBuffer.position(offset + 8);
+            slotBuffer.put(digest);
+            slotBuffer.putLong(System.currentTimeMillis());
+            region.putInt(offset, writing+1);
+        }
+        writes.increment();
+        if (evicting) {
+            evictions.increment();
+        }
+    }
+
+    private boolean matches(ByteBuffer region, int offset, byte[] digest) {
+        for (int i = 0 ; i < digest.length ; i++) {
+            if (region.get(offset+i) != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int getSet(byte[] digest) {
+        final int hash = (0xFF & digest[0]) << 24 | (0xFF & digest[1]) << 16 | (0xFF & digest[2]) << 8 |
+                         (0xFF & digest[3]);
+        return Math.floorMod(hash, setCount);
+    }
+
+    private byte[] digest(String source) {
+        return md5.get().digest(source.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    public String getStats() {
+        return String.format(Locale.ENGLISH,
+                             "mappingStore(file=%s, slots=%d, hits=%d, misses=%d, writes=%d, evictions=%d, " +
+                             "skipped=%d)", file, slotCount, hits.sum(), misses.sum(), writes.sum(),
+                             evictions.sum(), skipped.sum());
+    }
+
+    @Override
+    public String toString() {
+        return "MappingStore(file=" + file + ", slots=" + slotCount + ", size=" +
+               ((long)slotCount*SLOT_SIZE + HEADER_SIZE)/1024/1024 + "MB)";
+    }
+}
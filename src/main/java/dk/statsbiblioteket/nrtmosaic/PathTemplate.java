@@ -0,0 +1,155 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Precompiled form of {@code imageserver.path.regexp} and {@code imageserver.path.replacement} for the common case
+ * where the regexp is a sequence of fixed width groups, such as {@code (.)(.)(.{4})(.{28})}. Applying the template
+ * copies hex digits directly from the UUID, without regular expression matching or intermediate Strings.
+ * </p><p>
+ * Regexps that are not fixed width groups are not supported by the template and must be applied as regexps.
+ */
+public final class PathTemplate {
+    private static final Pattern FIXED_GROUP = Pattern.compile("[(][.](?:[{]([0-9]+)[}])?[)]");
+
+    private final String[] literals;  // Literal for each part or null if the part is a group
+    private final int[] groupStarts;  // Start of the group in the hex representation of the UUID
+    private final int[] groupLengths;
+    private final int expectedLength;
+
+    /**
+     * @param regexp      a regexp for the 32 digit hex representation of a UUID.
+     * @param replacement the replacement for the regexp, with {@code $n} group references.
+     * @return a template equivalent to the regexp and replacement or null if the regexp is not supported.
+     */
+    public static PathTemplate compile(String regexp, String replacement) {
+        // Resolve group boundaries
+        final List<Integer> starts = new ArrayList<>();
+        final List<Integer> lengths = new ArrayList<>();
+        Matcher matcher = FIXED_GROUP.matcher(regexp);
+        int regexpPos = 0;
+        int hexPos = 0;
+        while (matcher.find()) {
+            if (matcher.start() != regexpPos) {
+                return null; // Something besides fixed width groups
+            }
+            final int length = matcher.group(1) == null ? 1 : Integer.parseInt(matcher.group(1));
+            starts.add(hexPos);
+            lengths.add(length);
+            hexPos += length;
+            regexpPos = matcher.end();
+        }
+        if (regexpPos != regexp.length() || hexPos != 32) {
+            return null;
+        }
+
+        // Split the replacement into literals and group references, following the rules of Matcher.appendReplacement
+        final List<String> literals = new ArrayList<>();
+        final List<Integer> groups = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0 ; i < replacement.length() ; i++) {
+            char c = replacement.charAt(i);
+            if (c == '\\') {
+                if (++i == replacement.length()) {
+                    return null;
+                }
+                literal.append(replacement.charAt(i));
+            } else if (c == '$') {
+                if (i+1 == replacement.length() || replacement.charAt(i+1) < '0' || replacement.charAt(i+1) > '9') {
+                    return null; // Named groups or malformed
+                }
+                int group = replacement.charAt(++i) - '0';
+                while (i+1 < replacement.length() && replacement.charAt(i+1) >= '0' &&
+                       replacement.charAt(i+1) <= '9' && group*10 + replacement.charAt(i+1) - '0' <= starts.size()) {
+                    group = group*10 + replacement.charAt(++i) - '0';
+                }
+                if (group > starts.size()) {
+                    return null;
+                }
+                if (literal.length() > 0) {
+                    literals.add(literal.toString());
+                    groups.add(-1);
+                    literal = new StringBuilder();
+                }
+                literals.add(null);
+                groups.add(group);
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            literals.add(literal.toString());
+            groups.add(-1);
+        }
+
+        final int parts = literals.size();
+        final String[] partLiterals = literals.toArray(new String[parts]);
+        final int[] groupStarts = new int[parts];
+        final int[] groupLengths = new int[parts];
+        for (int i = 0 ; i < parts ; i++) {
+            final int group = groups.get(i);
+            if (group > 0) {
+                groupStarts[i] = starts.get(group-1);
+                groupLengths[i] = lengths.get(group-1);
+            } else if (group == 0) { // The full match
+                groupLengths[i] = 32;
+            }
+        }
+        return new PathTemplate(partLiterals, groupStarts, groupLengths);
+    }
+
+    private PathTemplate(String[] literals, int[] groupStarts, int[] groupLengths) {
+        this.literals = literals;
+        this.groupStarts = groupStarts;
+        this.groupLengths = groupLengths;
+        int length = 0;
+        for (int i = 0 ; i < literals.length ; i++) {
+            length += literals[i] == null ? groupLengths[i] : literals[i].length();
+        }
+        expectedLength = length;
+    }
+
+    /**
+     * @param id the ID to create a path for.
+     * @return the path for the ID.
+     */
+    public String apply(UUID id) {
+        return apply(id, new StringBuilder(expectedLength)).toString();
+    }
+
+    /**
+     * @param id the ID to create a path for.
+     * @param sb the path is appended to this.
+     * @return the given StringBuilder.
+     */
+    public StringBuilder apply(UUID id, StringBuilder sb) {
+        for (int i = 0 ; i < literals.length ; i++) {
+            if (literals[i] != null) {
+                sb.append(literals[i]);
+            } else {
+                final int end = groupStarts[i] + groupLengths[i];
+                for (int d = groupStarts[i] ; d < end ; d++) {
+                    sb.append(id.getHexDigit(d));
+                }
+            }
+        }
+        return sb;
+    }
+}
@@ -20,10 +20,17 @@ import org.apache.commons.logging.Log;
 import javax.imageio.IIOException;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.UncheckedIOException;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -34,7 +41,16 @@ public class Prime {
     private static Log log = LogFactory.getLog(Prime.class);
     private final Keeper keeper;
 
+    private final TileSource tileSource;
     private final TileProvider tileProvider;
+    private final TilePrefetcher prefetcher;
+    private final EncodedTileCache responseCache;
+    private final EncodedTileCache corpusCache;
+    private final SingleFlight<String, EncodedTile> inFlightResponses;
+    private final WarmStart warmStart;
+    private final ImageMetadataStore metadataStore;
+    private final TileScheduler tileScheduler;
+    private final AncestorFallback ancestorFallback; // null if degraded delivery is disabled
     private final int FIRST_BASIC_LEVEL; // 8 at Statsbiblioteket
     private final int LAST_BASIC_LEVEL;
     private final int LAST_RENDER_LEVEL;
@@ -44,9 +60,18 @@ public class Prime {
     private final int FH;
     private static final DecimalFormat MS = new DecimalFormat("#0.00");
 
+    public static final String BASIC_DECODE = "decode";
+    public static final String BASIC_PASSTHROUGH = "passthrough";
+    public static final String BASIC_REDIRECT = "redirect";
+
     private final String IMAGE_SERVER;
+    private final String PUBLIC_IMAGE_SERVER;
+    private final String BASIC_MODE;
+    private final boolean BASIC_FROM_PYRAMID;
+    private final String EXTERNAL_PREFIX;
     private final Pattern IMAGE_SERVER_PATH_REGEXP;
     private final String IMAGE_SERVER_PATH_REPLACEMENT;
+    private final PathTemplate IMAGE_SERVER_PATH_TEMPLATE; // null if the regexp is not supported by PathTemplate
     private BufferedImage TURTLE = null;
 
     private static Prime singleton;
@@ -74,13 +99,42 @@ public class Prime {
         LAST_RENDER_LEVEL = LAST_BASIC_LEVEL + Config.getInt("pyramid.maxlevel");
         CorpusCreator.generateCache();
         keeper = new Keeper();
-        tileProvider = new TileProvider(keeper);
+        tileSource = TileSource.create();
+        tileProvider = new TileProvider(keeper, tileSource);
+        prefetcher = TilePrefetcher.create(tileProvider);
+        responseCache = EncodedTileCache.create("responseCache", "tile.encoded", keeper.getSignature());
+        corpusCache = EncodedTileCache.create("corpusCache", "tile.corpus", keeper.getSignature());
+        metadataStore = ImageMetadataStore.create();
+        if (VirtualThreads.isEnabled()) {
+            VirtualThreads.enable(Config.getInt("prime.virtualthreads.cputhreads"));
+            tileScheduler = new TileScheduler(Config.getInt("prime.virtualthreads.concurrency"),
+                                              Config.getInt("prime.async.queue"), VirtualThreads.factory("TileWorker-"));
+        } else {
+            tileScheduler = new TileScheduler(Config.getInt("prime.async.threads"), Config.getInt("prime.async.queue"));
+        }
+        ancestorFallback = AncestorFallback.create();
+        inFlightResponses = new SingleFlight<>("responseRenders", Config.getInt("tile.inflight.timeout.ms"));
         edge = Config.getInt("tile.edge");
         FW = Config.imhotep.getFractionWidth();
         FH = Config.imhotep.getFractionHeight();
         IMAGE_SERVER = Config.getString("imageserver");
+        PUBLIC_IMAGE_SERVER = Config.getString("imageserver.public").isEmpty() ?
+                IMAGE_SERVER : Config.getString("imageserver.public");
+        BASIC_MODE = Config.getString("prime.basic.mode");
+        if (!Arrays.asList(BASIC_DECODE, BASIC_PASSTHROUGH, BASIC_REDIRECT).contains(BASIC_MODE)) {
+            throw new IllegalArgumentException("prime.basic.mode must be one of " + BASIC_DECODE + ", " +
+                                               BASIC_PASSTHROUGH + " or " + BASIC_REDIRECT + " but was " + BASIC_MODE);
+        }
+        BASIC_FROM_PYRAMID = Config.getBool("prime.basic.frompyramid");
         IMAGE_SERVER_PATH_REGEXP = Pattern.compile(Config.getString("imageserver.path.regexp"));
         IMAGE_SERVER_PATH_REPLACEMENT = Config.getString("imageserver.path.replacement");
+        IMAGE_SERVER_PATH_TEMPLATE = PathTemplate.compile(
+                IMAGE_SERVER_PATH_REGEXP.pattern(), IMAGE_SERVER_PATH_REPLACEMENT);
+        if (IMAGE_SERVER_PATH_TEMPLATE == null) {
+            log.info("imageserver.path.regexp '" + IMAGE_SERVER_PATH_REGEXP.pattern() + "' is not a sequence of " +
+                     "fixed width groups. Paths will be derived using the regexp");
+        }
+        EXTERNAL_PREFIX = IMAGE_SERVER + "?DeepZoom=";
 
         TURTLE_LEVEL = Config.getInt("prime.turtlelevel");
         try {
@@ -89,49 +143,467 @@ public class Prime {
         } catch (NullPointerException | IOException e) {
             log.error("Unable to open turtle.png", e);
         }
+        // Pyramid pages are warmed first as it is local and fast, then tiles and responses that might need upstream
+        final List<WarmStart.Participant> participants = new ArrayList<>();
+        if (tileProvider.getPyramidParticipant() != null) {
+            participants.add(tileProvider.getPyramidParticipant());
+        }
+        participants.add(tileProvider.getTileParticipant());
+        participants.add(new ResponseParticipant("response", responseCache, true));
+        participants.add(new ResponseParticipant("corpus", corpusCache, false));
+        warmStart = WarmStart.create(keeper.getSignature(), participants.toArray(new WarmStart.Participant[0]));
+        if (warmStart != null) {
+            warmStart.replay();
+        }
         log.info("Prime constructed in " + MS.format((System.nanoTime() - startTime) / 1000000.0) + "ms");
     }
 
-    private static final Pattern DEEPZOOM = Pattern.compile("(.*)/([0-9]+)/([0-9]+)_([0-9]+)(.*)");
+    /**
+     * Stop background processing and persist the hot working set. Does nothing if Prime has not been initialized.
+     */
+    public static synchronized void shutdown() {
+        if (singleton == null) {
+            return;
+        }
+        log.info("Shutting down Prime");
+        if (singleton.warmStart != null) {
+            singleton.warmStart.shutdown();
+        }
+        if (singleton.prefetcher != null) {
+            singleton.prefetcher.shutdown();
+        }
+        singleton.tileProvider.shutdown();
+        singleton.metadataStore.close();
+        singleton.tileSource.close();
+        singleton.tileScheduler.shutdownNow();
+        VirtualThreads.shutdown();
+        if (singleton.ancestorFallback != null) {
+            singleton.ancestorFallback.shutdown();
+        }
+        singleton = null;
+    }
+
+    // Warms the memory tier of an encoded tile cache. Responses are rendered if not present in the disk tier
+    private final class ResponseParticipant implements WarmStart.Participant {
+        private final String name;
+        private final EncodedTileCache cache;
+        private final boolean render;
+
+        public ResponseParticipant(String name, EncodedTileCache cache, boolean render) {
+            this.name = name;
+            this.cache = cache;
+            this.render = render;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public List<String> getHotKeys(int max) {
+            return cache.getHottestKeys(max);
+        }
+
+        @Override
+        public int warm(List<String> keys) {
+            int warmed = 0;
+            for (String key: keys) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                try {
+                    if (cache.warm(key) || (render && renderResponse(key))) {
+                        warmed++;
+                    }
+                } catch (Exception e) {
+                    log.debug("Unable to warm " + name + " entry '" + key + "'", e);
+                }
+            }
+            return warmed;
+        }
+    }
+
+    // Render the response for a key created by toResponseKey
+    private boolean renderResponse(String key) throws IOException {
+        final Matcher keyMatch = RESPONSE_KEY.matcher(key);
+        if (!keyMatch.matches()) {
+            return false;
+        }
+        final EncodedTile tile = deepzoomEncoded(keyMatch.group(1), keyMatch.group(2), keyMatch.group(3));
+        if (tile != null) {
+            tile.getBytes(); // Releases the tile if it was delivered from disk
+        }
+        return tile != null;
+    }
+    private static final Pattern RESPONSE_KEY = Pattern.compile("(.*)[?]GAM=(.*)&CNT=(.*)");
+
+    /**
+     * Resolves the deepzoom tile as an encoded image, using the caches if possible. As rendering is deterministic
+     * for a given corpus, repeated requests are served without rendering or encoding.
+     * </p><p>
+     * Tiles at the basic and redirect levels are tiles from corpus images. They are cached by the identity of the
+     * corpus tile instead of the requested mosaic tile, as the same corpus tiles are used in many mosaics.
+     * </p><p>
+     * GAM and CNT are applied locally, see {@link ToneCurve}. Corpus tiles are fetched and cached in neutral form
+     * and variants are derived from the neutral tile, so only one fetch from the image server is needed.
+     * @return the encoded tile or null if no tile could be derived.
+     */
+    public EncodedTile deepzoomEncoded(String deepZoomSnippet, String gam, String cnt) throws IOException {
+        return toTileJob(DeepZoomSnippet.parse(deepZoomSnippet), gam, cnt).load();
+    }
+
+    /**
+     * Asynchronous version of {@link #deepzoomEncoded(String, String, String)}. Cached tiles are resolved directly
+     * in the calling thread. Other tiles are resolved by a bounded pool of worker threads, so that the number of
+     * threads used for fetching, rendering and encoding is independent of the number of concurrent requests.
+     * </p><p>
+     * Cancelling the returned future cancels the work for the tile, unless the work is shared with other requests,
+     * see {@link Cancellation}.
+     * </p><p>
+     * If {@code prime.degraded.deadline.ms} is set and the tile is not ready within the deadline or the workers are
+     * overloaded, the future is completed with a degraded tile from a cached ancestor, see {@link AncestorFallback}.
+     * @return a future with the encoded tile or null if no tile could be derived. If the workers are overloaded and
+     *         no degraded tile could be derived, the future fails with a {@link RejectedExecutionException}.
+     */
+    public CompletableFuture<EncodedTile> deepzoomEncodedAsync(String deepZoomSnippet, String gam, String cnt) {
+        return deepzoomEncodedAsync(deepZoomSnippet, gam, cnt, null);
+    }
+
+    /**
+     * Asynchronous version of {@link #deepzoomEncoded(String, String, String)}, where tiles that are not cached are
+     * prioritized by level and by fairness between clients, see {@link TileScheduler}.
+     * @param client the client requesting the tile, typically the remote address. Null means unknown.
+     * @see #deepzoomEncodedAsync(String, String, String)
+     */
+    public CompletableFuture<EncodedTile> deepzoomEncodedAsync(
+            String deepZoomSnippet, String gam, String cnt, String client) {
+        final DeepZoomSnippet snippet;
+        final TileJob job;
+        try {
+            snippet = DeepZoomSnippet.parse(deepZoomSnippet);
+            job = toTileJob(snippet, gam, cnt);
+            final EncodedTile cached = job.getCached();
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+        final Cancellation cancellation = new Cancellation();
+        final CompletableFuture<EncodedTile> future;
+        try {
+            future = CompletableFuture.supplyAsync(() -> {
+                try {
+                    // Requests abandoned while queued are skipped
+                    final EncodedTile tile = Cancellation.call(cancellation, job::load);
+                    // The future might be cancelled, time out or lose to a degraded tile, so the tile is detached
+                    // from the disk cache to avoid leaking segment references
+                    return tile == null ? null : tile.inMemory();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException("Exception resolving " + snippet, e);
+                }
+            }, tileScheduler.forTile(toCategory(snippet.getLevel()), snippet.getLevel(), client));
+        } catch (RejectedExecutionException e) {
+            final EncodedTile degraded = ancestorFallback == null ? null :
+                    ancestorFallback.fromAncestor(snippet, ancestor -> getCached(ancestor, gam, cnt));
+            return degraded == null ? failed(e) : CompletableFuture.completedFuture(degraded);
+        }
+        future.whenComplete((tile, error) -> {
+            if (future.isCancelled()) {
+                cancellation.cancel();
+            }
+        });
+        return ancestorFallback == null ? future :
+                ancestorFallback.withDeadline(future, snippet, ancestor -> getCached(ancestor, gam, cnt));
+    }
+
+    // The kind of work performed by deepzoom for the level
+    private TileScheduler.Category toCategory(int level) {
+        if (level >= TURTLE_LEVEL && TURTLE != null) {
+            return TileScheduler.Category.TURTLE;
+        } else if (level > LAST_RENDER_LEVEL) {
+            return TileScheduler.Category.REDIRECT;
+        } else if (level > LAST_BASIC_LEVEL) {
+            return TileScheduler.Category.RENDER;
+        }
+        return TileScheduler.Category.BASIC;
+    }
+
+    // The cached tile or null if the tile is not cached or cannot be resolved. Used for ancestors on the request
+    // and deadline threads, so only the caches are used. Redirect tiles also need the basic tile to be cached
+    private EncodedTile getCached(DeepZoomSnippet snippet, String gam, String cnt) {
+        try {
+            return toTileJob(snippet, gam, cnt).getCached();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    // Resolves where the tile is cached and how to produce it, without producing it or performing upstream requests
+    private TileJob toTileJob(DeepZoomSnippet snippet, String gam, String cnt) {
+        PyramidGrey23 pyramid = keeper.getPyramid(snippet);
+        if (pyramid == null && Config.getBool("prime.onlyallowknown")) {
+            throw new IllegalArgumentException("Requested DZI for unknown pyramid with query " + snippet);
+        }
+        final int level = snippet.getLevel();
+        final long fx = snippet.getFX();
+        final long fy = snippet.getFY();
+        final ToneCurve tone = ToneCurve.of(gam, cnt);
+
+        if (level < TURTLE_LEVEL || TURTLE == null) {
+            if (level > LAST_RENDER_LEVEL) {
+                return new RedirectJob(pyramid, snippet, tone);
+            }
+            if (level <= LAST_BASIC_LEVEL && pyramid != null) {
+                final Callable<EncodedTile> loader =
+                        BASIC_DECODE.equals(BASIC_MODE) || isOutsideBasic(pyramid, fx, fy, level) ||
+                        toPyramidLevel(pyramid, level) != -1 ?
+                                encoding(() -> deepzoom(snippet, null, null, false, false, null)) :
+                                () -> fetchBasicEncoded(snippet);
+                return toCorpusJob(pyramid.getID(), level, fx, fy, false, false, tone, loader);
+            }
+        }
+        return new KeyedJob(responseCache, toResponseKey(snippet, tone),
+                            encoding(() -> deepzoom(snippet, gam, cnt, false, false, null)));
+    }
+
+    // A tile and how to produce it if it is not cached
+    private abstract class TileJob {
+        // The cached tile or null. Only uses the caches, so it is safe to call from request and timer threads
+        public abstract EncodedTile getCached();
+
+        public abstract EncodedTile load() throws IOException;
+    }
+
+    // The cache entry for a tile and how to produce the tile if it is not cached
+    private final class KeyedJob extends TileJob {
+        private final EncodedTileCache cache;
+        private final String key;
+        private final Callable<EncodedTile> loader;
+
+        public KeyedJob(EncodedTileCache cache, String key, Callable<EncodedTile> loader) {
+            this.cache = cache;
+            this.key = key;
+            this.loader = loader;
+        }
+
+        @Override
+        public EncodedTile getCached() {
+            return cache.get(key);
+        }
+
+        @Override
+        public EncodedTile load() throws IOException {
+            return Prime.this.load(cache, key, loader);
+        }
+    }
+
+    // Redirect tiles are cached by the corpus tile they are delivered from. Resolving the corpus tile requires the
+    // mapped basic tile, which might have to be fetched and mapped. That is postponed until the tile is loaded
+    private final class RedirectJob extends TileJob {
+        private final PyramidGrey23 pyramid;
+        private final DeepZoomSnippet snippet;
+        private final ToneCurve tone;
+
+        public RedirectJob(PyramidGrey23 pyramid, DeepZoomSnippet snippet, ToneCurve tone) {
+            this.pyramid = pyramid;
+            this.snippet = snippet;
+            this.tone = tone;
+        }
+
+        @Override
+        public EncodedTile getCached() {
+            final KeyedJob job = toCorpusJob(true);
+            return job == null ? null : job.getCached();
+        }
+
+        @Override
+        public EncodedTile load() throws IOException {
+            return toCorpusJob(false).load();
+        }
+
+        // Null if cachedOnly is true and the basic tile is not mapped and cached
+        private KeyedJob toCorpusJob(boolean cachedOnly) {
+            final RedirectTarget target = resolveRedirect(pyramid, snippet.getPre(), snippet.getFX(),
+                                                          snippet.getFY(), snippet.getLevel(), snippet.getPost(),
+                                                          cachedOnly);
+            return target == null ? null :
+                    Prime.this.toCorpusJob(target.pyramid.getID(), target.level, target.fx, target.fy, true,
+                                           target.border, tone,
+                                           encoding(() -> deepzoom(target.getSnippet(), null, null, true,
+                                                                   target.border, null)));
+        }
+    }
+
+    /**
+     * If prime.basic.mode is redirect, tiles at the basic levels that are delivered unmodified by the image server
+     * are not proxied. Instead the client is redirected to the public image server. Tiles outside of the image and
+     * tiles with non-neutral GAM or CNT are still resolved locally, as the image server would not deliver them as
+     * intended.
+     * @return an URL to the tile on the public image server or null if the tile should be resolved locally.
+     */
+    public String getBasicRedirect(String deepZoomSnippet, String gam, String cnt) {
+        if (!BASIC_REDIRECT.equals(BASIC_MODE) || !ToneCurve.of(gam, cnt).isNeutral()) {
+            return null;
+        }
+        final DeepZoomSnippet snippet = DeepZoomSnippet.find(deepZoomSnippet);
+        if (snippet == null) {
+            return null; // Let the standard path produce the error
+        }
+        final int level = snippet.getLevel();
+        if (level > LAST_BASIC_LEVEL || (level >= TURTLE_LEVEL && TURTLE != null)) {
+            return null;
+        }
+        PyramidGrey23 pyramid = keeper.getPyramid(snippet);
+        if (pyramid == null || isOutsideBasic(pyramid, snippet.getFX(), snippet.getFY(), level) ||
+            toPyramidLevel(pyramid, level) != -1) {
+            return null;
+        }
+        return PUBLIC_IMAGE_SERVER + "?DeepZoom=" + deepZoomSnippet;
+    }
+
+    // Corpus tiles are cached in neutral form. Variants are derived from the neutral tile and cached separately
+    private KeyedJob toCorpusJob(UUID id, int level, long fx, long fy, boolean pad, boolean border,
+                                ToneCurve tone, Callable<EncodedTile> neutralLoader) {
+        final String neutralKey = toCorpusKey(id, level, fx, fy, pad, border, ToneCurve.NEUTRAL);
+        if (tone.isNeutral()) {
+            return new KeyedJob(corpusCache, neutralKey, neutralLoader);
+        }
+        return new KeyedJob(corpusCache, toCorpusKey(id, level, fx, fy, pad, border, tone), encoding(() -> {
+            EncodedTile neutral = load(corpusCache, neutralKey, neutralLoader);
+            return neutral == null ? null : tone.apply(ImageIO.read(new ByteArrayInputStream(neutral.getBytes())));
+        }));
+    }
+
+    private static Callable<EncodedTile> encoding(Callable<BufferedImage> renderer) {
+        return () -> {
+            final boolean[] fallback = new boolean[1];
+            BufferedImage image = TransientFallback.call(renderer, fallback);
+            if (image == null) {
+                return null;
+            }
+            EncodedTile encoded = VirtualThreads.onPlatform(() -> EncodedTile.encode(image));
+            return fallback[0] ? EncodedTile.uncacheable(encoded) : encoded;
+        };
+    }
+
+    private EncodedTile load(EncodedTileCache cache, String key, Callable<EncodedTile> loader) throws IOException {
+        EncodedTile encoded = cache.get(key);
+        if (encoded != null) {
+            return encoded;
+        }
+        try {
+            EncodedTile fresh = inFlightResponses.execute(key, () -> {
+                EncodedTile loaded = loader.call();
+                if (loaded != null && loaded.isCacheable()) {
+                    cache.put(key, loaded.getBytes());
+                }
+                return loaded;
+            });
+            // Tiles derived from this tile, e.g. with another tone curve, must not be cached either
+            if (fresh != null && !fresh.isCacheable()) {
+                TransientFallback.mark();
+            }
+            return fresh;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Basic tiles without padding are delivered as-is from the image server, avoiding decoding and re-encoding
+    private EncodedTile fetchBasicEncoded(DeepZoomSnippet snippet) throws IOException {
+        final long startTime = System.nanoTime();
+        final String external = toExternalURL(snippet.toString());
+        final byte[] bytes;
+        try {
+            bytes = tileSource.getTileBytes(external);
+        } catch (IOException e) {
+            throw new IIOException("Unable to read '" + external + "' as an image", e);
+        }
+        try {
+            if (EncodedTile.isJPEG(bytes)) {
+                return EncodedTile.of(bytes);
+            }
+            // Unexpected format from the image server, so it is normalised to the format of the other tiles
+            log.debug("Basic tile from '" + external + "' was not a JPEG. Re-encoding");
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+            if (image == null) {
+                throw new IOException("Unable to resolve external image '" + external + "'");
+            }
+            return EncodedTile.encode(image);
+        } finally {
+            if (log.isDebugEnabled()) {
+                log.debug("deepzoom basic tile for " + snippet + " passed through in " +
+                          MS.format((System.nanoTime() - startTime) / 1000000.0) + "ms");
+            }
+        }
+    }
+
+    // Identifies a tile from a corpus image, independent of the mosaic it is part of
+    private String toCorpusKey(UUID id, int level, long fx, long fy, boolean pad, boolean border,
+                               ToneCurve tone) {
+        return "corpus:" + id + "/" + level + "/" + fx + "_" + fy + (pad ? "_pad" : "") + (border ? "_border" : "") +
+               "?" + tone.getKey();
+    }
+
+    // Normalises the snippet, so that requests differing only in leading zeroes and similar share the cache entry
+    private String toResponseKey(DeepZoomSnippet snippet, ToneCurve tone) {
+        return snippet.toNormalised() + "?" + tone.getKey();
+    }
+
     public BufferedImage deepzoom(String deepZoomSnippet, String gam, String cnt) throws IOException {
-        return deepzoom(deepZoomSnippet, gam, cnt, false, false, null);
+        return deepzoom(DeepZoomSnippet.parse(deepZoomSnippet), gam, cnt, false, false, null);
     }
+
+    /**
+     * Resolve the deepzoom tile. Tiles are resolved in neutral form and GAM and CNT are applied locally afterwards.
+     * @param gam gamma, null for neutral.
+     * @param cnt contrast, null for neutral.
+     * @throws IllegalArgumentException if the snippet could not be parsed.
+     */
     public BufferedImage deepzoom(String deepZoomSnippet, String gam, String cnt, boolean pad, boolean border,
                                   Integer dynamicGrey) throws IOException {
+        return deepzoom(DeepZoomSnippet.parse(deepZoomSnippet), gam, cnt, pad, border, dynamicGrey);
+    }
 
+    // The snippet is parsed once per request and passed on through redirect and basic
+    private BufferedImage deepzoom(DeepZoomSnippet snippet, String gam, String cnt, boolean pad, boolean border,
+                                   Integer dynamicGrey) throws IOException {
         // /avis-show/symlinks/9/c/0/5/9c05d958-b616-47c1-9e4f-63ec2dd9429e.jp2_files/0/0_0.jpg
-        // Group 1                                                                    2 3 45
-        // /avis-show/symlinks/9/c/0/5/9c05d958-b616-47c1-9e4f-63ec2dd9429e.jp2_files
-        // 0
-        // 0
-        // 0
-        // .jpg
-
-        Matcher deepMatch = DEEPZOOM.matcher(deepZoomSnippet);
-        if (!deepMatch.matches()) {
-            throw new IllegalAccessError("The deepzoom request '" + deepZoomSnippet + "' could not be parsed");
-        }
-        PyramidGrey23 pyramid = keeper.getPyramid(deepZoomSnippet);
+        // pre                                                                        level/fx_fy post
+        PyramidGrey23 pyramid = keeper.getPyramid(snippet);
         if (pyramid == null && Config.getBool("prime.onlyallowknown")) {
-            throw new IllegalArgumentException("Requested DZI for unknown pyramid with query " + deepZoomSnippet);
+            throw new IllegalArgumentException("Requested DZI for unknown pyramid with query " + snippet);
         }
 
-        final String pre = deepMatch.group(1);
-        final int level = Integer.parseInt(deepMatch.group(2));
-        final long fx = Long.parseLong(deepMatch.group(3));
-        final long fy = Long.parseLong(deepMatch.group(4));
-        final String post = deepMatch.group(5);
+        final String pre = snippet.getPre();
+        final int level = snippet.getLevel();
+        final long fx = snippet.getFX();
+        final long fy = snippet.getFY();
+        final String post = snippet.getPost();
+        final ToneCurve tone = ToneCurve.of(gam, cnt);
 
         BufferedImage result;
         if (level >= TURTLE_LEVEL && TURTLE != null) {
             log.debug("deepzoom level " + level + " >= " + TURTLE_LEVEL + ", returning turtle");
-            result = TURTLE;
+            return TURTLE;
         } else if (level > LAST_RENDER_LEVEL) {
-            result = deepzoomRedirect(pre, fx, fy, level, post, gam, cnt);
+            result = tone.apply(deepzoomRedirect(pyramid, pre, fx, fy, level, post));
         } else if (level > LAST_BASIC_LEVEL) {
-            result = deepzoomRender(pre, fx, fy, level, post, gam, cnt);
+            result = tone.apply(deepzoomRender(pyramid, pre, fx, fy, level, post));
         } else {
-            result = deepZoomBasic(deepZoomSnippet, fx, fy, level, gam, cnt, pad, dynamicGrey);
+            result = tone.apply(deepZoomBasic(snippet, pyramid, pad, dynamicGrey));
         }
         if (border) {
             Util.drawBorder(result);
@@ -140,67 +612,134 @@ public class Prime {
     }
 
     // Topmost levels where NRTMosaic works as a plain image server
-    private BufferedImage deepZoomBasic(String deepZoomSnippet, long fx, long fy, int level, String gam, String cnt,
+    private BufferedImage deepZoomBasic(DeepZoomSnippet snippet, PyramidGrey23 pyramid,
                                         boolean pad, Integer dynamicGrey) throws IOException {
-        log.trace("deepzoom basic tile for " + deepZoomSnippet + ", pad=" + pad);
+        if (log.isTraceEnabled()) {
+            log.trace("deepzoom basic tile for " + snippet + ", pad=" + pad);
+        }
         final long startTime = System.nanoTime();
-        PyramidGrey23 pyramid = keeper.getPyramid(deepZoomSnippet);
+        final UUID id = snippet.getID();
 
-        if (pyramid != null) { // Check if the wanted tile is outside of the image pixels
-            final int sourceW = pyramid.getSourceWidth();
-            final int sourceH = pyramid.getSourceHeight();
-            if (sourceW == 0 || pyramid.getSourceHeight() == 0) {
-                log.warn("The pyramid for " + deepZoomSnippet + " has cached dimensions " + sourceW + "x" + sourceH);
-            }
-            final int zoomFactor = (int) (Math.pow(2, level - FIRST_BASIC_LEVEL));
-            long maxExistingX = (long) zoomFactor * sourceW / Util.EDGE;
-            long maxExistingY = (long) zoomFactor * sourceH / Util.EDGE;
-/*        log.info(fx + "x" + fy + " at level " + level + ": level-FBL=" + (level-FIRST_BASIC_LEVEL) + ", p.sw=" +
-                 sourceW + ", EDGE=" + Util.EDGE + ", 2^(l-FBL)=" + Math.pow(2, level-FIRST_BASIC_LEVEL) +
-                 ", 2^(l-FBL)*p.sw=" + (Math.pow(2, level - FIRST_BASIC_LEVEL) * pyramid.getSourceWidth()) +
-                 ", maxExistingX=" + maxExistingX);*/
-            if (fx > maxExistingX || fy > maxExistingY) {
-                log.trace("Basic image has no tile for " + fx + "x" + fy + " at level " + level + ". Returning blank");
-                return Util.getBlankTile(keeper.getFillGrey(deepZoomSnippet, dynamicGrey));
+        if (pyramid != null && isOutsideBasic(pyramid, snippet.getFX(), snippet.getFY(), snippet.getLevel())) {
+            if (log.isTraceEnabled()) {
+                log.trace("Basic image has no tile for " + snippet.getFX() + "x" + snippet.getFY() + " at level " +
+                          snippet.getLevel() + ". Returning blank");
             }
+            return Util.getBlankTile(keeper.getFillGrey(id, dynamicGrey));
+        }
+        final int pyramidLevel = pyramid == null ? -1 : toPyramidLevel(pyramid, snippet.getLevel());
+        if (pyramidLevel != -1) {
+            return deepZoomPyramid(snippet, pyramid, pyramidLevel, pad, keeper.getFillGrey(id, dynamicGrey));
         }
 
-        URL external = new URL(toExternalURL(gam, cnt, deepZoomSnippet));
+        final String external = toExternalURL(snippet.toString());
         try {
-            BufferedImage unpadded = ImageIO.read(external);
+            BufferedImage unpadded = tileSource.getTile(external);
             if (unpadded == null) {
                 throw new IOException("Unable to resolve external image '" + external + "'");
             }
             if (!pad) {
                 return unpadded;
             }
-            return Util.pad(unpadded, edge, edge, keeper.getFillGrey(deepZoomSnippet, dynamicGrey));
+            return Util.pad(unpadded, edge, edge, keeper.getFillGrey(id, dynamicGrey));
         } catch (IIOException e) {
             if (pad) {
-                log.debug("No basic tile at '" + deepZoomSnippet + "' but pad==true so default blank is returned");
-                return Util.getBlankTile(keeper.getFillGrey(deepZoomSnippet, dynamicGrey));
+                if (TileSource.isMissing(e)) {
+                    log.debug("No basic tile at '" + snippet + "' but pad==true so default blank is returned");
+                } else {
+                    log.debug("Unable to fetch basic tile at '" + snippet + "' but pad==true so temporary blank " +
+                              "is returned", e);
+                    TransientFallback.mark();
+                }
+                return Util.getBlankTile(keeper.getFillGrey(id, dynamicGrey));
             }
             throw new IIOException("Unable to read '" + external + "' as an image", e);
         } finally {
             if (log.isDebugEnabled()) {
-                log.debug("deepzoom basic tile for " + deepZoomSnippet + ", pad=" + pad + " piped in " +
+                log.debug("deepzoom basic tile for " + snippet + ", pad=" + pad + " piped in " +
                           MS.format((System.nanoTime() - startTime) / 1000000.0) + "ms");
             }
         }
     }
 
+    /**
+     * The pyramid for an image holds the image at {@link #FIRST_BASIC_LEVEL} in its top level and halved versions in
+     * the levels below, so the basic tiles at and below {@code FIRST_BASIC_LEVEL} can be derived directly from the
+     * pyramid without contacting the image server.
+     * @return the pyramid level corresponding to the basic level or -1 if the basic level is not available in the
+     *         pyramid.
+     */
+    private int toPyramidLevel(PyramidGrey23 pyramid, int level) {
+        if (!BASIC_FROM_PYRAMID || level > FIRST_BASIC_LEVEL) {
+            return -1;
+        }
+        final int pyramidLevel = pyramid.getMaxTileLevel() - (FIRST_BASIC_LEVEL - level);
+        if (pyramidLevel < 1) {
+            return -1;
+        }
+        // Sources larger than the pyramid canvas are cropped, so the pyramid does not represent the full image
+        final int maxEdge = pyramid.getTileEdge(pyramid.getMaxTileLevel());
+        final int sourceW = pyramid.getSourceWidth();
+        final int sourceH = pyramid.getSourceHeight();
+        if (sourceW == 0 || sourceH == 0 ||
+            sourceW > maxEdge * pyramid.getFractionWidth() || sourceH > maxEdge * pyramid.getFractionHeight()) {
+            return -1;
+        }
+        return pyramidLevel;
+    }
+
+    // Basic tile composed from the pyramid blocks, cropped to the image size at the level like the image server does
+    private BufferedImage deepZoomPyramid(DeepZoomSnippet snippet, PyramidGrey23 pyramid, int pyramidLevel,
+                                          boolean pad, int fillGrey) {
+        final long startTime = System.nanoTime();
+        final int scale = 1 << (FIRST_BASIC_LEVEL - snippet.getLevel());
+        final int levelW = (pyramid.getSourceWidth() + scale - 1) / scale;
+        final int levelH = (pyramid.getSourceHeight() + scale - 1) / scale;
+        final long x = snippet.getFX() * Util.EDGE;
+        final long y = snippet.getFY() * Util.EDGE;
+        final BufferedImage unpadded = x >= levelW || y >= levelH ? null : pyramid.renderRegion(
+                pyramidLevel, (int) x, (int) y,
+                (int) Math.min(Util.EDGE, levelW - x), (int) Math.min(Util.EDGE, levelH - y), fillGrey);
+        if (log.isDebugEnabled()) {
+            log.debug("deepzoom basic tile for " + snippet + ", pad=" + pad + " rendered from pyramid level " +
+                      pyramidLevel + " in " + MS.format((System.nanoTime() - startTime) / 1000000.0) + "ms");
+        }
+        if (unpadded == null) {
+            return Util.getBlankTile(fillGrey);
+        }
+        return pad ? Util.pad(unpadded, edge, edge, fillGrey) : unpadded;
+    }
+
+    // Check if the wanted basic tile is outside of the image pixels
+    private boolean isOutsideBasic(PyramidGrey23 pyramid, long fx, long fy, int level) {
+        final int sourceW = pyramid.getSourceWidth();
+        final int sourceH = pyramid.getSourceHeight();
+        if (sourceW == 0 || sourceH == 0) {
+            log.warn("The pyramid " + pyramid.getID() + " has cached dimensions " + sourceW + "x" + sourceH);
+        }
+        final int zoomFactor = (int) (Math.pow(2, level - FIRST_BASIC_LEVEL));
+        long maxExistingX = (long) zoomFactor * sourceW / Util.EDGE;
+        long maxExistingY = (long) zoomFactor * sourceH / Util.EDGE;
+/*        log.info(fx + "x" + fy + " at level " + level + ": level-FBL=" + (level-FIRST_BASIC_LEVEL) + ", p.sw=" +
+                 sourceW + ", EDGE=" + Util.EDGE + ", 2^(l-FBL)=" + Math.pow(2, level-FIRST_BASIC_LEVEL) +
+                 ", 2^(l-FBL)*p.sw=" + (Math.pow(2, level - FIRST_BASIC_LEVEL) * pyramid.getSourceWidth()) +
+                 ", maxExistingX=" + maxExistingX);*/
+        return fx > maxExistingX || fy > maxExistingY;
+    }
+
     // Middle level where NRTMosaic renders tiles
     private BufferedImage deepzoomRender(
-            String pre, long fx, long fy, int level, String post, String gam, String cnt) {
-        log.trace("deepzoom render tile for " + pre + ", " + fx + "x" + fy + ", level " + level);
+            PyramidGrey23 pyramid, String pre, long fx, long fy, int level, String post) {
+        if (log.isTraceEnabled()) {
+            log.trace("deepzoom render tile for " + pre + ", " + fx + "x" + fy + ", level " + level);
+        }
         final long startTime = System.nanoTime();
         final int zoomFactor = (int) Math.pow(2, level - LAST_BASIC_LEVEL);
 
         // Coordinates for the basic tile: ...3ec2dd9429e.jp2_files/LAST_BASIC_LEVEL/sourceFX_sourceFY
         final long basicFX = fx/zoomFactor;
         final long basicFY = fy/zoomFactor;
-        Tile23 tile = tileProvider.getTile(toExternalURL(
-                gam, cnt, pre + "/" + LAST_BASIC_LEVEL + "/" + basicFX + "_" + basicFY + post), true);
+        Tile23 tile = getBasicTile(pyramid, pre, basicFX, basicFY, post, false);
 
         // Upper left corner of the basic tile, measured in global coordinates
         final long origoFX = basicFX*zoomFactor;
@@ -211,9 +750,13 @@ public class Prime {
         final int renderFY = (int) (fy - origoFY);
         final int renderLevel = level - LAST_BASIC_LEVEL + 1;
 
-        BufferedImage image = tile.renderImage(renderFX, renderFY, renderLevel, null);
-        log.debug("deepzoom render from " + pre + " " + fx + "x" + fy + ", level " + level +
-                  " in " + MS.format((System.nanoTime()-startTime)/1000000.0) + "ms");
+        Cancellation.checkpoint();
+        BufferedImage image = VirtualThreads.computeOnPlatform(
+                () -> tile.renderImage(renderFX, renderFY, renderLevel, null));
+        if (log.isDebugEnabled()) {
+            log.debug("deepzoom render from " + pre + " " + fx + "x" + fy + ", level " + level +
+                      " in " + MS.format((System.nanoTime()-startTime)/1000000.0) + "ms");
+        }
         return image;
 //            return TileProvider.getTileRender("/home/te/tmp/nrtmosaic/256/source_9c05d958-b616-47c1-9e4f-63ec2dd9429e_13_13_13.jpg", 0, 0, 1);
     }
@@ -225,9 +768,20 @@ public class Prime {
     // .jpg
 
     // Bottom level where NRTMosaic passes tiles from the image server for different images
-    private BufferedImage deepzoomRedirect(String pre, long fx, long fy, int level, String post, String gam, String cnt)
-            throws IOException {
-        log.trace("deepzoom redirect tile for " + pre + ", " + fx + "x" + fy + ", level " + level);
+    private BufferedImage deepzoomRedirect(PyramidGrey23 sourcePyramid, String pre, long fx, long fy, int level,
+                                           String post) throws IOException {
+        RedirectTarget target = resolveRedirect(sourcePyramid, pre, fx, fy, level, post, false);
+        // TODO: Resolve tile to derive dynamic fill grey and send it forward to the basic
+        return deepzoom(target.getSnippet(), null, null, true, target.border, null);
+    }
+
+    // Resolves the corpus image tile that a redirect level tile is delivered from.
+    // If cachedOnly is true, null is returned if the basic tile is not already mapped and cached
+    private RedirectTarget resolveRedirect(PyramidGrey23 sourcePyramid, String pre, long fx, long fy, int level,
+                                           String post, boolean cachedOnly) {
+        if (log.isTraceEnabled()) {
+            log.trace("deepzoom redirect tile for " + pre + ", " + fx + "x" + fy + ", level " + level);
+        }
         final long startTime = System.nanoTime();
 
         final int zoomFactorToRender = (int) Math.pow(2, level - LAST_RENDER_LEVEL);
@@ -241,8 +795,10 @@ public class Prime {
         // Coordinates for the basic tile: ...3ec2dd9429e.jp2_files/LAST_BASIC_LEVEL/sFX_sourceFY
         final long basicFX = renderFX/zoomFactorToBasic;
         final long basicFY = renderFY/zoomFactorToBasic;
-        Tile23 tile = tileProvider.getTile(toExternalURL(
-                gam, cnt, pre + "/" + LAST_BASIC_LEVEL + "/" + basicFX + "_" + basicFY + post), true);
+        Tile23 tile = getBasicTile(sourcePyramid, pre, basicFX, basicFY, post, cachedOnly);
+        if (tile == null) {
+            return null;
+        }
 
         final long basicOrigoFX = basicFX*zoomFactorToBasic;
         final long basicOrigoFY = basicFY*zoomFactorToBasic;
@@ -292,21 +848,94 @@ public class Prime {
                 throw new IllegalStateException("Modulo 3 should always result in 0, 1 or 2. Input was " + pyramidY*2);
         }
 
+        RedirectTarget target = new RedirectTarget(pyramid, basicLevel, redirectFX, redirectFY, border);
+        if (log.isDebugEnabled()) {
+            log.debug("deepzoom redirect from " + pre + " " + fx + "x" + fy + ", level " + level + " to deepzoom " +
+                      target.getSnippet() + " in " + MS.format((System.nanoTime()-startTime)/1000000.0) + "ms");
+        }
+        return target;
+    }
+
+    private final class RedirectTarget {
+        private final PyramidGrey23 pyramid;
+        private final int level;
+        private final long fx;
+        private final long fy;
+        private final boolean border;
+
+        public RedirectTarget(PyramidGrey23 pyramid, int level, long fx, long fy, boolean border) {
+            this.pyramid = pyramid;
+            this.level = level;
+            this.fx = fx;
+            this.fy = fy;
+            this.border = border;
+        }
+
         // /avis-show/symlinks/9/c/0/5/9c05d958-b616-47c1-9e4f-63ec2dd9429e.jp2_files/0/0_0.jpg
-        final String basicSnippet = toBasicDeepzoomSnippet(pyramid, redirectFX, redirectFY, level);
-        log.debug("deepzoom redirect from " + pre + " " + fx + "x" + fy + ", level " + level + " to deepzoom " +
-                  basicSnippet + " in " + MS.format((System.nanoTime()-startTime)/1000000.0) + "ms");
-        // TODO: Resolve tile to derive dynamic fill grey and send it forward to the basic
-        return deepzoom(basicSnippet, gam, cnt, true, border, null);
+        public DeepZoomSnippet getSnippet() {
+            return DeepZoomSnippet.of(idToPath(pyramid.getID()) + "_files", level, fx, fy, ".jpg", pyramid.getID());
+        }
+    }
+
+    // Resolves the neutral mapping for the basic tile at LAST_BASIC_LEVEL, using the mapping index if possible.
+    // If cachedOnly is true, null is returned if the mapping is not cached and neighbours are not prefetched
+    private Tile23 getBasicTile(PyramidGrey23 pyramid, String pre, long basicFX, long basicFY, String post,
+                                boolean cachedOnly) {
+        final UUID id = pyramid == null ? null : pyramid.getID();
+        final String source = toBasicSource(pre, basicFX, basicFY, post);
+        Tile23 tile = cachedOnly ? tileProvider.getCachedTile(source) :
+                tileProvider.getTile(source, id, basicFX, basicFY, ToneCurve.NEUTRAL_GAM, ToneCurve.NEUTRAL_CNT,
+                                     true);
+        if (tile == null) {
+            return null;
+        }
+        if (prefetcher != null && !cachedOnly) {
+            final long[] counts = pyramid == null ? new long[]{Long.MAX_VALUE, Long.MAX_VALUE} :
+                    getBasicTileCounts(pyramid);
+            prefetcher.prefetchNeighbours(pre, id, basicFX, basicFY, counts[0], counts[1],
+                                          ToneCurve.NEUTRAL_GAM, ToneCurve.NEUTRAL_CNT,
+                                          (fx, fy) -> toBasicSource(pre, fx, fy, post));
+        }
+        return tile;
+    }
+
+    private String toBasicSource(String pre, long basicFX, long basicFY, String post) {
+        return toExternalURL(pre + "/" + LAST_BASIC_LEVEL + "/" + basicFX + "_" + basicFY + post);
     }
 
-    private String toBasicDeepzoomSnippet(PyramidGrey23 pyramid, long redirectFX, long redirectFY, int level) {
-        return String.format("%s_files/%d/%d_%d.jpg",
-                             idToPath(pyramid.getID()),
-                             level - LAST_RENDER_LEVEL + FIRST_BASIC_LEVEL, redirectFX, redirectFY);
+    /**
+     * Creates the source URL for the basic tile at {@code prime.lastbasiclevel}, in the same form as the source
+     * URLs for live requests from OpenSeadragon. Used for precomputing mappings. The source is neutral, i.e. without
+     * GAM and CNT.
+     * @param pyramid the pyramid for the mosaic source image.
+     * @param basicFX horizontal tile coordinate at {@code prime.lastbasiclevel}.
+     * @param basicFY vertical tile coordinate at {@code prime.lastbasiclevel}.
+     * @return the source URL.
+     */
+    String toBasicTileSource(PyramidGrey23 pyramid, long basicFX, long basicFY) {
+        return toExternalURL(idToPath(pyramid.getID()) + "_files/" + LAST_BASIC_LEVEL + "/" +
+                             basicFX + "_" + basicFY + ".jpg");
+    }
+
+    /**
+     * @param pyramid the pyramid for the mosaic source image.
+     * @return the number of basic tiles horizontally and vertically at {@code prime.lastbasiclevel},
+     *         using the same approximation as {@link #deepzoom(String, String, String)}.
+     */
+    long[] getBasicTileCounts(PyramidGrey23 pyramid) {
+        final long zoomFactor = (long) Math.pow(2, LAST_BASIC_LEVEL - FIRST_BASIC_LEVEL);
+        return new long[]{zoomFactor * pyramid.getSourceWidth() / Util.EDGE + 1,
+                          zoomFactor * pyramid.getSourceHeight() / Util.EDGE + 1};
+    }
+
+    public Keeper getKeeper() {
+        return keeper;
     }
 
     private String idToPath(UUID uuid) {
+        if (IMAGE_SERVER_PATH_TEMPLATE != null) {
+            return IMAGE_SERVER_PATH_TEMPLATE.apply(uuid);
+        }
         Matcher matcher = IMAGE_SERVER_PATH_REGEXP.matcher(uuid.toHex());
         if (!matcher.matches()) {
             throw new IllegalStateException("The uuid " + uuid.toHex() + " did not match pattern " + matcher.pattern());
@@ -314,40 +943,63 @@ public class Prime {
         return matcher.replaceFirst(IMAGE_SERVER_PATH_REPLACEMENT);
     }
 
-    private String toExternalURL(String gam, String cnt, String deepZoom) {
-        String url = IMAGE_SERVER + "?GAM=" + gam + "&CNT=" + cnt + "&DeepZoom=" + deepZoom;
-        log.trace("Redirecting to " + url);
+    // GAM and CNT are not passed on, as they are applied locally
+    private String toExternalURL(String deepZoom) {
+        String url = EXTERNAL_PREFIX + deepZoom;
+        if (log.isTraceEnabled()) {
+            log.trace("Redirecting to " + url);
+        }
         return url;
     }
 
-    private String toExternalDZIURL(String deepZoom) {
-        return IMAGE_SERVER + "?DeepZoom=" + deepZoom + ".dzi";
-    }
-
     public TileProvider getTileProvider() {
         return tileProvider;
     }
 
+    /**
+     * @return human readable statistics for caches and other internal structures, one line per structure.
+     */
+    public String getStats() {
+        return tileSource.getStats() + "\n" +
+               tileProvider.getStats() + "\n" +
+               (prefetcher == null ? "" : prefetcher.getStats() + "\n") +
+               responseCache.getStats() + "\n" +
+               corpusCache.getStats() + "\n" +
+               inFlightResponses.getStats() + "\n" +
+               (ancestorFallback == null ? "" : ancestorFallback.getStats() + "\n") +
+               UpstreamClient.getInstance().getStats() + "\n" +
+               metadataStore.getStats() + "\n" +
+               tileScheduler.getStats() + "\n" +
+               VirtualThreads.getStats() + "\n" +
+               (warmStart == null ? "" : warmStart.getStats() + "\n");
+    }
+
     // https://openseadragon.github.io/examples/tilesource-dzi/
 
     // The problem here is that the size interpolated from the Pyramid source widths are quite imprecise and leads
     // to image artefacts.
 
-    // Simple redirect to the external image server, with the slight twist that the size is inflated to trick
+    // The DZI is generated from the image metadata, with the slight twist that the size is inflated to trick
     // OpenSeadragon to accept deeper zoom
     public String getDZI(String deepZoom) {
-        return scaledDZI(deepZoom, getRawDZI(deepZoom));
+        final ImageMetadataStore.Metadata metadata = getMetadata(deepZoom);
+        final long dziFactor = (long) Math.pow(2, Config.getLong("prime.dzifactor"));
+        return metadata.toDZI(scale(deepZoom, "width", metadata.getWidth(), dziFactor),
+                              scale(deepZoom, "height", metadata.getHeight(), dziFactor));
+    }
 
-/*
-        if (pyramid == null) {
-            throw new NullPointerException("Unable to locate a pyramid for input '" + deepZoom + "'");
+    // Only the first request for a known image is resolved from the image server
+    private ImageMetadataStore.Metadata getMetadata(String deepZoom) {
+        PyramidGrey23 pyramid = keeper.getPyramid(deepZoom);
+        if (pyramid == null) { // Unknown images are not stored, as they can be anything
+            return ImageMetadataStore.Metadata.parseDZI(getRawDZI(deepZoom));
+        }
+        ImageMetadataStore.Metadata metadata = metadataStore.get(pyramid.getID());
+        if (metadata == null) {
+            metadata = ImageMetadataStore.Metadata.parseDZI(getRawDZI(deepZoom));
+            metadataStore.put(pyramid.getID(), metadata);
         }
-        long dziFactor = Config.getLong("prime.dzifactor");
-        log.info("Calc: " + pyramid.getSourceWidth() * dziFactor + "x" + pyramid.getSourceHeight() * dziFactor);
-        final long width = (long) (Math.pow(2, dziFactor) * pyramid.getSourceWidth() * dziFactor);
-        final long height = (long) (Math.pow(2, dziFactor) * pyramid.getSourceHeight() * dziFactor);
-        // TODO: Add check for overflow with JavaScript Double.MAX_INTEGER
-        return getDZIXML(width, height);*/
+        return metadata;
     }
 
     private String getRawDZI(String deepZoom) {
@@ -356,60 +1008,26 @@ public class Prime {
         if (pyramid == null && Config.getBool("prime.onlyallowknown")) {
             throw new IllegalArgumentException("Requested DZI for unknown pyramid with query " + deepZoom);
         }
-
-        String externalDZI;
-        URL externalURL;
-        try {
-            externalURL = new URL(toExternalDZIURL(deepZoom));
-        } catch (MalformedURLException e) {
-            String message = "Unable to derive external URL for '" + deepZoom + "'";
-            log.warn(message, e);
-            throw new IllegalArgumentException(message, e);
-        }
         try {
-            externalDZI = Util.fetchString(externalURL);
+            return tileSource.getDZI(deepZoom);
         } catch (IOException e) {
-            String message = "Unable to resolve DZI from image server for request " + deepZoom;
-            log.warn(message + " with derived external URL " + externalURL, e);
+            String message = "Unable to resolve DZI for request " + deepZoom;
+            log.warn(message + " from " + tileSource, e);
             throw new RuntimeException(message, e);
         }
-        return externalDZI;
     }
 
     // https://developer.mozilla.org/en-US/docs/Web/JavaScript/Reference/Global_Objects/Number/MAX_SAFE_INTEGER
     private long JAVASCRIPT_MAX = 9007199254740991L;
-    private String scaledDZI(String deepZoom, String DZI) {
-        long dziFactor = (long) Math.pow(2, Config.getLong("prime.dzifactor"));
-        long width = Long.parseLong(DZI.replaceFirst("(?s).*Width=\"([0-9]+)\".*", "$1"));
-        long height = Long.parseLong(DZI.replaceFirst("(?s).*Height=\"([0-9]+)\".*", "$1"));
-        if (width*dziFactor > JAVASCRIPT_MAX) {
-            log.error(
-                    "Problem scaling DZI for " + deepZoom + " as width " + width + " * dziFactor " + dziFactor + " is "
-                    + width*dziFactor + ", which is larger than the JavaScript integer max of " + JAVASCRIPT_MAX +
-                    ". The value will be rounded down to JavaScript max integer");
-        }
-        if (height*dziFactor > JAVASCRIPT_MAX) {
+    private long scale(String deepZoom, String designation, long size, long dziFactor) {
+        if (size*dziFactor > JAVASCRIPT_MAX) {
             log.error(
-                    "Problem scaling DZI for " + deepZoom + " as width " + width + " * dziFactor " + dziFactor + " is "
-                    + width*dziFactor + ", which is larger than the JavaScript integer max of " + JAVASCRIPT_MAX +
-                    ". The value will be rounded down to JavaScript max integer");
+                    "Problem scaling DZI for " + deepZoom + " as " + designation + " " + size + " * dziFactor " +
+                    dziFactor + " is " + size*dziFactor + ", which is larger than the JavaScript integer max of " +
+                    JAVASCRIPT_MAX + ". The value will be rounded down to JavaScript max integer");
         }
-        return DZI.
-                replaceFirst("(?s)(.*Width=\")([0-9]+)(\".*)",
-                             "$1" + Long.toString(Math.min(width*dziFactor, JAVASCRIPT_MAX)) + "$3").
-                replaceFirst("(?s)(.*Height=\")([0-9]+)(\".*)",
-                             "$1" + Long.toString(Math.min(height*dziFactor, JAVASCRIPT_MAX)) + "$3");
-    }
-
-/*    private String getDZIXML(long width, long height) {
-        long dziFactor = Config.getLong("prime.dzifactor");
-        return String.format("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
-                             "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\"\n" +
-                             "       Format=\"jpg\" Overlap=\"0\" TileSize=\"256\" >\n" +
-                             "    <Size Width=\"%d\" Height=\"%d\"/>\n" +
-                             "</Image>", width, height);
+        return Math.min(size*dziFactor, JAVASCRIPT_MAX);
     }
-  */
 
     public String getRandomImage() {
         return idToPath(keeper.getRandom().getID());
@@ -418,16 +1036,8 @@ public class Prime {
     // http://localhost/iipsrv/iipsrv.fcgi?DeepZoom=/home/te/projects/nrtmosaic/sample/0024b52b-f96a-4d70-b0fa-cec3f1bb1c83.tif.dzi
     public String getRandomImageJSON() {
         String image = getRandomImage();
-        String dzi = getRawDZI(image);
-        log.debug("Got raw DZI '" + dzi + "'");
-        try {
-            long width = Long.parseLong(dzi.replaceFirst("(?s).*Width=\"([0-9]+)\".*", "$1"));
-            long height = Long.parseLong(dzi.replaceFirst("(?s).*Height=\"([0-9]+)\".*", "$1"));
-
-            return String.format("{ \"image\":\"%s\", \"width\":\"%d\", \"height\":\"%d\" }",
-                                 image, width, height);
-        } catch (NumberFormatException e) {
-            throw new RuntimeException("NumberformatException extracting width and height from " + dzi, e);
-        }
+        ImageMetadataStore.Metadata metadata = getMetadata(image);
+        return String.format("{ \"image\":\"%s\", \"width\":\"%d\", \"height\":\"%d\" }",
+                             image, metadata.getWidth(), metadata.getHeight());
     }
 }
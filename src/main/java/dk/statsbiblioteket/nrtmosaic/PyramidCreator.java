@@ -17,7 +17,6 @@ package dk.statsbiblioteket.nrtmosaic;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.URL;
@@ -40,7 +39,7 @@ public class PyramidCreator {
         log.info("Creating pyramids from sources in " + sString);
         InputStream source;
         try {
-            source = Util.resolveURL(sString).openStream();
+            source = UpstreamClient.getInstance().openStream(Util.resolveURL(sString));
         } catch (IOException e) {
             throw new RuntimeException("Unable to open stream '" + sString + "'");
         }
@@ -97,7 +96,8 @@ public class PyramidCreator {
     public PyramidGrey23 breakDownImage(URL in) throws IOException {
         UUID uuid = new UUID(in.toString());
 
-        final BufferedImage greyImage = Util.ensureNoMissingGrey(Util.toGrey(ImageIO.read(in)));
+        final BufferedImage greyImage = Util.ensureNoMissingGrey(Util.toGrey(
+                UpstreamClient.getInstance().fetchImage(in)));
         final int sWidth = greyImage.getWidth();
         final int sHeight = greyImage.getHeight();
         final int averageGrey = Util.getAverageGrey(greyImage);
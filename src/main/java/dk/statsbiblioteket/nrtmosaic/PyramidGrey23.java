@@ -17,6 +17,8 @@ package dk.statsbiblioteket.nrtmosaic;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -43,6 +45,7 @@ public class PyramidGrey23 {
     private final int origo;
     private final int maxTileLevel; // 1:1x1, 2:2x2, 4:4x4, 5:16x16, 6:32:32, 7:64x64, 8:128x128
     private final int byteCount; // Number of significant bytes in data
+    private int ordinal = -1; // Position in the concatenated pyramid data, assigned by the Keeper
     // Shared offsets for locating the right tiles in the data
     private static final int[] tileOffsets; // Offset is byte offset, aligned to mod 8
 
@@ -256,6 +259,107 @@ public class PyramidGrey23 {
         return value;
     }
 
+    /**
+     * @return the position of the pyramid in the concatenated pyramid data or -1 if not assigned.
+     */
+    public int getOrdinal() {
+        return ordinal;
+    }
+    void setOrdinal(int ordinal) {
+        this.ordinal = ordinal;
+    }
+
+    /**
+     * @return the level of pyramid data that is always held on the heap.
+     */
+    public int getMemDataLevel() {
+        return MEM_DATA_LEVEL;
+    }
+
+    /**
+     * @return true if the pyramid data is backed by a memory mapped file.
+     */
+    public boolean isMapped() {
+        return backingData instanceof MappedByteBuffer;
+    }
+
+    /**
+     * Reads a single byte from each memory page holding the tiles for the given level, so that later reads from the
+     * level does not stall on page faults.
+     * @param level    the level to touch.
+     * @param pageSize the size of memory pages.
+     * @return the number of touched pages.
+     */
+    public int touchLevel(int level, int pageSize) {
+        if (level > maxTileLevel || level < 1) {
+            return 0;
+        }
+        final int start = origo + tileOffsets[level];
+        final int end = origo + tileOffsets[level+1];
+        int checksum = 0;
+        int pages = 0;
+        for (int index = start ; index < end ; index += pageSize - (index % pageSize)) {
+            checksum += backingData.get(index);
+            pages++;
+        }
+        touchSink = checksum;
+        return pages;
+    }
+    // Ensures that the reads in touchLevel are not optimized away
+    private static volatile int touchSink = 0;
+
+    /**
+     * @return the number of bytes used for all tiles at the given level.
+     */
+    public int getLevelBytes(int level) {
+        return tileOffsets[level+1]-tileOffsets[level];
+    }
+
+    /**
+     * Bulk read of all tiles at the given level. Does not synchronize on the backing data.
+     * @param level  the level to read.
+     * @param dest   destination for the data, must have room for {@link #getLevelBytes(int)} bytes from offset.
+     * @param offset the offset in dest.
+     */
+    public void readLevel(int level, byte[] dest, int offset) {
+        if (level > maxTileLevel || level < 1) {
+            throw new IllegalArgumentException(
+                    "Requested level=" + level + " with maxTileLevel=" + maxTileLevel);
+        }
+        if (level <= MEM_DATA_LEVEL) {
+            System.arraycopy(memData, tileOffsets[level], dest, offset, getLevelBytes(level));
+            return;
+        }
+        // The duplicate has its own position, so there is no need for synchronization
+        final ByteBuffer view = backingData.duplicate();
+        view.position(origo + tileOffsets[level]);
+        view.get(dest, offset, getLevelBytes(level));
+    }
+
+    /**
+     * Equivalent to {@link #copyPixels(int, int, int, int[], int, int, int, int)} but with the level data taken from
+     * a buffer previously filled with {@link #readLevel(int, byte[], int)}.
+     * @param levelData   data for the full level.
+     * @param levelOffset the offset for the level in levelData.
+     */
+    public void copyPixels(byte[] levelData, int levelOffset, int level, int fx, int fy, int[] canvas,
+                           int origoX, int origoY, int canvasWidth, int missingReplacement) {
+        final int tileEdge = getTileEdge(level);
+        final int dataOrigo = levelOffset + getTileOffset(level, fx, fy) - tileOffsets[level];
+        final int width = Math.min(tileEdge, canvasWidth-origoX);
+        for (int ty = 0 ; ty < tileEdge ; ty++) {
+            final int canvasOrigo = (origoY + ty) * canvasWidth + origoX;
+            // Overflow is clipped
+            final int txStart = Math.max(0, -canvasOrigo);
+            final int txEnd = Math.min(width, canvas.length-canvasOrigo);
+            final int dataRow = dataOrigo + ty*tileEdge;
+            for (int tx = txStart ; tx < txEnd ; tx++) {
+                final int grey = 0xFF & levelData[dataRow + tx];
+                canvas[canvasOrigo + tx] = grey == Util.MISSING_GREY ? missingReplacement : grey;
+            }
+        }
+    }
+
     public int getMaxTileLevel() {
         return maxTileLevel;
     }
@@ -431,6 +535,49 @@ public class PyramidGrey23 {
         }
     }
 
+    /**
+     * Renders a region of the full image at the given level, where the full image is the
+     * {@link #getFractionWidth()}x{@link #getFractionHeight()} blocks placed next to each other.
+     * </p><p>
+     * The region is clipped to the full image, so the returned image can be smaller than requested.
+     * @param level  zoom level, 1 to {@link #getMaxTileLevel()}.
+     * @param x      upper left corner X in the full image at the given level.
+     * @param y      upper left corner Y in the full image at the given level.
+     * @param width  wanted width.
+     * @param height wanted height.
+     * @param missingReplacement if a pixel is marked as missing, it will be filled with this grey.
+     * @return a greyscale image or null if the region is outside of the full image.
+     */
+    public BufferedImage renderRegion(int level, int x, int y, int width, int height, int missingReplacement) {
+        if (level > maxTileLevel || level < 1) {
+            throw new IllegalArgumentException(
+                    "Requested level=" + level + " with maxTileLevel=" + maxTileLevel);
+        }
+        final int tileEdge = getTileEdge(level);
+        final int canvasWidth = tileEdge * getFractionWidth();
+        final int canvasHeight = tileEdge * getFractionHeight();
+        width = Math.min(width, canvasWidth - x);
+        height = Math.min(height, canvasHeight - y);
+        if (x < 0 || y < 0 || width <= 0 || height <= 0) {
+            return null;
+        }
+
+        final int[] canvas = new int[canvasWidth*canvasHeight];
+        for (int fy = 0 ; fy < getFractionHeight() ; fy++) {
+            for (int fx = 0 ; fx < getFractionWidth() ; fx++) {
+                copyPixels(level, fx, fy, canvas, fx*tileEdge, fy*tileEdge, canvasWidth, missingReplacement);
+            }
+        }
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        final WritableRaster raster = image.getRaster();
+        final int[] row = new int[width];
+        for (int ry = 0 ; ry < height ; ry++) {
+            System.arraycopy(canvas, (y + ry) * canvasWidth + x, row, 0, width);
+            raster.setPixels(0, ry, width, 1, row);
+        }
+        return image;
+    }
+
     /**
      * Copies the given tile to the given position on the canvas.
      * @param level       zoom level.
@@ -0,0 +1,180 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Warms the memory pages of the memory mapped pyramid data that will be used for rendering a mapped {@link Tile23}.
+ * The levels above {@code pyramid.cache.level} are read from the concatenated pyramid files and with random access,
+ * the first render of a tile can stall on hundreds of page faults.
+ * </p><p>
+ * For each mapped tile, the referenced pyramids are touched for the next {@code pyramid.prefetch.levels} levels
+ * above the cached level. Pyramids are processed in ordinal order, which is file offset order, and the touching is
+ * rate limited to {@code pyramid.prefetch.pages} pages/second in a single background thread.
+ */
+public class PyramidPrefetcher {
+    private static Log log = LogFactory.getLog(PyramidPrefetcher.class);
+
+    private static final int PAGE_SIZE = 4096;
+    private static final int QUEUE_SIZE = 16;
+
+    private final int levels;
+    private final int pagesPerSecond;
+    private final ThreadPoolExecutor executor;
+
+    private final LongAdder tiles = new LongAdder();
+    private final LongAdder pyramids = new LongAdder();
+    private final LongAdder pages = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Creates a prefetcher from the setup properties {@code pyramid.prefetch.levels} and
+     * {@code pyramid.prefetch.pages}.
+     * @return a prefetcher or null if {@code pyramid.prefetch.levels} is 0.
+     */
+    public static PyramidPrefetcher create() {
+        final int levels = Config.getInt("pyramid.prefetch.levels");
+        return levels <= 0 ? null : new PyramidPrefetcher(levels, Config.getInt("pyramid.prefetch.pages"));
+    }
+
+    /**
+     * @param levels         the number of levels above the cached level to touch.
+     * @param pagesPerSecond the maximum number of pages to touch each second. 0 means no limit.
+     */
+    public PyramidPrefetcher(int levels, int pagesPerSecond) {
+        if (pagesPerSecond < 0) {
+            throw new IllegalArgumentException(
+                    "Config stated pyramid.prefetch.pages=" + pagesPerSecond + ". This should be >= 0");
+        }
+        this.levels = levels;
+        this.pagesPerSecond = pagesPerSecond;
+        executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE),
+                                          runnable -> {
+            Thread thread = new Thread(runnable, "PyramidPrefetcher");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        log.info("Created " + this);
+    }
+
+    /**
+     * Queue touching of the pyramids referenced by the tile. This call returns immediately.
+     * If the queue is full, the tile is ignored.
+     * @param tile a mapped tile.
+     */
+    public void prefetch(Tile23 tile) {
+        try {
+            executor.execute(() -> touch(tile));
+        } catch (RejectedExecutionException e) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Touch the pyramids referenced by the tile in the calling thread.
+     * @param tile a mapped tile.
+     * @return the number of touched pages.
+     */
+    int touch(Tile23 tile) {
+        final int touched = touch(getMappedPyramids(tile));
+        tiles.increment();
+        return touched;
+    }
+
+    /**
+     * Touch the given pyramids in the calling thread. Stops if the thread is interrupted.
+     * @param sorted memory mapped pyramids, sorted by ordinal.
+     * @return the number of touched pages.
+     */
+    int touch(List<PyramidGrey23> sorted) {
+        final long startTime = System.nanoTime();
+        int touched = 0;
+        for (PyramidGrey23 pyramid: sorted) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            for (int level = pyramid.getMemDataLevel()+1 ; level <= pyramid.getMemDataLevel()+levels ; level++) {
+                touched += pyramid.touchLevel(level, PAGE_SIZE);
+            }
+            // Rate limiting: Sleep if we are ahead of schedule
+            if (pagesPerSecond == 0) {
+                continue;
+            }
+            final long expectedNS = touched * 1000000000L / pagesPerSecond;
+            final long aheadNS = expectedNS - (System.nanoTime()-startTime);
+            if (aheadNS > 1000000) {
+                try {
+                    Thread.sleep(aheadNS/1000000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        pyramids.add(sorted.size());
+        pages.add(touched);
+        log.trace("Touched " + touched + " pages for " + sorted.size() + " pyramids in " +
+                  (System.nanoTime()-startTime)/1000000 + "ms");
+        return touched;
+    }
+
+    // The distinct memory mapped pyramids in the tile, in file offset order
+    private List<PyramidGrey23> getMappedPyramids(Tile23 tile) {
+        final BitSet seen = new BitSet();
+        final List<PyramidGrey23> sorted = new ArrayList<>();
+        for (int y = 0 ; y < Tile23.edge ; y++) {
+            for (int x = 0 ; x < Tile23.edge ; x++) {
+                final PyramidGrey23 pyramid = tile.getPyramid(x, y);
+                if (pyramid == null || pyramid.getOrdinal() < 0 || !pyramid.isMapped() ||
+                    seen.get(pyramid.getOrdinal())) {
+                    continue;
+                }
+                seen.set(pyramid.getOrdinal());
+                sorted.add(pyramid);
+            }
+        }
+        sorted.sort((p1, p2) -> Integer.compare(p1.getOrdinal(), p2.getOrdinal()));
+        return sorted;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public String getStats() {
+        return String.format(Locale.ENGLISH, "pyramidPrefetcher(queued=%d, tiles=%d, pyramids=%d, pages=%d, " +
+                                             "dropped=%d)",
+                             executor.getQueue().size(), tiles.sum(), pyramids.sum(), pages.sum(), dropped.sum());
+    }
+
+    @Override
+    public String toString() {
+        return "PyramidPrefetcher(levels=" + levels + ", pagesPerSecond=" + pagesPerSecond + ")";
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Reads the data for a single level from a set of pyramids into a scratch arena, in file offset order.
+ * Used by {@link Tile23#renderImage} for deep levels, where reading pyramid data in raster order for the rendered
+ * tile results in random access across the concatenated pyramid files.
+ * </p><p>
+ * Not thread safe. The arena is reused between plans in the same thread.
+ */
+final class PyramidReadPlan {
+    private static final ThreadLocal<byte[]> arenas = ThreadLocal.withInitial(() -> new byte[0]);
+
+    private final int level;
+    private final IdentityHashMap<PyramidGrey23, Integer> offsets = new IdentityHashMap<>();
+    private final List<PyramidGrey23> pyramids = new ArrayList<>();
+    private byte[] arena = null;
+
+    /**
+     * @param level the pyramid level to read data for.
+     */
+    public PyramidReadPlan(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Add the pyramid to the plan. Pyramids that are not memory mapped or are already added are ignored.
+     */
+    public void add(PyramidGrey23 pyramid) {
+        if (pyramid != null && pyramid.isMapped() && pyramid.getOrdinal() >= 0 && !offsets.containsKey(pyramid)) {
+            offsets.put(pyramid, -1);
+            pyramids.add(pyramid);
+        }
+    }
+
+    /**
+     * Read the level data for all added pyramids into the arena, sorted by ordinal, which is file offset order.
+     */
+    public void execute() {
+        if (pyramids.isEmpty()) {
+            return;
+        }
+        pyramids.sort((p1, p2) -> Integer.compare(p1.getOrdinal(), p2.getOrdinal()));
+        final int levelBytes = pyramids.get(0).getLevelBytes(level);
+        final int needed = levelBytes*pyramids.size();
+        arena = arenas.get();
+        if (arena.length < needed) {
+            arena = new byte[needed];
+            arenas.set(arena);
+        }
+        int offset = 0;
+        for (PyramidGrey23 pyramid: pyramids) {
+            pyramid.readLevel(level, arena, offset);
+            offsets.put(pyramid, offset);
+            offset += levelBytes;
+        }
+    }
+
+    /**
+     * Copy pixels from the arena if the pyramid and level is part of the plan, else from the pyramid.
+     * Same semantics as {@link PyramidGrey23#copyPixels(int, int, int, int[], int, int, int, int)}.
+     */
+    public void copyPixels(PyramidGrey23 pyramid, int level, int fx, int fy, int[] canvas, int origoX, int origoY,
+                           int canvasWidth, int missingReplacement) {
+        final Integer offset = level == this.level && arena != null ? offsets.get(pyramid) : null;
+        if (offset == null || offset < 0) {
+            pyramid.copyPixels(level, fx, fy, canvas, origoX, origoY, canvasWidth, missingReplacement);
+            return;
+        }
+        pyramid.copyPixels(arena, offset, level, fx, fy, canvas, origoX, origoY, canvasWidth, missingReplacement);
+    }
+
+    public int size() {
+        return pyramids.size();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of extra requests, such as retries and hedged requests, relative to the number of original
+ * requests. Each original request deposits {@code ratio} tokens and each extra request withdraws 1 token, so that
+ * extra requests are at most {@code ratio} of the normal traffic. A small trickle of {@code minPerSecond} tokens
+ * makes it possible to retry when traffic is low.
+ * </p><p>
+ * When the image server has problems, most requests fails and the budget is quickly exhausted. This prevents retries
+ * from multiplying the load on a server that is already struggling.
+ */
+public class RetryBudget {
+    private static final double ROUNDING = 1.0E-9; // 10 * 0.1 is not quite 1 with doubles
+
+    private final double ratio;
+    private final double minPerSecond;
+    private final double maxBalance;
+
+    private double balance;
+    private long lastRefillNS = System.nanoTime();
+
+    private long deposits = 0;
+    private long withdrawals = 0;
+    private long exhausted = 0;
+
+    /**
+     * @return a budget created from the setup properties {@code upstream.retry.budget.ratio} and
+     *         {@code upstream.retry.budget.minpersecond}.
+     */
+    public static RetryBudget create() {
+        return new RetryBudget(Double.parseDouble(Config.getString("upstream.retry.budget.ratio")),
+                               Config.getInt("upstream.retry.budget.minpersecond"));
+    }
+
+    /**
+     * @param ratio        the maximum number of extra requests for each original request, e.g. 0.1 for 10%.
+     * @param minPerSecond extra requests that are always allowed per second, regardless of ratio.
+     */
+    public RetryBudget(double ratio, double minPerSecond) {
+        this.ratio = ratio;
+        this.minPerSecond = minPerSecond;
+        // The balance is capped to avoid bursts of retries after a long period of good traffic
+        this.maxBalance = Math.max(1, Math.max(minPerSecond, 100*ratio));
+        this.balance = Math.max(1, minPerSecond);
+    }
+
+    /**
+     * Register an original request.
+     */
+    public synchronized void deposit() {
+        deposits++;
+        balance = Math.min(maxBalance, balance + ratio);
+    }
+
+    /**
+     * Request permission for an extra request.
+     * @return true if the extra request is within the budget.
+     */
+    public synchronized boolean tryWithdraw() {
+        final long now = System.nanoTime();
+        balance = Math.min(maxBalance, balance + minPerSecond * (now - lastRefillNS) / TimeUnit.SECONDS.toNanos(1));
+        lastRefillNS = now;
+        if (balance < 1 - ROUNDING) {
+            exhausted++;
+            return false;
+        }
+        balance = Math.max(0, balance - 1);
+        withdrawals++;
+        return true;
+    }
+
+    public synchronized String getStats() {
+        return String.format(Locale.ENGLISH, "retryBudget(ratio=%.2f, balance=%.1f, deposits=%d, withdrawals=%d, " +
+                                             "exhausted=%d)", ratio, balance, deposits, withdrawals, exhausted);
+    }
+}
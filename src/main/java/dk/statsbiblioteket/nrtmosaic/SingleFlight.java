@@ -0,0 +1,190 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent calls for the same key, so that only one call (the leader) performs the work and all
+ * concurrent callers for the key (the waiters) receive the result or the exception from the leader.
+ * </p><p>
+ * Waiters give up after a timeout. The leader is not affected by the timeout and will finish the job.
+ * Results are not retained after the leader finishes: Caching is the responsibility of the caller.
+ * </p><p>
+ * The job is performed with a {@link Cancellation} that is only cancelled when the {@link Cancellation#current()}
+ * for the leader and all waiters have been cancelled. A cancelled waiter stops waiting immediately, while the job
+ * continues as long as another caller wants the result.
+ */
+public class SingleFlight<K, V> {
+    private final String designation;
+    private final long timeoutMS;
+    private final ConcurrentHashMap<K, Flight<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder leaders = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+
+    /**
+     * @param designation name of the structure, used for statistics.
+     * @param timeoutMS   the maximum number of milliseconds a waiter waits for the leader.
+     */
+    public SingleFlight(String designation, long timeoutMS) {
+        this.designation = designation;
+        this.timeoutMS = timeoutMS;
+    }
+
+    /**
+     * Perform the job or wait for an already running job for the same key.
+     * @param key    the key for the job, typically a source URL.
+     * @param loader the job to perform if no other job is running for the key.
+     * @return the result from the loader.
+     * @throws RuntimeException the exception thrown by the loader. IOExceptions are wrapped as
+     *                          UncheckedIOException and other checked exceptions as RuntimeException.
+     * @throws IllegalStateException if waiting for another thread exceeded the timeout or was interrupted.
+     * @throws CancellationException if the caller or all callers for the job were cancelled.
+     */
+    public V execute(K key, Callable<V> loader) {
+        final Cancellation member = Cancellation.current();
+        while (true) {
+            final Flight<V> flight = new Flight<>();
+            final Flight<V> existing = inFlight.putIfAbsent(key, flight);
+            if (existing == null) {
+                return lead(key, flight, member, loader);
+            }
+            final Runnable leave = existing.interest.join(member);
+            if (leave != null) {
+                coalesced.increment();
+                return await(key, existing, member, leave);
+            }
+            // All callers have abandoned the existing job, which is about to stop, so a new job is started
+            if (inFlight.replace(key, existing, flight)) {
+                return lead(key, flight, member, loader);
+            }
+        }
+    }
+
+    private V lead(K key, Flight<V> flight, Cancellation member, Callable<V> loader) {
+        leaders.increment();
+        flight.interest.join(member);
+        try {
+            V value = Cancellation.call(flight.interest.getCancellation(), () -> {
+                Cancellation.checkpoint();
+                return loader.call();
+            });
+            flight.future.complete(value);
+            return value;
+        } catch (Exception e) {
+            if (e instanceof CancellationException) {
+                cancelled.increment();
+            }
+            flight.future.completeExceptionally(e);
+            throw wrap(key, e);
+        } catch (Error e) {
+            flight.future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    private V await(K key, Flight<V> flight, Cancellation member, Runnable leave) {
+        CompletableFuture<V> future = flight.future;
+        if (member != Cancellation.NONE) {
+            // A separate future makes it possible to stop waiting without affecting the other waiters
+            final CompletableFuture<V> own = new CompletableFuture<>();
+            flight.future.whenComplete((value, error) -> {
+                if (error == null) {
+                    own.complete(value);
+                } else {
+                    own.completeExceptionally(error);
+                }
+            });
+            member.onCancel(() -> own.cancel(false));
+            future = own;
+        }
+        try {
+            return future.get(timeoutMS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            timeouts.increment();
+            leave.run();
+            throw new IllegalStateException("Timeout after " + timeoutMS + "ms waiting for " + key, e);
+        } catch (CancellationException e) {
+            cancelled.increment();
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            leave.run();
+            throw new IllegalStateException("Interrupted while waiting for " + key, e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw wrap(key, (Exception) cause);
+        }
+    }
+
+    private RuntimeException wrap(K key, Exception e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if (e instanceof IOException) {
+            return new UncheckedIOException("IOException while processing " + key, (IOException) e);
+        }
+        return new RuntimeException("Exception while processing " + key, e);
+    }
+
+    /**
+     * @return the number of jobs currently running.
+     */
+    public int size() {
+        return inFlight.size();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public String getStats() {
+        return String.format(Locale.ENGLISH, "%s(inFlight=%d, leaders=%d, coalesced=%d, timeouts=%d, cancelled=%d)",
+                             designation, inFlight.size(), leaders.sum(), coalesced.sum(), timeouts.sum(),
+                             cancelled.sum());
+    }
+
+    @Override
+    public String toString() {
+        return getStats();
+    }
+
+    // A running job and the callers interested in the result
+    private static final class Flight<V> {
+        private final CompletableFuture<V> future = new CompletableFuture<>();
+        private final Cancellation.Interest interest = new Cancellation.Interest();
+    }
+}
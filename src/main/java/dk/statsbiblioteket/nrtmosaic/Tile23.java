@@ -18,6 +18,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 /**
@@ -28,10 +29,18 @@ public class Tile23 {
     private static final Log log = LogFactory.getLog(Tile23.class);
 
     public static final int edge = Config.getInt("tile.edge");
+    private static final boolean SORTED_READS = !"direct".equals(Config.getString("tile.render.strategy"));
      // Potential optimization: 1/3 of these are always empty.
     private final PyramidGrey23[] pyramids = new PyramidGrey23[edge*edge];
     private final byte[] dynamicGreys = new byte[edge*edge];
 
+    // Serialized form: For each mapped row (y*2%3 != 2), edge * (3 bytes pyramid ordinal + 1 byte dynamic grey)
+    private static final int MAPPED_ROWS = countMappedRows();
+    public static final int SERIALIZED_SIZE = MAPPED_ROWS*edge*4;
+    private static final int NO_PYRAMID = 0xFFFFFF;
+    // Approximate heap usage: 4 bytes/reference (compressed oops) + 1 byte/dynamic grey + object and array headers
+    public static final long MEMORY_BYTES = edge*edge*(4L+1) + 64;
+
     public void setPyramid(int x, int y, PyramidGrey23 pyramid, int wantedAverage) {
         pyramids[y*edge+x] = pyramid;
         dynamicGreys[y*edge+x] = (byte) pyramid.getDynamic(wantedAverage);
@@ -114,6 +123,74 @@ public class Tile23 {
         return tile;
     }
 
+    /**
+     * Writes the mapping to the buffer at its current position, advancing the position {@link #SERIALIZED_SIZE}.
+     * Pyramids are referenced by {@link PyramidGrey23#getOrdinal()}, so the serialized form is only valid for the
+     * pyramid corpus with the same {@link Keeper#getSignature()}.
+     * @param out destination for the serialized mapping.
+     */
+    public void store(ByteBuffer out) {
+        for (int y = 0 ; y < edge ; y++) {
+            if (y*2%3 == 2) {
+                continue;
+            }
+            for (int x = 0 ; x < edge ; x++) {
+                final PyramidGrey23 pyramid = pyramids[y*edge+x];
+                final int ordinal = pyramid == null ? NO_PYRAMID : pyramid.getOrdinal();
+                if (ordinal < 0 || ordinal > NO_PYRAMID) {
+                    throw new IllegalStateException("Unable to serialize " + pyramid + " with ordinal " + ordinal);
+                }
+                out.put((byte) (ordinal >>> 16));
+                out.put((byte) (ordinal >>> 8));
+                out.put((byte) ordinal);
+                out.put(dynamicGreys[y*edge+x]);
+            }
+        }
+    }
+
+    /**
+     * Creates a Tile from the serialized form produced by {@link #store(ByteBuffer)}.
+     * Only absolute gets are used, so the buffer can be shared between threads.
+     * @param in     the serialized mapping.
+     * @param offset the start of the serialized mapping in the buffer.
+     * @param keeper provider of the pyramids referenced by ordinal.
+     * @return the deserialized tile.
+     */
+    public static Tile23 load(ByteBuffer in, int offset, Keeper keeper) {
+        Tile23 tile = new Tile23();
+        int index = offset;
+        for (int y = 0 ; y < edge ; y++) {
+            if (y*2%3 == 2) {
+                continue;
+            }
+            for (int x = 0 ; x < edge ; x++) {
+                final int ordinal = (0xFF & in.get(index)) << 16 | (0xFF & in.get(index+1)) << 8 |
+                                    (0xFF & in.get(index+2));
+                if (ordinal != NO_PYRAMID) {
+                    final PyramidGrey23 pyramid = keeper.getPyramid(ordinal);
+                    if (pyramid == null) {
+                        throw new IllegalStateException(
+                                "Unable to resolve pyramid with ordinal " + ordinal + " for " + x + "x" + y);
+                    }
+                    tile.pyramids[y*edge+x] = pyramid;
+                }
+                tile.dynamicGreys[y*edge+x] = in.get(index+3);
+                index += 4;
+            }
+        }
+        return tile;
+    }
+
+    private static int countMappedRows() {
+        int rows = 0;
+        for (int y = 0 ; y < edge ; y++) {
+            if (y*2%3 != 2) {
+                rows++;
+            }
+        }
+        return rows;
+    }
+
     /**
      * @param subTileX logical x within the tile: Level 1 has [0..0], l2 has [0..1], l3 has [0..3], l4 has [0..7].
      * @param subTileY same principle as subTileX.
@@ -121,6 +198,17 @@ public class Tile23 {
      * @return a mosaic that should look approximately like the source at the given z level.
      */
     public BufferedImage renderImage(final int subTileX, final int subTileY, final int level, BufferedImage reuse) {
+        return renderImage(subTileX, subTileY, level, reuse, SORTED_READS);
+    }
+
+    /**
+     * @param sortedReads if true and the pyramid data for the level is not held on the heap, the data for all needed
+     *                    pyramids are read in file offset order before rendering, instead of in raster order during
+     *                    rendering. The result is the same. The default is taken from {@code tile.render.strategy}.
+     * @see #renderImage(int, int, int, BufferedImage)
+     */
+    public BufferedImage renderImage(final int subTileX, final int subTileY, final int level, BufferedImage reuse,
+                                     boolean sortedReads) {
         final long startNS = System.nanoTime();
         final int pyramidLevel = level-1;
         if (reuse == null) {
@@ -149,6 +237,8 @@ public class Tile23 {
 //        log.debug("Rendering source cutout (" + startX + ", " + startY + "), (" +
 //                  (startX+levelEdge) + ", " + (startY+levelEdge) + ") with zoomFactor=" + zoomFactor +
 //                  " and levelEdge=" + levelEdge);
+        final PyramidReadPlan plan = sortedReads && pyramidLevel > Config.imhotep.getMemDataLevel() ?
+                createReadPlan(startX, startY, levelEdge, pyramidLevel) : null;
         // startY+levelEdge+1 to avoid black rectangles at the bottom, due to non-square pyramid aspect ratio
         for (int sourceY = startY ; sourceY < startY+levelEdge+1 && sourceY < edge ; sourceY++) {
             for (int sourceX = startX; sourceX < startX+levelEdge; sourceX++) {
@@ -163,7 +253,7 @@ public class Tile23 {
                         if (pyramid == null) {
                             continue; // Bit dangerous as we do not discover if everything is null
                         }
-                        renderTop(pyramid, pyramidLevel, canvas, canvasX, canvasY, getDynamic(sourceX, sourceY));
+                        renderTop(plan, pyramid, pyramidLevel, canvas, canvasX, canvasY, getDynamic(sourceX, sourceY));
                         break;
                     }
                     case 2:   // None (1, 4, 7, 10...)
@@ -172,7 +262,7 @@ public class Tile23 {
                         if (pyramidTop == null || pyramidBottom == null) {
                             continue; // Bit dangerous as we do not discover if everything is null
                         }
-                        renderDual(pyramidTop, pyramidBottom, pyramidLevel, canvas, canvasX, canvasY,
+                        renderDual(plan, pyramidTop, pyramidBottom, pyramidLevel, canvas, canvasX, canvasY,
                                    getDynamic(sourceX, sourceY-1), getDynamic(sourceX, sourceY+1));
                         break;
                     case 1: { // Bottom-up (2, 5, 8, 11...)
@@ -180,7 +270,7 @@ public class Tile23 {
                         if (pyramid == null) {
                             continue; // Bit dangerous as we do not discover if everything is null
                         }
-                        renderBottom(pyramid, pyramidLevel, canvas, canvasX, canvasY, getDynamic(sourceX, sourceY));
+                        renderBottom(plan, pyramid, pyramidLevel, canvas, canvasX, canvasY, getDynamic(sourceX, sourceY));
                         break;
                     }
                 }
@@ -189,13 +279,43 @@ public class Tile23 {
         reuse.getRaster().setPixels(0, 0, edge, edge, canvas);
         if (log.isTraceEnabled()) {
             log.trace("Rendered tile for " + subTileX + "x" + subTileY + ", level " + level + " in " +
-                      (System.nanoTime() - startNS) + "ns");
+                      (System.nanoTime() - startNS) + "ns" + (plan == null ? "" : " with " + plan.size() +
+                                                                   " sorted pyramid reads"));
         }
         return reuse;
     }
 
+    // Reads the level data for all pyramids used by the same source area as renderImage, in file offset order
+    private PyramidReadPlan createReadPlan(int startX, int startY, int levelEdge, int pyramidLevel) {
+        final PyramidReadPlan plan = new PyramidReadPlan(pyramidLevel);
+        for (int sourceY = startY ; sourceY < startY+levelEdge+1 && sourceY < edge ; sourceY++) {
+            for (int sourceX = startX; sourceX < startX+levelEdge; sourceX++) {
+                if (sourceY * 2 % 3 == 2) {
+                    plan.add(getPyramid(sourceX, sourceY-1));
+                    if (sourceY+1 < edge) {
+                        plan.add(getPyramid(sourceX, sourceY+1));
+                    }
+                } else {
+                    plan.add(getPyramid(sourceX, sourceY));
+                }
+            }
+        }
+        plan.execute();
+        return plan;
+    }
+
+    // Copies from the read plan if present, else directly from the pyramid
+    private static void copyPixels(PyramidReadPlan plan, PyramidGrey23 pyramid, int level, int fx, int fy,
+                                   int[] canvas, int origoX, int origoY, int dynamic) {
+        if (plan == null) {
+            pyramid.copyPixels(level, fx, fy, canvas, origoX, origoY, edge, dynamic);
+        } else {
+            plan.copyPixels(pyramid, level, fx, fy, canvas, origoX, origoY, edge, dynamic);
+        }
+    }
+
     // Render top 2/3 of the Pyramid, which will be square
-    private void renderTop(PyramidGrey23 pyramid, final int level, final int[] canvas,
+    private void renderTop(PyramidReadPlan plan, PyramidGrey23 pyramid, final int level, final int[] canvas,
                            final int canvasOrigoX, final int canvasOrigoY, int dynamic) {
         if (level == 0) {
             pyramid.copyPixels(1, 0, 0, canvas, canvasOrigoX, canvasOrigoY, edge, dynamic);
@@ -207,8 +327,8 @@ public class Tile23 {
 
         for (int fy = 0 ; fy < squareSide ; fy++) {
             for (int fx = 0; fx < squareSide; fx++) {
-                pyramid.copyPixels(
-                        level, fx, fy, canvas, canvasOrigoX+fx*pTileEdge, canvasOrigoY+fy*pTileEdge, edge, dynamic);
+                copyPixels(plan, pyramid,
+                           level, fx, fy, canvas, canvasOrigoX+fx*pTileEdge, canvasOrigoY+fy*pTileEdge, dynamic);
             }
         }
     }
@@ -235,7 +355,7 @@ public class Tile23 {
     }
 
     // Render bottom 2/3 of the Pyramid, which will be square
-    private void renderBottom(PyramidGrey23 pyramid, final int level, final int[] canvas,
+    private void renderBottom(PyramidReadPlan plan, PyramidGrey23 pyramid, final int level, final int[] canvas,
                               final int canvasOrigoX, final int canvasOrigoY, int dynamic) {
         if (level == 0) {
             pyramid.copyPixels(1, 0, 1, canvas, canvasOrigoX, canvasOrigoY, edge, dynamic);
@@ -249,8 +369,8 @@ public class Tile23 {
 
         for (int fy = height ; fy < fh ; fy++) {
             for (int fx = 0; fx < pyramid.getFractionWidth(); fx++) {
-                pyramid.copyPixels(level, fx, fy, canvas,
-                                   canvasOrigoX+fx*pTileEdge, canvasOrigoY+(fy-height)*pTileEdge, edge, dynamic);
+                copyPixels(plan, pyramid, level, fx, fy, canvas,
+                           canvasOrigoX+fx*pTileEdge, canvasOrigoY+(fy-height)*pTileEdge, dynamic);
             }
         }
 
@@ -258,8 +378,9 @@ public class Tile23 {
     }
 
     // Render bottom 1/3 of pyramidTop and top 1/3 of pyramidBottom, the result should be square
-    private void renderDual(PyramidGrey23 pyramidTop, PyramidGrey23 pyramidBottom, final int level, final int[] canvas,
-                              final int canvasOrigoX, final int canvasOrigoY, int dynamicTop, int dynamicBottom) {
+    private void renderDual(PyramidReadPlan plan, PyramidGrey23 pyramidTop, PyramidGrey23 pyramidBottom,
+                            final int level, final int[] canvas, final int canvasOrigoX, final int canvasOrigoY,
+                            int dynamicTop, int dynamicBottom) {
         if (level == 0) {
             pyramidTop.copyPixels(1, 0, 1, canvas, canvasOrigoX, canvasOrigoY, edge, dynamicTop); // Should really be average
             return;
@@ -273,16 +394,16 @@ public class Tile23 {
         // Bottom 1/3 of pyramidTop
         for (int fy = fw ; fy < fh ; fy++) {
             for (int fx = 0; fx < fw; fx++) {
-                pyramidTop.copyPixels(level, fx, fy, canvas,
-                                      canvasOrigoX+fx*pTileEdge, canvasOrigoY+(fy-fw)*pTileEdge, edge, dynamicTop);
+                copyPixels(plan, pyramidTop, level, fx, fy, canvas,
+                           canvasOrigoX+fx*pTileEdge, canvasOrigoY+(fy-fw)*pTileEdge, dynamicTop);
             }
         }
         // Top 1/3 of pyramidBottom
         for (int fy = 0 ; fy < fh-fw ; fy++) {
             for (int fx = 0; fx < fw; fx++) {
-                pyramidBottom.copyPixels(
-                        level, fx, fy, canvas,
-                        canvasOrigoX+fx*pTileEdge, canvasOrigoY+(fy+height)*pTileEdge, edge, dynamicBottom);
+                copyPixels(plan, pyramidBottom,
+                           level, fx, fy, canvas,
+                           canvasOrigoX+fx*pTileEdge, canvasOrigoY+(fy+height)*pTileEdge, dynamicBottom);
             }
         }
         //        debugRect(canvas, canvasOrigoX, canvasOrigoY, canvasOrigoX+2*pTileEdge, canvasOrigoY+2*pTileEdge, 50);
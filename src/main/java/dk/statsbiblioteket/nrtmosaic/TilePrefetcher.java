@@ -0,0 +1,247 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Speculative background mapping of the 8 basic tiles surrounding a requested basic tile at
+ * {@code prime.lastbasiclevel}, as users tend to pan to neighbouring tiles.
+ * </p><p>
+ * Prefetching runs in low priority threads with a bounded queue, where the oldest jobs are dropped on overflow.
+ * Jobs are cancelled if the viewer of the mosaic image has moved more than 1 basic tile away from the job when it
+ * is about to run, and skipped if the load on the image server is at or above the upstream budget.
+ * The viewer is approximated by the mosaic image, as requests carry no session.
+ */
+public class TilePrefetcher {
+    private static Log log = LogFactory.getLog(TilePrefetcher.class);
+
+    /**
+     * The provider of tiles, normally {@link TileProvider}.
+     */
+    public interface Loader {
+        /**
+         * Resolve the tile for the given source, ensuring that it is cached afterwards.
+         */
+        void prefetchTile(String source, UUID id, long basicFX, long basicFY, String gam, String cnt);
+
+        /**
+         * @return true if the tile for the source is already cached.
+         */
+        boolean isCached(String source);
+
+        /**
+         * @return the number of requests to the image server currently in flight or waiting, including prefetches.
+         *         Integer.MAX_VALUE if the adaptive upstream limit leaves no room for prefetches.
+         */
+        int getUpstreamLoad();
+    }
+
+    /**
+     * Creates source URLs for basic tiles.
+     */
+    public interface SourceFactory {
+        String getSource(long basicFX, long basicFY);
+    }
+
+    private static final int MAX_VIEWERS = 10000;
+
+    private final Loader loader;
+    private final int upstreamBudget;
+    private final ThreadPoolExecutor executor;
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger active = new AtomicInteger(0);
+    // The latest requested basic tile coordinates for each viewer, followed by the update sequence number
+    private final ConcurrentHashMap<String, long[]> focus = new ConcurrentHashMap<>();
+    private final AtomicLong focusUpdates = new AtomicLong(0);
+
+    private final LongAdder requested = new LongAdder();
+    private final LongAdder prefetched = new LongAdder();
+    private final LongAdder cached = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Creates a prefetcher from the setup properties {@code prefetch.threads}, {@code prefetch.queue} and
+     * {@code prefetch.upstream.budget}.
+     * @return a prefetcher or null if {@code prefetch.threads} is 0.
+     */
+    public static TilePrefetcher create(Loader loader) {
+        final int threads = Config.getInt("prefetch.threads");
+        return threads <= 0 ? null : new TilePrefetcher(
+                loader, threads, Config.getInt("prefetch.queue"), Config.getInt("prefetch.upstream.budget"));
+    }
+
+    /**
+     * @param loader         provider of the tiles.
+     * @param threads        the number of prefetch threads.
+     * @param queueSize      the maximum number of waiting prefetch jobs.
+     * @param upstreamBudget prefetch jobs are only run if the number of upstream requests is below this.
+     */
+    public TilePrefetcher(Loader loader, int threads, int queueSize, int upstreamBudget) {
+        this.loader = loader;
+        this.upstreamBudget = upstreamBudget;
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, "TilePrefetcher-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }, new DropOldest());
+        executor.allowCoreThreadTimeOut(true);
+        log.info("Created " + this);
+    }
+
+    /**
+     * Queue prefetching of the neighbours of the given basic tile. This call returns immediately.
+     * @param viewer  the mosaic image being viewed, used for cancelling jobs when the viewer moves elsewhere.
+     * @param id      the ID of the mosaic source image, if known.
+     * @param basicFX horizontal tile coordinate for the requested tile at {@code prime.lastbasiclevel}.
+     * @param basicFY vertical tile coordinate for the requested tile at {@code prime.lastbasiclevel}.
+     * @param countX  the number of basic tiles horizontally. Use Long.MAX_VALUE if unknown.
+     * @param countY  the number of basic tiles vertically. Use Long.MAX_VALUE if unknown.
+     * @param sources creates the source URLs for the neighbours.
+     */
+    public void prefetchNeighbours(String viewer, UUID id, long basicFX, long basicFY, long countX, long countY,
+                                   String gam, String cnt, SourceFactory sources) {
+        setFocus(viewer, basicFX, basicFY);
+        for (long fy = Math.max(0, basicFY-1) ; fy <= basicFY+1 && fy < countY ; fy++) {
+            for (long fx = Math.max(0, basicFX-1) ; fx <= basicFX+1 && fx < countX ; fx++) {
+                if (fx == basicFX && fy == basicFY) {
+                    continue;
+                }
+                final String source = sources.getSource(fx, fy);
+                if (loader.isCached(source) || !queued.add(source)) {
+                    continue;
+                }
+                requested.increment();
+                executor.execute(new Job(viewer, source, id, fx, fy, gam, cnt));
+            }
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public String getStats() {
+        return String.format(Locale.ENGLISH,
+                             "prefetcher(queued=%d, active=%d, requested=%d, prefetched=%d, alreadyCached=%d, " +
+                             "cancelled=%d, dropped=%d, failed=%d)",
+                             executor.getQueue().size(), active.get(), requested.sum(), prefetched.sum(),
+                             cached.sum(), cancelled.sum(), dropped.sum(), failed.sum());
+    }
+
+    @Override
+    public String toString() {
+        return "TilePrefetcher(threads=" + executor.getMaximumPoolSize() + ", queue=" +
+               (executor.getQueue().remainingCapacity() + executor.getQueue().size()) +
+               ", upstreamBudget=" + upstreamBudget + ")";
+    }
+
+    // Last write wins. Viewers that have not been updated for MAX_VIEWERS/2 updates are pruned when there are too
+    // many viewers. Their queued jobs have long since been run or dropped
+    private void setFocus(String viewer, long basicFX, long basicFY) {
+        final long update = focusUpdates.incrementAndGet();
+        focus.put(viewer, new long[]{basicFX, basicFY, update});
+        if (focus.size() > MAX_VIEWERS) {
+            focus.values().removeIf(entry -> entry[2] < update - MAX_VIEWERS/2);
+        }
+    }
+
+    private final class Job implements Runnable {
+        private final String viewer;
+        private final String source;
+        private final UUID id;
+        private final long basicFX;
+        private final long basicFY;
+        private final String gam;
+        private final String cnt;
+
+        public Job(String viewer, String source, UUID id, long basicFX, long basicFY, String gam, String cnt) {
+            this.viewer = viewer;
+            this.source = source;
+            this.id = id;
+            this.basicFX = basicFX;
+            this.basicFY = basicFY;
+            this.gam = gam;
+            this.cnt = cnt;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final long[] current = focus.get(viewer);
+                if (current == null || Math.abs(current[0]-basicFX) > 1 || Math.abs(current[1]-basicFY) > 1) {
+                    cancelled.increment();
+                    return;
+                }
+                if (loader.isCached(source)) {
+                    cached.increment();
+                    return;
+                }
+                if (loader.getUpstreamLoad() >= upstreamBudget) {
+                    dropped.increment();
+                    return;
+                }
+                active.incrementAndGet();
+                try {
+                    loader.prefetchTile(source, id, basicFX, basicFY, gam, cnt);
+                    prefetched.increment();
+                } finally {
+                    active.decrementAndGet();
+                }
+            } catch (Exception e) {
+                failed.increment();
+                log.debug("Unable to prefetch " + source, e);
+            } finally {
+                queued.remove(source);
+            }
+        }
+    }
+
+    private final class DropOldest implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable job, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                queued.remove(((Job) job).source);
+                return;
+            }
+            Runnable oldest = executor.getQueue().poll();
+            if (oldest != null) {
+                dropped.increment();
+                queued.remove(((Job) oldest).source);
+            }
+            if (!executor.getQueue().offer(job)) {
+                dropped.increment();
+                queued.remove(((Job) job).source);
+            }
+        }
+    }
+}
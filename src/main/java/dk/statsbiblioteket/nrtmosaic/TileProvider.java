@@ -17,27 +17,50 @@ package dk.statsbiblioteket.nrtmosaic;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.net.URL;
-import java.util.Map;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  *
  */
-public class TileProvider {
+public class TileProvider implements TilePrefetcher.Loader {
     private static Log log = LogFactory.getLog(TileProvider.class);
 
     private final Keeper keeper;
-    private final Map<String, Tile23> tileCache;
+    private final TileSource tileSource;
+    private final WeightedCache<String, Tile23> tileCache;
+    private final SingleFlight<String, Resolved> inFlight;
     private final int edge;
+    private final MappingIndex mappingIndex;
+    private final MappingStore mappingStore;
+    private final PyramidPrefetcher pyramidPrefetcher;
 
     public TileProvider(Keeper keeper) {
+        this(keeper, TileSource.create());
+    }
+
+    /**
+     * @param keeper     the pyramids to map sources to.
+     * @param tileSource delivers the sources for mapping.
+     */
+    public TileProvider(Keeper keeper, TileSource tileSource) {
         this.keeper = keeper;
-        tileCache  = new LRUCache<>(Config.getInt("tile.cachesize"));
+        this.tileSource = tileSource;
+        tileCache  = new WeightedCache<>("tileCache", Config.getInt("tile.cache.mb")*1024L*1024,
+                                         Tile23.MEMORY_BYTES, (source, tile) -> Tile23.MEMORY_BYTES);
+        inFlight = new SingleFlight<>("tileMappings", Config.getInt("tile.inflight.timeout.ms"));
         edge = Config.getInt("tile.edge");
+        final String indexRoot = Config.getString("mapping.index");
+        mappingIndex = indexRoot == null || indexRoot.isEmpty() ? null :
+                MappingIndex.open(Paths.get(indexRoot), keeper);
+        mappingStore = MappingStore.create(keeper);
+        pyramidPrefetcher = PyramidPrefetcher.create();
     }
 
     /**
@@ -65,41 +88,260 @@ public class TileProvider {
      * @return a Tile that should look render approximately like the source at the given z level.
      */
     public Tile23 getTile(String source, boolean allowNA) {
-        long startTime = System.nanoTime();
+        return getTile(source, null, 0, 0, null, null, allowNA);
+    }
+
+    /**
+     * Resolve a Tile for the source, using the precomputed mapping index or the persistent mapping store if
+     * possible and mapping the source to Pyramids if not already cached.
+     * @param source  an image, expected to be edge*edge pixels, but padding will be applied if too small.
+     * @param id      the ID of the mosaic source image. If null, the mapping index is not used.
+     * @param basicFX horizontal tile coordinate for the source at {@code prime.lastbasiclevel}.
+     * @param basicFY vertical tile coordinate for the source at {@code prime.lastbasiclevel}.
+     * @param gam     gamma used for the source.
+     * @param cnt     contrast used for the source.
+     * @param allowNA allow non-existing sources, in which case a blank tile will be generated.
+     * @return a Tile that should look render approximately like the source at the given z level.
+     *         If the Tile is a temporary blank, the work of the calling thread is marked, see
+     *         {@link TransientFallback}.
+     */
+    public Tile23 getTile(String source, UUID id, long basicFX, long basicFY, String gam, String cnt,
+                          boolean allowNA) {
         Tile23 tile = tileCache.get(source);
         if (tile != null) {
             return tile;
         }
-        URL imageURL = Util.resolveURL(source);
-        if (imageURL == null) {
-            throw new IllegalArgumentException("Unable to resolve image url '" + source + "'");
+        // Concurrent requests for the same source (typically when zooming in) share a single fetch and mapping.
+        // Temporary blanks are marked for each caller, as the mark is thread local
+        final Resolved resolved = inFlight.execute(
+                source, () -> resolveTile(source, id, basicFX, basicFY, gam, cnt, allowNA));
+        if (resolved.fallback) {
+            TransientFallback.mark();
+        }
+        return resolved.tile;
+    }
+
+    private Resolved resolveTile(String source, UUID id, long basicFX, long basicFY, String gam, String cnt,
+                                 boolean allowNA) {
+        // Another leader might have finished between the cache miss and this call
+        Tile23 tile = tileCache.peek(source);
+        if (tile != null) {
+            return new Resolved(tile, false);
+        }
+        final AtomicBoolean fallback = new AtomicBoolean(false);
+        tile = loadTile(source, id, basicFX, basicFY, gam, cnt, allowNA, fallback);
+        if (fallback.get()) {
+            // Blank tiles caused by transient upstream problems must not outlive the problem
+            return new Resolved(tile, true);
+        }
+        tileCache.put(source, tile);
+        if (pyramidPrefetcher != null) {
+            pyramidPrefetcher.prefetch(tile);
+        }
+        return new Resolved(tile, false);
+    }
+
+    // Resolves the tile from the mapping index, the mapping store or by mapping the source
+    private Tile23 loadTile(String source, UUID id, long basicFX, long basicFY, String gam, String cnt,
+                            boolean allowNA, AtomicBoolean fallback) {
+        if (mappingIndex != null && id != null) {
+            long startTime = System.nanoTime();
+            Tile23 tile = mappingIndex.getTile(id, basicFX, basicFY, gam, cnt);
+            if (tile != null) {
+                log.debug("Resolved tile for source=" + source + " from mapping index in " +
+                          (System.nanoTime()-startTime)/1000000 + "ms");
+                return tile;
+            }
+        }
+        if (mappingStore != null) {
+            Tile23 tile = mappingStore.get(source);
+            if (tile != null) {
+                return tile;
+            }
+        }
+        Tile23 tile = mapTile(source, allowNA, fallback);
+        if (mappingStore != null && !fallback.get()) {
+            mappingStore.put(source, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Only uses the cache of mapped tiles: No mapping or upstream requests are performed.
+     * @param source an image, as used for {@link #getTile(String, boolean)}.
+     * @return the mapped Tile or null if it is not cached.
+     */
+    public Tile23 getCachedTile(String source) {
+        return tileCache.peek(source);
+    }
+
+    @Override
+    public void prefetchTile(String source, UUID id, long basicFX, long basicFY, String gam, String cnt) {
+        getTile(source, id, basicFX, basicFY, gam, cnt, true);
+    }
+
+    @Override
+    public boolean isCached(String source) {
+        return tileCache.containsKey(source);
+    }
+
+    @Override
+    public int getUpstreamLoad() {
+        // A prefetch takes one slot and at least one more is kept free for foreground requests
+        return UpstreamClient.getInstance().getLoad(2);
+    }
+
+    /**
+     * @return warm start participant for re-resolving the hottest tiles, using the mapping store if possible.
+     */
+    public WarmStart.Participant getTileParticipant() {
+        return new WarmStart.Participant() {
+            @Override
+            public String getName() {
+                return "tile";
+            }
+
+            @Override
+            public List<String> getHotKeys(int max) {
+                return tileCache.getHottestKeys(max);
+            }
+
+            @Override
+            public int warm(List<String> sources) {
+                int warmed = 0;
+                for (String source: sources) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+                    try {
+                        getTile(source, true);
+                        warmed++;
+                    } catch (Exception e) {
+                        log.debug("Unable to warm tile for source=" + source, e);
+                    }
+                }
+                return warmed;
+            }
+        };
+    }
+
+    /**
+     * @return warm start participant for touching the memory pages for pyramids used by the hottest tiles,
+     *         or null if pyramid prefetching is disabled.
+     */
+    public WarmStart.Participant getPyramidParticipant() {
+        return pyramidPrefetcher == null ? null : new WarmStart.Participant() {
+            @Override
+            public String getName() {
+                return "pyramid";
+            }
+
+            @Override
+            public List<String> getHotKeys(int max) {
+                final BitSet seen = new BitSet();
+                final List<String> ordinals = new ArrayList<>();
+                for (String source: tileCache.getHottestKeys(max)) {
+                    final Tile23 tile = tileCache.peek(source);
+                    for (int i = 0 ; tile != null && i < edge*edge && ordinals.size() < max ; i++) {
+                        final PyramidGrey23 pyramid = tile.getPyramid(i % edge, i / edge);
+                        if (pyramid != null && pyramid.getOrdinal() >= 0 && !seen.get(pyramid.getOrdinal())) {
+                            seen.set(pyramid.getOrdinal());
+                            ordinals.add(Integer.toString(pyramid.getOrdinal()));
+                        }
+                    }
+                }
+                return ordinals;
+            }
+
+            @Override
+            public int warm(List<String> ordinals) {
+                final List<PyramidGrey23> sorted = new ArrayList<>(ordinals.size());
+                for (String ordinal: ordinals) {
+                    final PyramidGrey23 pyramid = keeper.getPyramid(Integer.parseInt(ordinal));
+                    if (pyramid != null && pyramid.isMapped()) {
+                        sorted.add(pyramid);
+                    }
+                }
+                sorted.sort((p1, p2) -> Integer.compare(p1.getOrdinal(), p2.getOrdinal()));
+                pyramidPrefetcher.touch(sorted);
+                return sorted.size();
+            }
+        };
+    }
+
+    public void shutdown() {
+        if (pyramidPrefetcher != null) {
+            pyramidPrefetcher.shutdown();
         }
+    }
+
+    /**
+     * @return statistics for the cache of mapped tiles and the structures for resolving tiles.
+     */
+    public String getStats() {
+        return tileCache.getStats() + "\n" + inFlight.getStats() +
+               (mappingStore == null ? "" : "\n" + mappingStore.getStats()) +
+               (pyramidPrefetcher == null ? "" : "\n" + pyramidPrefetcher.getStats());
+    }
+
+    /**
+     * Fetch the source and map it to Pyramids. No caching is involved.
+     * @param source  an image, expected to be edge*edge pixels, but padding will be applied if too small.
+     * @param allowNA allow non-existing sources, in which case a blank tile will be generated.
+     * @return a Tile that should look render approximately like the source at the given z level.
+     */
+    public Tile23 mapTile(String source, boolean allowNA) {
+        return mapTile(source, allowNA, new AtomicBoolean(false));
+    }
+
+    // fallback is set to true if a blank tile was used because the source could not be fetched, without the source
+    // being definitively missing
+    private Tile23 mapTile(String source, boolean allowNA, AtomicBoolean fallback) {
+        long startTime = System.nanoTime();
         BufferedImage image;
         try {
-            image = ImageIO.read(imageURL);
+            image = tileSource.getTile(source);
         } catch (IOException e) {
             if (!allowNA) {
                 throw new RuntimeException("Unable to resolve tile for source=" + source, e);
             }
-            log.debug("No tile at '" + source + "' but allowNA==true so default blank is used");
-            image = Util.getBlankTile(keeper.getFillGrey(imageURL.toString(), null));
+            if (TileSource.isMissing(e)) {
+                log.debug("No tile at '" + source + "' but allowNA==true so default blank is used");
+            } else {
+                log.debug("Unable to fetch tile at '" + source + "' but allowNA==true so temporary blank is used", e);
+                fallback.set(true);
+            }
+            image = Util.getBlankTile(keeper.getFillGrey(source, null));
         }
         if (image == null) {
             if (!allowNA) {
                 throw new IllegalStateException("image is null for '" + source + "'");
             }
             log.debug("Got null tile at '" + source + "' but allowNA==true so default blank is used");
-            image = Util.getBlankTile(keeper.getFillGrey(imageURL.toString(), null));
+            image = Util.getBlankTile(keeper.getFillGrey(source, null));
         }
         if (image.getWidth() != edge || image.getHeight() != edge) {
-            int fillGrey = keeper.getFillGrey(imageURL.toString(), null);
+            int fillGrey = keeper.getFillGrey(source, null);
             log.trace("Padding tile '" + source + "' of " + image.getWidth() + "x" + image.getHeight() +
                       " pixels to " + edge + "x" + edge + " pixels with fill " + fillGrey);
             image = Util.pad(image, edge, edge, fillGrey);
         }
-        tile = Tile23.createTile(image, keeper, new Random(source.hashCode()));
-        tileCache.put(source, tile);
+        Cancellation.checkpoint();
+        final BufferedImage padded = image;
+        Tile23 tile = VirtualThreads.computeOnPlatform(
+                () -> Tile23.createTile(padded, keeper, new Random(source.hashCode())));
         log.debug("Mapped tile for source=" + source + " in " + (System.nanoTime()-startTime)/1000000 + "ms");
         return tile;
     }
+
+    // A resolved tile and whether it is a temporary blank, shared between the callers for the same source
+    private static final class Resolved {
+        private final Tile23 tile;
+        private final boolean fallback;
+
+        private Resolved(Tile23 tile, boolean fallback) {
+            this.tile = tile;
+            this.fallback = fallback;
+        }
+    }
 }
@@ -0,0 +1,223 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of worker threads for fetching, rendering and encoding tiles, where queued tiles are ordered by how
+ * soon the viewer needs them instead of by arrival. When a viewer opens an image, the low-zoom tiles covering the
+ * whole screen are requested in the same burst as hundreds of deeper tiles. With plain FIFO ordering the low-zoom
+ * tiles wait behind the deeper tiles and the viewer shows nothing until the whole burst has been processed.
+ * </p><p>
+ * Queued tiles are ordered by
+ * <ol>
+ *   <li>{@link Category}, derived from the level as in {@link Prime#deepzoom}</li>
+ *   <li>level, so that tiles covering more of the screen come first</li>
+ *   <li>client fairness, so that one client bursting tiles at a level does not starve other clients at the
+ *       same level</li>
+ *   <li>arrival</li>
+ * </ol>
+ * Fairness uses start-time fair queueing: Each client has a tag that is advanced for each submitted tile and which is
+ * never behind the tag of the most recently started tile. A client with many queued tiles thus has tags far ahead of
+ * a client that submits its first tile.
+ */
+public class TileScheduler {
+    private static Log log = LogFactory.getLog(TileScheduler.class);
+
+    /**
+     * Client tags not ahead of the virtual time are equivalent to no tag and are pruned when there are more than
+     * this number of clients.
+     */
+    private static final int MAX_CLIENTS = 1000;
+    /**
+     * Used when the client is unknown.
+     */
+    public static final String ANONYMOUS = "anonymous";
+
+    /**
+     * The kind of work for a tile, ordered by priority.
+     */
+    public enum Category {
+        /**
+         * The constant image above {@code prime.turtlelevel}. Practically free.
+         */
+        TURTLE,
+        /**
+         * Plain image server tiles up to {@code prime.lastbasiclevel}. These cover the screen when an image is
+         * opened.
+         */
+        BASIC,
+        /**
+         * Mosaic tiles rendered from corpus images.
+         */
+        RENDER,
+        /**
+         * Tiles deeper than the mosaic, resolved from corpus images at the image server.
+         */
+        REDIRECT
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final int queueSize;
+    private final ConcurrentHashMap<String, AtomicLong> clientTags = new ConcurrentHashMap<>();
+    private final AtomicLong virtualTime = new AtomicLong(0);
+    private final AtomicLong arrivals = new AtomicLong(0);
+    private final LongAdder[] started = new LongAdder[Category.values().length];
+
+    /**
+     * @param threads   the number of worker threads.
+     * @param queueSize the maximum number of queued tiles. Tiles beyond that are rejected.
+     */
+    public TileScheduler(int threads, int queueSize) {
+        this(threads, queueSize, createPlatformFactory());
+    }
+
+    /**
+     * @param threads       the number of worker threads.
+     * @param queueSize     the maximum number of queued tiles. Tiles beyond that are rejected.
+     * @param threadFactory creates the worker threads, e.g. virtual threads, see {@link VirtualThreads}.
+     */
+    public TileScheduler(int threads, int queueSize, ThreadFactory threadFactory) {
+        this.queueSize = queueSize;
+        for (int i = 0 ; i < started.length ; i++) {
+            started[i] = new LongAdder();
+        }
+        executor = new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS, new BoundedPriorityQueue(queueSize), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        log.info("Created " + this);
+    }
+
+    private static ThreadFactory createPlatformFactory() {
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        return runnable -> {
+            Thread thread = new Thread(runnable, "TileWorker-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @param category the kind of work for the tile.
+     * @param level    the deepzoom level of the tile.
+     * @param client   the client requesting the tile, e.g. the remote address. Null means {@link #ANONYMOUS}.
+     * @return an executor that runs jobs for the given tile with the priority for the tile.
+     *         Rejects with {@link RejectedExecutionException} if the queue is full.
+     */
+    public Executor forTile(Category category, int level, String client) {
+        return job -> submit(category, level, client == null ? ANONYMOUS : client, job);
+    }
+
+    private void submit(Category category, int level, String client, Runnable job) {
+        final long now = virtualTime.get();
+        final long tag = clientTags.computeIfAbsent(client, c -> new AtomicLong(0)).
+                updateAndGet(last -> Math.max(last, now) + 1);
+        if (clientTags.size() > MAX_CLIENTS) {
+            clientTags.values().removeIf(clientTag -> clientTag.get() <= virtualTime.get());
+        }
+        executor.execute(new Task(category, level, tag, arrivals.incrementAndGet(), job));
+    }
+
+    public void shutdownNow() {
+        executor.shutdownNow();
+    }
+
+    public String getStats() {
+        StringBuilder sb = new StringBuilder();
+        for (Category category : Category.values()) {
+            sb.append(sb.length() == 0 ? "" : ", ").append(category.name().toLowerCase(Locale.ENGLISH)).append("=").
+                    append(started[category.ordinal()].sum());
+        }
+        return String.format(Locale.ENGLISH,
+                             "TileWorkers(threads=%d, active=%d, queued=%d, completed=%d, clients=%d, started=[%s])",
+                             executor.getPoolSize(), executor.getActiveCount(), executor.getQueue().size(),
+                             executor.getCompletedTaskCount(), clientTags.size(), sb);
+    }
+
+    @Override
+    public String toString() {
+        return "TileScheduler(threads=" + executor.getCorePoolSize() + ", queueSize=" + queueSize + ")";
+    }
+
+    private final class Task implements Runnable, Comparable<Task> {
+        private final Category category;
+        private final int level;
+        private final long tag;
+        private final long arrival;
+        private final Runnable job;
+
+        public Task(Category category, int level, long tag, long arrival, Runnable job) {
+            this.category = category;
+            this.level = level;
+            this.tag = tag;
+            this.arrival = arrival;
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            virtualTime.accumulateAndGet(tag, Math::max);
+            started[category.ordinal()].increment();
+            job.run();
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            int c = Integer.compare(category.ordinal(), other.category.ordinal());
+            if (c == 0) {
+                c = Integer.compare(level, other.level);
+            }
+            if (c == 0) {
+                c = Long.compare(tag, other.tag);
+            }
+            return c != 0 ? c : Long.compare(arrival, other.arrival);
+        }
+    }
+
+    // PriorityBlockingQueue is unbounded. ThreadPoolExecutor only uses offer for queueing, so that is all we bound
+    private static final class BoundedPriorityQueue extends PriorityBlockingQueue<Runnable> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        public BoundedPriorityQueue(int capacity) {
+            super(Math.max(1, Math.min(capacity, 1000)));
+            this.capacity = capacity;
+        }
+
+        @Override
+        public synchronized boolean offer(Runnable runnable) {
+            return size() < capacity && super.offer(runnable);
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return Math.max(0, capacity - size());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import javax.imageio.IIOException;
+import java.awt.image.BufferedImage;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Delivers basic tiles and DZIs for corpus images. Tiles are identified by their source, which is the URL for the
+ * tile on the image server, e.g. {@code http://example.com/iipsrv.fcgi?DeepZoom=/path/image.jp2_files/13/2_3.jpg}.
+ * The source is also used as key for caches and persistent mappings, so it is independent of the implementation.
+ * </p><p>
+ * Implementations must be thread safe.
+ */
+public interface TileSource {
+    /**
+     * @return the source stated in the setup property {@code tilesource}.
+     */
+    static TileSource create() {
+        final String type = Config.getString("tilesource");
+        final ImageServerTileSource imageServer = new ImageServerTileSource(Config.getString("imageserver"));
+        switch (type) {
+            case "imageserver": return imageServer;
+            case "local":       return LocalTileSource.create(Config.getBool("tilesource.local.fallback") ?
+                                                                      imageServer : null);
+            default: throw new IllegalArgumentException(
+                    "tilesource must be either imageserver or local but was '" + type + "'");
+        }
+    }
+
+    /**
+     * Distinguishes sources that do not exist from transient problems, such as timeouts and server errors.
+     * @param e an exception from resolving a tile.
+     * @return true if the exception, or one of its causes, states that the source does not exist.
+     */
+    static boolean isMissing(Throwable e) {
+        for (Throwable cause = e ; cause != null ; cause = cause.getCause()) {
+            if (cause instanceof FileNotFoundException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param source the URL for the tile on the image server, a local file or a class path resource.
+     * @return the tile, encoded as delivered by the source. This is normally a JPEG.
+     * @throws java.io.FileNotFoundException if there is no tile for the source.
+     * @throws IOException if the tile could not be resolved.
+     */
+    byte[] getTileBytes(String source) throws IOException;
+
+    /**
+     * @param source the URL for the tile on the image server, a local file or a class path resource.
+     * @return the tile or null if the content could not be decoded as an image.
+     * @throws IIOException if the tile could not be resolved.
+     */
+    BufferedImage getTile(String source) throws IOException;
+
+    /**
+     * @param deepZoom the path to the image on the image server, without {@code .dzi}.
+     * @return the DZI for the image.
+     * @throws IOException if the DZI could not be resolved.
+     */
+    String getDZI(String deepZoom) throws IOException;
+
+    /**
+     * Free resources held by the source.
+     */
+    void close();
+
+    /**
+     * @return human readable statistics for the source.
+     */
+    String getStats();
+}
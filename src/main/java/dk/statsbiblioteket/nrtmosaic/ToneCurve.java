@@ -0,0 +1,131 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ByteLookupTable;
+import java.awt.image.LookupOp;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gamma (GAM) and contrast (CNT) adjustment as a 256 entry lookup table, mimicking the IIPImage server:
+ * {@code out = 255 * (in/255)^GAM * CNT}, clipped to [0, 255].
+ * </p><p>
+ * Applying GAM and CNT locally means that tiles are fetched from the image server and mapped to pyramids in
+ * neutral form, so that fetching, mapping and caching is shared between all GAM and CNT variants.
+ */
+public final class ToneCurve {
+    public static final String NEUTRAL_GAM = "1.0";
+    public static final String NEUTRAL_CNT = "1.0";
+    public static final ToneCurve NEUTRAL = new ToneCurve(1.0, 1.0);
+
+    // Variants are few in practice, but they are specified by the caller so the cache is bounded
+    private static final int MAX_CACHED = 1000;
+    private static final Map<String, ToneCurve> curves = new ConcurrentHashMap<>();
+
+    private final double gamma;
+    private final double contrast;
+    private final byte[] lut = new byte[256];
+    private final LookupOp op;
+
+    /**
+     * @param gam gamma as stated in a request. Null or empty means 1.0.
+     * @param cnt contrast as stated in a request. Null or empty means 1.0.
+     * @return the curve for the given gamma and contrast.
+     * @throws IllegalArgumentException if gam or cnt are not valid numbers.
+     */
+    public static ToneCurve of(String gam, String cnt) {
+        final String key = gam + "&" + cnt;
+        ToneCurve curve = curves.get(key);
+        if (curve == null) {
+            curve = new ToneCurve(parse("GAM", gam), parse("CNT", cnt));
+            if (curve.isNeutral()) {
+                curve = NEUTRAL;
+            }
+            if (curves.size() < MAX_CACHED) {
+                curves.put(key, curve);
+            }
+        }
+        return curve;
+    }
+
+    private static double parse(String designation, String value) {
+        if (value == null || value.isEmpty()) {
+            return 1.0;
+        }
+        final double parsed;
+        try {
+            parsed = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unable to parse " + designation + "='" + value + "' as a number", e);
+        }
+        if (!(parsed > 0) || Double.isInfinite(parsed)) {
+            throw new IllegalArgumentException(designation + " must be a positive number but was " + value);
+        }
+        return parsed;
+    }
+
+    private ToneCurve(double gamma, double contrast) {
+        this.gamma = gamma;
+        this.contrast = contrast;
+        for (int i = 0 ; i < 256 ; i++) {
+            final double adjusted = 255 * Math.pow(i / 255.0, gamma) * contrast;
+            lut[i] = (byte) Math.max(0, Math.min(255, (int) Math.round(adjusted)));
+        }
+        op = new LookupOp(new ByteLookupTable(0, lut), null);
+    }
+
+    public boolean isNeutral() {
+        return gamma == 1.0 && contrast == 1.0;
+    }
+
+    /**
+     * @param grey a grey value from 0 to 255.
+     * @return the adjusted grey.
+     */
+    public int map(int grey) {
+        return 0xFF & lut[grey];
+    }
+
+    /**
+     * Apply the curve to all bands in the image. The given image is not modified.
+     * @param image an image with byte based samples.
+     * @return a new adjusted image or the given image if the curve is neutral.
+     */
+    public BufferedImage apply(BufferedImage image) {
+        if (isNeutral()) {
+            return image;
+        }
+        BufferedImage adjusted = new BufferedImage(image.getColorModel(),
+                                                   image.getRaster().createCompatibleWritableRaster(),
+                                                   image.isAlphaPremultiplied(), null);
+        op.filter(image.getRaster(), adjusted.getRaster());
+        return adjusted;
+    }
+
+    /**
+     * @return GAM and CNT in normalised form, usable as part of cache keys.
+     */
+    public String getKey() {
+        return String.format(Locale.ENGLISH, "GAM=%s&CNT=%s", gamma, contrast);
+    }
+
+    @Override
+    public String toString() {
+        return "ToneCurve(" + getKey() + ")";
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Tracks whether the work performed by the current thread used a blank stand-in because a source could not be
+ * fetched, e.g. because of a timeout or a server error at the image server. Such results are delivered, but must not
+ * be cached, as that would make the blank tile outlive the upstream problem.
+ * </p><p>
+ * Sources that are definitively missing, see {@link TileSource#isMissing(Throwable)}, are not transient and their
+ * blank stand-ins can be cached.
+ */
+public final class TransientFallback {
+    private static final ThreadLocal<Boolean> MARKED = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    private TransientFallback() { }
+
+    /**
+     * Mark the work performed by the current thread as using a transient stand-in.
+     */
+    public static void mark() {
+        MARKED.set(Boolean.TRUE);
+    }
+
+    /**
+     * Perform the job with a clean mark. If the job marks its work, the enclosing work is also marked.
+     * @param job the job to perform.
+     * @param marked receives whether the job marked its work. Can be null.
+     * @return the result of the job.
+     */
+    public static <V> V call(Callable<V> job, boolean[] marked) throws Exception {
+        final boolean outer = MARKED.get();
+        MARKED.set(Boolean.FALSE);
+        boolean inner = false;
+        try {
+            final V result = job.call();
+            inner = MARKED.get();
+            if (marked != null) {
+                marked[0] = inner;
+            }
+            return result;
+        } finally {
+            MARKED.set(outer || inner || MARKED.get());
+        }
+    }
+}
@@ -14,37 +14,92 @@
  */
 package dk.statsbiblioteket.nrtmosaic;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 /**
  * Simple representation of a 128bit UUID.
  */
 public class UUID {
     private final long first64;
     private final long second64;
-    private static final Pattern hex32 = Pattern.compile(".*([a-f0-9]{32})[.].*");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
 
     public UUID(long first64, long second64) {
         this.first64 = first64;
         this.second64 = second64;
     }
 
-    // Tries to locate an 128bit ID, represented as 32 hex sigits, is the input
-
     /**
      * Attempts to extract an 128bit ID, represented as 32 hex digits, from the input.
+     * The digits must be followed by a dot and can contain dashes. If there are multiple candidates, the last is used.
      * @param name a String representation of the resource.
+     * @throws IllegalArgumentException if no ID could be extracted.
      */
     public UUID(String name) {
-        String normalised = name.toLowerCase().replace("-", "");
-        Matcher matcher = hex32.matcher(normalised);
-        if (!matcher.find()) {
+        this(name, findHexEnd(name));
+    }
+
+    private UUID(CharSequence name, int hexEnd) {
+        if (hexEnd == -1) {
             throw new IllegalArgumentException("Unable to extract 32 digit hex from '" + name + "'");
         }
-        String match = matcher.group(1); // hex is unsigned 128bit, så we need the shift trick
-        first64 = (Long.parseLong(match.substring(0, 8), 16) << 32) | Long.parseLong(match.substring(8, 16), 16);
-        second64 = (Long.parseLong(match.substring(16, 24), 16) << 32) | Long.parseLong(match.substring(24, 32), 16);
+        first64 = parseHexBackwards(name, hexEnd, 16);
+        second64 = parseHexBackwards(name, hexEnd, 0);
+    }
+
+    /**
+     * Same as {@link #UUID(String)} but returns null instead of throwing an exception if no ID could be extracted.
+     * @param name a String representation of the resource.
+     * @return the ID or null if it could not be extracted.
+     */
+    public static UUID find(CharSequence name) {
+        final int hexEnd = findHexEnd(name);
+        return hexEnd == -1 ? null : new UUID(name, hexEnd);
+    }
+
+    // Scans backwards from each dot, ignoring dashes, without creating intermediate Strings
+    private static int findHexEnd(CharSequence name) {
+        for (int dot = name.length()-1 ; dot >= 32 ; dot--) {
+            if (name.charAt(dot) != '.') {
+                continue;
+            }
+            int digits = 0;
+            for (int i = dot-1 ; i >= 0 && digits < 32 ; i--) {
+                final char c = name.charAt(i);
+                if (c == '-') {
+                    continue;
+                }
+                if (hexValue(c) == -1) {
+                    break;
+                }
+                digits++;
+            }
+            if (digits == 32) {
+                return dot;
+            }
+        }
+        return -1;
+    }
+
+    // Parses 16 hex digits, counted backwards from the hexEnd after skipping the given number of digits
+    private static long parseHexBackwards(CharSequence name, int hexEnd, int skip) {
+        long value = 0;
+        int digit = 0;
+        for (int i = hexEnd-1 ; digit < skip+16 ; i--) {
+            final char c = name.charAt(i);
+            if (c == '-') {
+                continue;
+            }
+            if (digit >= skip) {
+                value |= ((long) hexValue(c)) << (4*(digit-skip));
+            }
+            digit++;
+        }
+        return value;
+    }
+
+    private static int hexValue(char c) {
+        return c >= '0' && c <= '9' ? c - '0' :
+                c >= 'a' && c <= 'f' ? c - 'a' + 10 :
+                        c >= 'A' && c <= 'F' ? c - 'A' + 10 : -1;
     }
 
     public long getFirst64() {
@@ -56,19 +111,20 @@ public class UUID {
     }
 
     public String toHex() {
-        return h8(first64>>>32) + h8(first64 & ~(~1L << 31)) +
-               h8(second64>>>32) + h8(second64 & ~(~1L << 31));
+        char[] hex = new char[32];
+        for (int i = 0 ; i < 32 ; i++) {
+            hex[i] = getHexDigit(i);
+        }
+        return new String(hex);
     }
 
-//    private static final String[] PREFIX0 = new String[]{
-//            "00000000", "0000000", "000000", "00000", "0000", "000", "00", "0", ""};
-    private String h8(long value) {
-        String in = Long.toString(value, 16);
-//        return PREFIX0[in.length()] + in;
-        while (in.length() < 8) {
-            in = "0" + in;
-        }
-        return in;
+    /**
+     * @param index the position of the digit in {@link #toHex()}, from 0 to 31.
+     * @return the hex digit at the given position.
+     */
+    public char getHexDigit(int index) {
+        final long bits = index < 16 ? first64 : second64;
+        return HEX[(int) (bits >>> (60 - 4*(index & 15))) & 0xF];
     }
 
     @Override
@@ -0,0 +1,592 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * The single access point for fetching data from the image server and other remote sources.
+ * The image server does not like being hammered, so the number of concurrent connections to each host is capped.
+ * The cap adapts to the observed latency using an {@link UpstreamLimiter}: When the image server slows down, fewer
+ * concurrent requests are allowed and excess requests are rejected quickly with an
+ * {@link UpstreamOverloadedException} instead of tying up request threads.
+ * </p><p>
+ * Connections are {@link HttpURLConnection}s with connect and read timeouts. Responses are always read fully and
+ * closed, so that the underlying connection is returned to the JDK keep-alive pool and reused for later requests.
+ * The size of the pool is set to the per host cap, unless {@code http.maxConnections} is specified explicitly.
+ * </p><p>
+ * {@link #fetchBytes(URL)} and {@link #fetchImage(URL)} are idempotent and are retried with jittered exponential
+ * backoff on connection problems and server errors. Optionally they are also hedged: If the response is slower than
+ * a percentile of the recent response times, a second request is issued and the first response wins. Retries and
+ * hedged requests are limited by a shared {@link RetryBudget}, so that they do not multiply the load during
+ * incidents.
+ * </p><p>
+ * Non-HTTP URLs, such as local files, are opened directly without caps.
+ * </p><p>
+ * Fetches and retries are not started if the {@link Cancellation#current()} has been cancelled.
+ */
+public class UpstreamClient {
+    private static Log log = LogFactory.getLog(UpstreamClient.class);
+
+    private static UpstreamClient instance = null;
+
+    private final int connectTimeoutMS;
+    private final int readTimeoutMS;
+    private final int maxPerHost;
+    private final Supplier<UpstreamLimiter> limiterFactory;
+    private final ConcurrentHashMap<String, UpstreamLimiter> hosts = new ConcurrentHashMap<>();
+    private final int maxRetries;
+    private final int retryBackoffMS;
+    private final double hedgePercentile;
+    private final long hedgeMinDelayNS;
+    private final RetryBudget budget;
+    private final ThreadPoolExecutor hedgeExecutor; // null if hedging is disabled
+    private final LatencyWindow latencies = new LatencyWindow(1024);
+
+    private final AtomicInteger active = new AtomicInteger(0);
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder waitNS = new LongAdder();
+    private final LongAdder requestNS = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+
+    /**
+     * @return the shared client, created from the setup properties {@code upstream.connect.timeout.ms},
+     *         {@code upstream.read.timeout.ms}, {@code upstream.connections.perhost}, {@code upstream.retry.*},
+     *         {@code upstream.hedge.*} and the limiter properties described in {@link UpstreamLimiter#create()}.
+     */
+    public static synchronized UpstreamClient getInstance() {
+        if (instance == null) {
+            instance = new UpstreamClient(Config.getInt("upstream.connect.timeout.ms"),
+                                          Config.getInt("upstream.read.timeout.ms"),
+                                          Config.getInt("upstream.connections.perhost"),
+                                          UpstreamLimiter::create,
+                                          Config.getInt("upstream.retry.max"),
+                                          Config.getInt("upstream.retry.backoff.ms"),
+                                          Double.parseDouble(Config.getString("upstream.hedge.percentile")),
+                                          Config.getInt("upstream.hedge.mindelay.ms"),
+                                          Config.getInt("upstream.hedge.threads"),
+                                          RetryBudget.create());
+        }
+        return instance;
+    }
+
+    /**
+     * Create a client with a fixed cap of maxPerHost concurrent connections to each host.
+     * @param connectTimeoutMS the maximum time for establishing a connection.
+     * @param readTimeoutMS    the maximum time between received bytes. Also the maximum time to wait for a
+     *                         connection when the cap for the host has been reached.
+     * @param maxPerHost       the maximum number of concurrent connections to a single host.
+     */
+    public UpstreamClient(int connectTimeoutMS, int readTimeoutMS, int maxPerHost) {
+        this(connectTimeoutMS, readTimeoutMS, maxPerHost,
+             () -> new UpstreamLimiter(maxPerHost, maxPerHost, maxPerHost, readTimeoutMS, Integer.MAX_VALUE,
+                                       readTimeoutMS, 1));
+    }
+
+    /**
+     * @param connectTimeoutMS the maximum time for establishing a connection.
+     * @param readTimeoutMS    the maximum time between received bytes.
+     * @param maxPerHost       the maximum number of concurrent connections to a single host.
+     * @param limiterFactory   creates the concurrency limiter for each new host.
+     */
+    public UpstreamClient(int connectTimeoutMS, int readTimeoutMS, int maxPerHost,
+                          Supplier<UpstreamLimiter> limiterFactory) {
+        this(connectTimeoutMS, readTimeoutMS, maxPerHost, limiterFactory, 0, 0, 0, 0, 0, null);
+    }
+
+    /**
+     * @param connectTimeoutMS the maximum time for establishing a connection.
+     * @param readTimeoutMS    the maximum time between received bytes.
+     * @param maxPerHost       the maximum number of concurrent connections to a single host.
+     * @param limiterFactory   creates the concurrency limiter for each new host.
+     * @param maxRetries       the maximum number of retries for failed fetches. 0 disables retries.
+     * @param retryBackoffMS   the base delay before retrying. The delay is random, up to base*2^retry.
+     * @param hedgePercentile  if a fetch is slower than this percentile of recent fetches, a hedged request is
+     *                         issued. 0 disables hedging.
+     * @param hedgeMinDelayMS  the minimum time before issuing a hedged request.
+     * @param hedgeThreads     the maximum number of concurrent fetches when hedging is enabled.
+     * @param budget           limits retries and hedged requests. Can be null if both are disabled.
+     */
+    public UpstreamClient(int connectTimeoutMS, int readTimeoutMS, int maxPerHost,
+                          Supplier<UpstreamLimiter> limiterFactory, int maxRetries, int retryBackoffMS,
+                          double hedgePercentile, int hedgeMinDelayMS, int hedgeThreads, RetryBudget budget) {
+        this.connectTimeoutMS = connectTimeoutMS;
+        this.readTimeoutMS = readTimeoutMS;
+        this.maxPerHost = maxPerHost;
+        this.limiterFactory = limiterFactory;
+        if ((maxRetries > 0 || hedgePercentile > 0) && budget == null) {
+            throw new IllegalArgumentException("A RetryBudget is needed when retries or hedging is enabled");
+        }
+        this.maxRetries = maxRetries;
+        this.retryBackoffMS = Math.max(1, retryBackoffMS);
+        this.hedgePercentile = Math.min(100, hedgePercentile);
+        this.hedgeMinDelayNS = TimeUnit.MILLISECONDS.toNanos(hedgeMinDelayMS);
+        this.budget = budget;
+        if (hedgePercentile > 0) {
+            final AtomicInteger threadCount = new AtomicInteger(0);
+            // Hedged fetches only wait for the image server, so virtual threads are used if enabled
+            final ThreadFactory threadFactory = VirtualThreads.isEnabled() ?
+                    VirtualThreads.factory("UpstreamHedge-") : runnable -> {
+                        Thread thread = new Thread(runnable, "UpstreamHedge-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    };
+            // No queue: If all threads are busy, fetches are done in the calling thread without hedging
+            hedgeExecutor = new ThreadPoolExecutor(0, Math.max(2, hedgeThreads), 60, TimeUnit.SECONDS,
+                                                   new SynchronousQueue<>(), threadFactory);
+        } else {
+            hedgeExecutor = null;
+        }
+        // Only has effect if set before the first HTTP connection in the JVM
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", Integer.toString(maxPerHost));
+        }
+        log.info("Created " + this);
+    }
+
+    /**
+     * Open a stream for the content at the URL. The stream must be closed after use to free the connection.
+     * @param url the resource to fetch.
+     * @return a stream with the content.
+     * @throws FileNotFoundException if the server responded with 404 or 410.
+     * @throws IOException if the content could not be fetched, including HTTP status codes 400 and above.
+     * @throws UpstreamOverloadedException if the host is overloaded and the request was rejected without trying.
+     */
+    public InputStream openStream(URL url) throws IOException {
+        if (!isHTTP(url)) {
+            return url.openStream();
+        }
+        final String host = url.getHost() + ":" + url.getPort();
+        final UpstreamLimiter limiter = hosts.computeIfAbsent(host, h -> limiterFactory.get());
+        Cancellation.checkpoint();
+        final long waitStart = System.nanoTime();
+        try {
+            limiter.acquire(host);
+        } catch (UpstreamOverloadedException e) {
+            rejected.increment();
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for connection to " + url.getHost(), e);
+        }
+        final long requestStart = System.nanoTime();
+        waitNS.add(requestStart-waitStart);
+        requests.increment();
+        active.incrementAndGet();
+        final HttpURLConnection connection;
+        final int status;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(connectTimeoutMS);
+            connection.setReadTimeout(readTimeoutMS);
+            status = connection.getResponseCode();
+        } catch (IOException | RuntimeException e) {
+            // Connection problems and timeouts signal an overloaded server
+            release(limiter, requestStart, true);
+            failed.increment();
+            throw e;
+        }
+        if (status >= 400) {
+            drain(connection.getErrorStream());
+            // Missing images are expected and says nothing about the state of the server
+            release(limiter, requestStart, status >= 500);
+            failed.increment();
+            if (status == 404 || status == 410) {
+                throw new FileNotFoundException("HTTP " + status + " for " + url);
+            }
+            throw new StatusException(status, url);
+        }
+        try {
+            return new ReleasingStream(connection.getInputStream(), limiter, requestStart);
+        } catch (IOException | RuntimeException e) {
+            release(limiter, requestStart, true);
+            failed.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * Fetch the content, with retries and hedging as described in the class documentation.
+     * @param url the resource to fetch.
+     * @return the full content at the URL.
+     */
+    public byte[] fetchBytes(URL url) throws IOException {
+        if (!isHTTP(url) || budget == null) {
+            return fetchOnce(url);
+        }
+        budget.deposit();
+        for (int attempt = 0 ; ; attempt++) {
+            Cancellation.checkpoint();
+            try {
+                return fetchHedged(url);
+            } catch (IOException e) {
+                if (attempt >= maxRetries || !isRetryable(e) || !budget.tryWithdraw()) {
+                    throw e;
+                }
+                retries.increment();
+                // Full jitter avoids synchronized retries from many clients
+                final long delayMS = ThreadLocalRandom.current().nextLong(((long) retryBackoffMS << attempt) + 1);
+                if (log.isDebugEnabled()) {
+                    log.debug("Retry #" + (attempt+1) + " for " + url + " in " + delayMS + "ms after " + e);
+                }
+                try {
+                    Thread.sleep(delayMS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting to retry " + url, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Connection problems and server errors might be temporary. Missing resources and bad requests are not.
+     * @return true if the exception signals a problem that might be solved by trying again.
+     */
+    static boolean isRetryable(IOException e) {
+        return !(e instanceof FileNotFoundException) &&
+               !(e instanceof StatusException && ((StatusException) e).getStatus() < 500);
+    }
+
+    // Issues a second request if the first is slow and returns the first successful response
+    private byte[] fetchHedged(URL url) throws IOException {
+        final long delayNS = getHedgeDelayNS();
+        if (delayNS < 0) {
+            return fetchOnce(url);
+        }
+        final HedgedFetch fetch = new HedgedFetch(url);
+        if (!fetch.submit(false)) {
+            return fetchOnce(url);
+        }
+        try {
+            try {
+                return fetch.winner.get(delayNS, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                if (!Cancellation.current().isCancelled() && budget.tryWithdraw() && fetch.submit(true)) {
+                    hedges.increment();
+                }
+            }
+            return fetch.winner.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching " + url, e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Exception fetching " + url, cause);
+        }
+    }
+
+    // The delay before a hedged request is issued or -1 if hedging is disabled or there are too few measurements
+    private long getHedgeDelayNS() {
+        if (hedgeExecutor == null) {
+            return -1;
+        }
+        final long percentileNS = latencies.getPercentile(hedgePercentile);
+        return percentileNS < 0 ? -1 : Math.max(hedgeMinDelayNS, percentileNS);
+    }
+
+    private byte[] fetchOnce(URL url) throws IOException {
+        final long startNS = System.nanoTime();
+        try (InputStream in = openStream(url)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(32*1024);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            if (hedgeExecutor != null) {
+                latencies.record(System.nanoTime()-startNS);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private boolean isHTTP(URL url) {
+        return "http".equals(url.getProtocol()) || "https".equals(url.getProtocol());
+    }
+
+    /**
+     * Drop-in replacement for {@link ImageIO#read(URL)}.
+     * @param url the image to fetch.
+     * @return the image or null if the content could not be decoded as an image.
+     * @throws IIOException if the content could not be fetched.
+     */
+    public BufferedImage fetchImage(URL url) throws IOException {
+        final byte[] content;
+        try {
+            content = fetchBytes(url);
+        } catch (IOException e) {
+            throw new IIOException("Can't get input stream from URL " + url, e);
+        }
+        return ImageIO.read(new ByteArrayInputStream(content));
+    }
+
+    private void drain(InputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) != -1) {
+                // Reading fully makes it possible to reuse the connection
+            }
+            in.close();
+        } catch (IOException e) {
+            log.trace("Exception draining error stream", e);
+        }
+    }
+
+    private void release(UpstreamLimiter limiter, long requestStart, boolean congested) {
+        final long spentNS = System.nanoTime()-requestStart;
+        requestNS.add(spentNS);
+        active.decrementAndGet();
+        limiter.release(spentNS, congested);
+    }
+
+    /**
+     * Used for deciding whether speculative requests, such as prefetches, should be issued.
+     * @param reserve the number of slots below the concurrency limit of a host to keep free for other requests.
+     * @return the number of requests in flight or waiting for all hosts, or Integer.MAX_VALUE if any host has
+     *         fewer than reserve free slots below its current adaptive limit.
+     */
+    public int getLoad(int reserve) {
+        int load = 0;
+        for (UpstreamLimiter limiter: hosts.values()) {
+            if (limiter.getHeadroom() < reserve) {
+                return Integer.MAX_VALUE;
+            }
+            load += limiter.getLoad();
+        }
+        return load;
+    }
+
+    public String getStats() {
+        final long requestCount = Math.max(1, requests.sum());
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ENGLISH, "upstream(active=%d, requests=%d, failed=%d, rejected=%d, " +
+                                                "retries=%d, hedges=%d, hedgeWins=%d, MB=%.1f, avgWaitMS=%.1f, " +
+                                                "avgRequestMS=%.1f, ",
+                                active.get(), requests.sum(), failed.sum(), rejected.sum(), retries.sum(),
+                                hedges.sum(), hedgeWins.sum(), bytes.sum()/1048576.0,
+                                waitNS.sum()/1000000.0/requestCount, requestNS.sum()/1000000.0/requestCount));
+        sb.append(budget == null ? "" : budget.getStats() + ", ").append("hosts=[");
+        boolean first = true;
+        for (Map.Entry<String, UpstreamLimiter> host: hosts.entrySet()) {
+            sb.append(first ? "" : ", ").append(host.getKey()).append("(").append(host.getValue().getStats());
+            sb.append(")");
+            first = false;
+        }
+        return sb.append("])").toString();
+    }
+
+    @Override
+    public String toString() {
+        return "UpstreamClient(connectTimeoutMS=" + connectTimeoutMS + ", readTimeoutMS=" + readTimeoutMS +
+               ", maxPerHost=" + maxPerHost + ", maxRetries=" + maxRetries + ", hedgePercentile=" +
+               hedgePercentile + ")";
+    }
+
+    // A fetch with up to 2 concurrent attempts, where the first successful attempt wins
+    private final class HedgedFetch {
+        private final URL url;
+        private final CompletableFuture<byte[]> winner = new CompletableFuture<>();
+        private final AtomicInteger pending = new AtomicInteger(0);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        public HedgedFetch(URL url) {
+            this.url = url;
+        }
+
+        // Returns false if there were no free threads
+        public boolean submit(boolean hedge) {
+            pending.incrementAndGet();
+            try {
+                hedgeExecutor.execute(() -> {
+                    try {
+                        if (winner.complete(fetchOnce(url)) && hedge) {
+                            hedgeWins.increment();
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                        attemptFailed();
+                    }
+                });
+                return true;
+            } catch (RejectedExecutionException e) {
+                attemptFailed();
+                return false;
+            }
+        }
+
+        // The overall fetch fails when all attempts have failed. The loser of a successful fetch is not cancelled
+        private void attemptFailed() {
+            if (pending.decrementAndGet() == 0 && failure.get() != null) {
+                winner.completeExceptionally(failure.get());
+            }
+        }
+    }
+
+    // The most recent response times, used for deriving the hedge delay
+    private static final class LatencyWindow {
+        private static final int MIN_SAMPLES = 100;
+        private static final int RECALCULATE_EVERY = 64;
+
+        private final long[] samples;
+        private int next = 0;
+        private long recorded = 0;
+        private long percentileNS = -1;
+        private double percentile = -1;
+        private long calculatedAt = -1;
+
+        public LatencyWindow(int size) {
+            samples = new long[size];
+        }
+
+        public synchronized void record(long latencyNS) {
+            samples[next] = latencyNS;
+            next = (next+1) % samples.length;
+            recorded++;
+        }
+
+        // Returns -1 if there are too few samples
+        public synchronized long getPercentile(double percentile) {
+            if (recorded < MIN_SAMPLES) {
+                return -1;
+            }
+            if (percentile != this.percentile || recorded - calculatedAt >= RECALCULATE_EVERY) {
+                final long[] sorted = Arrays.copyOf(samples, (int) Math.min(recorded, samples.length));
+                Arrays.sort(sorted);
+                final int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+                percentileNS = sorted[Math.max(0, Math.min(sorted.length-1, index))];
+                this.percentile = percentile;
+                calculatedAt = recorded;
+            }
+            return percentileNS;
+        }
+    }
+
+    // HTTP errors other than missing resources
+    private static final class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int status;
+
+        public StatusException(int status, URL url) {
+            super("HTTP " + status + " for " + url);
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    // Counts bytes and releases the limiter slot when closed
+    private final class ReleasingStream extends FilterInputStream {
+        private final UpstreamLimiter limiter;
+        private final long requestStart;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private volatile boolean readFailed = false;
+
+        public ReleasingStream(InputStream in, UpstreamLimiter limiter, long requestStart) {
+            super(in);
+            this.limiter = limiter;
+            this.requestStart = requestStart;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                final int b = super.read();
+                if (b != -1) {
+                    bytes.increment();
+                }
+                return b;
+            } catch (IOException e) {
+                readFailed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                final int read = super.read(b, off, len);
+                if (read > 0) {
+                    bytes.add(read);
+                }
+                return read;
+            } catch (IOException e) {
+                readFailed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed.compareAndSet(false, true)) {
+                try {
+                    super.close();
+                } finally {
+                    release(limiter, requestStart, readFailed);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive concurrency limit for requests to a single upstream host, using AIMD (additive increase, multiplicative
+ * decrease): The limit grows by 1 for each limit's worth of fast responses while the limit is fully used and shrinks
+ * by 10% when responses are slower than the latency threshold or fail. Decreases are spaced by at least the latency
+ * threshold, so that a single burst of slow responses does not collapse the limit.
+ * </p><p>
+ * Requests above the limit wait in a bounded queue. When the queue is full or the wait times out, the request is
+ * rejected with an {@link UpstreamOverloadedException}, so that request threads are not tied up by a struggling
+ * image server.
+ */
+public class UpstreamLimiter {
+    private static final double BACKOFF = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNS;
+    private final int queueSize;
+    private final long queueTimeoutNS;
+    private final int retryAfterSeconds;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private double limit;
+    private int inFlight = 0;
+    private int waiting = 0;
+    private long lastDecreaseNS = System.nanoTime();
+
+    private long acquired = 0;
+    private long rejected = 0;
+    private long decreases = 0;
+
+    /**
+     * Creates a limiter from the setup properties {@code upstream.limit.*}, {@code upstream.queue.*} and
+     * {@code upstream.connections.perhost} as the maximum limit.
+     */
+    public static UpstreamLimiter create() {
+        return new UpstreamLimiter(Config.getInt("upstream.limit.initial"), Config.getInt("upstream.limit.min"),
+                                   Config.getInt("upstream.connections.perhost"),
+                                   Config.getInt("upstream.limit.latency.ms"), Config.getInt("upstream.queue.size"),
+                                   Config.getInt("upstream.queue.timeout.ms"),
+                                   Config.getInt("upstream.retryafter.seconds"));
+    }
+
+    /**
+     * @param initialLimit       the starting concurrency limit.
+     * @param minLimit           the lowest possible limit. Must be at least 1.
+     * @param maxLimit           the highest possible limit.
+     * @param latencyThresholdMS requests slower than this causes the limit to decrease.
+     * @param queueSize          the maximum number of requests waiting for the limit.
+     * @param queueTimeoutMS     the maximum time a request waits for the limit.
+     * @param retryAfterSeconds  the suggested retry time for rejected requests.
+     */
+    public UpstreamLimiter(int initialLimit, int minLimit, int maxLimit, long latencyThresholdMS, int queueSize,
+                           long queueTimeoutMS, int retryAfterSeconds) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+        this.latencyThresholdNS = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMS);
+        this.queueSize = queueSize;
+        this.queueTimeoutNS = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMS);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Wait for a slot below the limit. Every successful call must be followed by a call to
+     * {@link #release(long, boolean)}.
+     * @param designation used in the exception message.
+     * @throws UpstreamOverloadedException if the queue is full or no slot became free before the queue timeout.
+     */
+    public void acquire(String designation) throws InterruptedException {
+        lock.lock();
+        try {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                acquired++;
+                return;
+            }
+            if (waiting >= queueSize) {
+                rejected++;
+                throw new UpstreamOverloadedException(
+                        "Upstream " + designation + " overloaded: " + inFlight + " requests in flight and " +
+                        waiting + " waiting", retryAfterSeconds);
+            }
+            waiting++;
+            try {
+                long remainingNS = queueTimeoutNS;
+                while (inFlight >= (int) limit) {
+                    if (remainingNS <= 0) {
+                        rejected++;
+                        throw new UpstreamOverloadedException(
+                                "Upstream " + designation + " overloaded: Timeout after " +
+                                queueTimeoutNS/1000000 + "ms waiting for one of " + (int) limit + " slots",
+                                retryAfterSeconds);
+                    }
+                    remainingNS = available.awaitNanos(remainingNS);
+                }
+                inFlight++;
+                acquired++;
+            } finally {
+                waiting--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Free the slot and adjust the limit.
+     * @param latencyNS the time the request took.
+     * @param congested true if the request failed in a way that indicates upstream problems, such as a timeout.
+     */
+    public void release(long latencyNS, boolean congested) {
+        lock.lock();
+        try {
+            final boolean saturated = inFlight >= (int) limit;
+            inFlight--;
+            final long now = System.nanoTime();
+            if (congested || latencyNS > latencyThresholdNS) {
+                if (now - lastDecreaseNS > latencyThresholdNS && limit > minLimit) {
+                    limit = Math.max(minLimit, limit * BACKOFF);
+                    lastDecreaseNS = now;
+                    decreases++;
+                }
+            } else if (saturated) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the current concurrency limit.
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of requests in flight or waiting for a slot.
+     */
+    public int getLoad() {
+        lock.lock();
+        try {
+            return inFlight + waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of free slots below the current concurrency limit. Negative if requests are waiting.
+     */
+    public int getHeadroom() {
+        lock.lock();
+        try {
+            return (int) limit - inFlight - waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String getStats() {
+        lock.lock();
+        try {
+            return String.format(Locale.ENGLISH, "limit=%.1f, inFlight=%d, waiting=%d, acquired=%d, rejected=%d, " +
+                                                 "decreases=%d", limit, inFlight, waiting, acquired, rejected,
+                                 decreases);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -309,7 +309,7 @@ public class Util {
 
     public static String fetchString(URL url) throws IOException {
         StringBuilder sb = new StringBuilder();
-        BufferedReader in = new BufferedReader(new InputStreamReader(url.openStream()));
+        BufferedReader in = new BufferedReader(new InputStreamReader(UpstreamClient.getInstance().openStream(url)));
         try {
             String inputLine;
 
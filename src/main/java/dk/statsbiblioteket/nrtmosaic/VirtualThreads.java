@@ -0,0 +1,207 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Optional execution of I/O-bound work on virtual threads. Most of the time for a tile is spent waiting for the
+ * image server and for page faults in the mapped corpus files. With virtual threads, a blocked tile job does not
+ * occupy a platform thread, so many more tiles can be in progress at the same time.
+ * </p><p>
+ * Virtual threads are only used if {@code prime.virtualthreads} is true and the JDK provides them (Java 21+). They
+ * are accessed by reflection, so the code still builds and runs on Java 8. CPU-heavy steps, such as mapping,
+ * rendering and encoding, are wrapped in {@link #onPlatform(Callable)}, which runs them on a bounded pool of platform
+ * threads when called from a virtual thread, so that the number of concurrent CPU-heavy steps stays bounded.
+ */
+public final class VirtualThreads {
+    private static Log log = LogFactory.getLog(VirtualThreads.class);
+
+    private static final Method OF_VIRTUAL; // Thread.ofVirtual()
+    private static final Method NAME;       // Thread.Builder.name(String, long)
+    private static final Method FACTORY;    // Thread.Builder.factory()
+    private static final Method IS_VIRTUAL; // Thread.isVirtual()
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method isVirtual = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = ofVirtual.getReturnType().getMethod("name", String.class, long.class);
+            factory = ofVirtual.getReturnType().getMethod("factory");
+            isVirtual = Thread.class.getMethod("isVirtual");
+            // Preview builds of Java 19 and 20 have the methods, but fail when they are called
+            ofVirtual.invoke(null);
+        } catch (Exception e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        IS_VIRTUAL = isVirtual;
+    }
+
+    private static volatile ThreadPoolExecutor platformPool = null; // Created by enable
+    private static final LongAdder offloaded = new LongAdder();
+
+    private VirtualThreads() { }
+
+    /**
+     * @return true if the JDK provides virtual threads.
+     */
+    public static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @return true if {@code prime.virtualthreads} is true and the JDK provides virtual threads.
+     */
+    public static boolean isEnabled() {
+        if (!Config.getBool("prime.virtualthreads")) {
+            return false;
+        }
+        if (!isAvailable()) {
+            log.warn("prime.virtualthreads is true, but virtual threads are not available in Java " +
+                     System.getProperty("java.version") + ". Platform threads are used");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param prefix the prefix for the thread names, which will be followed by a counter.
+     * @return a factory for virtual threads.
+     * @throws IllegalStateException if virtual threads are not available.
+     */
+    public static ThreadFactory factory(String prefix) {
+        if (!isAvailable()) {
+            throw new IllegalStateException("Virtual threads are not available in Java " +
+                                            System.getProperty("java.version"));
+        }
+        try {
+            return (ThreadFactory) FACTORY.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L));
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to create virtual thread factory", e);
+        }
+    }
+
+    /**
+     * @return true if the thread is a virtual thread.
+     */
+    public static boolean isVirtual(Thread thread) {
+        try {
+            return IS_VIRTUAL != null && (Boolean) IS_VIRTUAL.invoke(thread);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Start the pool of platform threads used by {@link #onPlatform(Callable)}. Subsequent calls have no effect.
+     * @param threads the number of platform threads. If 0 or less, the number of processors is used.
+     */
+    public static synchronized void enable(int threads) {
+        if (platformPool != null) {
+            return;
+        }
+        final int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                poolSize, poolSize, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "CPUWorker-" + threadCount.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        platformPool = pool;
+        log.info("Enabled virtual threads with " + poolSize + " platform threads for CPU-heavy work");
+    }
+
+    public static synchronized void shutdown() {
+        if (platformPool != null) {
+            platformPool.shutdownNow();
+            platformPool = null;
+        }
+    }
+
+    /**
+     * Perform a CPU-heavy job. If the calling thread is virtual, the job is performed on the bounded pool of
+     * platform threads and the virtual thread waits for it. Otherwise the job is performed directly.
+     * The {@link Cancellation#current()} of the calling thread is used for the job.
+     * @param job the CPU-heavy job.
+     * @return the result of the job.
+     */
+    public static <V> V onPlatform(Callable<V> job) throws Exception {
+        final ThreadPoolExecutor pool = platformPool;
+        if (pool == null || !isVirtual(Thread.currentThread())) {
+            return job.call();
+        }
+        offloaded.increment();
+        final Cancellation cancellation = Cancellation.current();
+        final Future<V> future = pool.submit(() -> Cancellation.call(cancellation, job));
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Version of {@link #onPlatform(Callable)} for jobs without checked exceptions.
+     * @param job the CPU-heavy job.
+     * @return the result of the job.
+     */
+    public static <V> V computeOnPlatform(Supplier<V> job) {
+        try {
+            return onPlatform(job::get);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for CPU-heavy job");
+        } catch (Exception e) {
+            throw new RuntimeException("Exception performing CPU-heavy job", e);
+        }
+    }
+
+    public static String getStats() {
+        final ThreadPoolExecutor pool = platformPool;
+        return pool == null ? "VirtualThreads(disabled)" : String.format(
+                Locale.ENGLISH, "VirtualThreads(cpuThreads=%d, active=%d, queued=%d, offloaded=%d)",
+                pool.getCorePoolSize(), pool.getActiveCount(), pool.getQueue().size(), offloaded.sum());
+    }
+}
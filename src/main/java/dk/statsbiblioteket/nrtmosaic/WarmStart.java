@@ -0,0 +1,263 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Persists the hot working set (tile sources, response cache keys, hot pyramids and similar) periodically and on
+ * shutdown and replays it in the background on startup, so that a restarted node quickly returns to steady state
+ * latency instead of starting with cold caches.
+ * </p><p>
+ * The snapshot is a text file with one {@code <participant>\t<key>} line per entry, hottest first. It is written
+ * to a temporary file which is then moved into place, so a crash during snapshotting leaves the previous snapshot.
+ * Snapshots made with another pyramid corpus are ignored.
+ */
+public class WarmStart {
+    private static Log log = LogFactory.getLog(WarmStart.class);
+
+    private static final String HEADER = "# nrtmosaic warm start, corpus signature ";
+
+    /**
+     * A structure holding part of the hot working set.
+     */
+    public interface Participant {
+        /**
+         * @return the name of the participant, used for identifying its entries in the snapshot. No whitespace.
+         */
+        String getName();
+
+        /**
+         * @param max the maximum number of keys to return.
+         * @return the keys for the hottest entries, hottest first. Keys must not contain line breaks or tabs.
+         */
+        List<String> getHotKeys(int max);
+
+        /**
+         * Re-create the entries for the given keys. Called from the replay thread, which is interrupted on shutdown.
+         * @param keys the keys from the snapshot, hottest first.
+         * @return the number of warmed entries.
+         */
+        int warm(List<String> keys);
+    }
+
+    private final Path snapshotFile;
+    private final long signature;
+    private final int maxKeys;
+    private final List<Participant> participants;
+    private final ScheduledExecutorService executor;
+
+    private final LongAdder snapshots = new LongAdder();
+    private final AtomicInteger lastSnapshotKeys = new AtomicInteger(0);
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder warmed = new LongAdder();
+    // True from replay until the replay has completed. The caches are still cold while this is true
+    private volatile boolean replayPending = false;
+
+    /**
+     * Creates a warm start handler from the setup properties {@code warmstart.file}, {@code warmstart.keys} and
+     * {@code warmstart.interval.minutes}.
+     * @param signature    the signature of the pyramid corpus.
+     * @param participants the structures holding the working set, in replay order.
+     * @return a warm start handler or null if {@code warmstart.file} is empty.
+     */
+    public static WarmStart create(long signature, Participant... participants) {
+        final String file = Config.getString("warmstart.file");
+        return file == null || file.isEmpty() ? null :
+                new WarmStart(Paths.get(file), signature, Config.getInt("warmstart.keys"),
+                              Config.getInt("warmstart.interval.minutes")*60*1000L, participants);
+    }
+
+    /**
+     * @param snapshotFile the file to store snapshots in.
+     * @param signature    the signature of the pyramid corpus.
+     * @param maxKeys      the maximum number of keys to persist for each participant.
+     * @param intervalMS   the interval between periodic snapshots. 0 disables periodic snapshots.
+     * @param participants the structures holding the working set, in replay order.
+     */
+    public WarmStart(Path snapshotFile, long signature, int maxKeys, long intervalMS, Participant... participants) {
+        this.snapshotFile = snapshotFile;
+        this.signature = signature;
+        this.maxKeys = maxKeys;
+        this.participants = Arrays.asList(participants);
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "WarmStart");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        if (intervalMS > 0) {
+            executor.scheduleWithFixedDelay(this::snapshotQuietly, intervalMS, intervalMS, TimeUnit.MILLISECONDS);
+        }
+        log.info("Created " + this);
+    }
+
+    /**
+     * Replay the latest snapshot in the background. This call returns immediately.
+     */
+    public void replay() {
+        replayPending = true;
+        executor.execute(this::replayNow);
+    }
+
+    /**
+     * Read the latest snapshot and warm the participants in the calling thread.
+     * @return the number of warmed entries.
+     */
+    int replayNow() {
+        final long startTime = System.nanoTime();
+        final Map<String, List<String>> keys = load();
+        int total = 0;
+        for (Participant participant: participants) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            final List<String> pKeys = keys.get(participant.getName());
+            if (pKeys == null || pKeys.isEmpty()) {
+                continue;
+            }
+            try {
+                final int pWarmed = participant.warm(pKeys);
+                log.info("Warmed " + pWarmed + "/" + pKeys.size() + " " + participant.getName() + " entries in " +
+                         (System.nanoTime()-startTime)/1000000 + "ms since replay start");
+                replayed.add(pKeys.size());
+                warmed.add(pWarmed);
+                total += pWarmed;
+            } catch (Exception e) {
+                log.warn("Exception warming " + participant.getName() + " entries from " + snapshotFile, e);
+            }
+        }
+        if (!Thread.currentThread().isInterrupted()) {
+            replayPending = false;
+        }
+        return total;
+    }
+
+    // Returns the keys for each participant from the snapshot, empty if there is no valid snapshot
+    private Map<String, List<String>> load() {
+        final Map<String, List<String>> keys = new LinkedHashMap<>();
+        if (!Files.exists(snapshotFile)) {
+            log.info("No warm start snapshot at " + snapshotFile);
+            return keys;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(snapshotFile, StandardCharsets.UTF_8)) {
+            final String header = reader.readLine();
+            if (!(HEADER + signature).equals(header)) {
+                log.info("Ignoring warm start snapshot " + snapshotFile + " as it is for another pyramid corpus");
+                return keys;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int split = line.indexOf('\t');
+                if (split <= 0) {
+                    continue;
+                }
+                keys.computeIfAbsent(line.substring(0, split), name -> new ArrayList<>()).
+                        add(line.substring(split+1));
+            }
+        } catch (IOException e) {
+            log.warn("Unable to read warm start snapshot " + snapshotFile, e);
+        }
+        return keys;
+    }
+
+    /**
+     * Write the hot keys for all participants to the snapshot file.
+     * @return the number of written keys.
+     */
+    public synchronized int snapshot() throws IOException {
+        final long startTime = System.nanoTime();
+        if (snapshotFile.getParent() != null) {
+            Files.createDirectories(snapshotFile.getParent());
+        }
+        final Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        int written = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write(HEADER + signature);
+            writer.newLine();
+            for (Participant participant: participants) {
+                for (String key: participant.getHotKeys(maxKeys)) {
+                    if (key.indexOf('\n') != -1 || key.indexOf('\r') != -1) {
+                        continue;
+                    }
+                    writer.write(participant.getName());
+                    writer.write('\t');
+                    writer.write(key);
+                    writer.newLine();
+                    written++;
+                }
+            }
+        }
+        Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        snapshots.increment();
+        lastSnapshotKeys.set(written);
+        log.debug("Wrote " + written + " keys to warm start snapshot " + snapshotFile + " in " +
+                  (System.nanoTime()-startTime)/1000000 + "ms");
+        return written;
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (Exception e) {
+            log.warn("Unable to write warm start snapshot " + snapshotFile, e);
+        }
+    }
+
+    /**
+     * Stop any running replay and write a final snapshot. If the replay has not completed, the caches do not yet
+     * hold the working set and the existing snapshot is kept, so that quick redeploys do not lose the working set.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        if (replayPending) {
+            log.info("Keeping the existing warm start snapshot " + snapshotFile + " as the replay has not completed");
+            return;
+        }
+        snapshotQuietly();
+    }
+
+    public String getStats() {
+        return String.format(Locale.ENGLISH, "warmStart(snapshots=%d, lastSnapshotKeys=%d, replayed=%d, warmed=%d)",
+                             snapshots.sum(), lastSnapshotKeys.get(), replayed.sum(), warmed.sum());
+    }
+
+    @Override
+    public String toString() {
+        return "WarmStart(file=" + snapshotFile + ", maxKeys=" + maxKeys + ", participants=" + participants.size() +
+               ")";
+    }
+}
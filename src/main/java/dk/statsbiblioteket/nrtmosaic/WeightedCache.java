@@ -0,0 +1,457 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread safe cache bounded by the summed weight (normally bytes) of its values, using the W-TinyLFU policy:
+ * New entries enter a small LRU window. Entries leaving the window compete with the least recently used entry of
+ * the main segmented LRU for a spot, with the estimated access frequency deciding the winner. This makes the cache
+ * resistant to pollution from scans, such as users browsing random images.
+ * </p><p>
+ * Lookups do not lock: The value map is concurrent, access frequencies are recorded in a lossy sketch and
+ * re-ordering of the LRU structures is buffered and applied when the policy lock is free.
+ */
+public class WeightedCache<K, V> {
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+    private static final int READ_BUFFER_SIZE = 256;
+
+    private final String designation;
+    private final long maxWeight;
+    private final long windowMax;
+    private final long protectedMax;
+    private final Weigher<K, V> weigher;
+
+    private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final ArrayBlockingQueue<Node<K, V>> readBuffer = new ArrayBlockingQueue<>(READ_BUFFER_SIZE);
+    private final FrequencySketch sketch;
+    private final NodeList<K, V> window = new NodeList<>();
+    private final NodeList<K, V> probation = new NodeList<>();
+    private final NodeList<K, V> protectedList = new NodeList<>();
+    private long windowWeight = 0;
+    private long protectedWeight = 0;
+    private long totalWeight = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * Calculates the weight of a cache entry. The weight must not change while the entry is cached.
+     */
+    public interface Weigher<K, V> {
+        long weigh(K key, V value);
+    }
+
+    /**
+     * @param designation    name of the cache, used for statistics.
+     * @param maxWeight      the maximum summed weight of the cached values.
+     * @param expectedWeight the expected average weight of an entry, used for sizing the frequency sketch.
+     * @param weigher        calculates the weight of the entries.
+     */
+    public WeightedCache(String designation, long maxWeight, long expectedWeight, Weigher<K, V> weigher) {
+        this.designation = designation;
+        this.maxWeight = maxWeight;
+        this.windowMax = Math.max(1, maxWeight*WINDOW_PERCENT/100);
+        this.protectedMax = (maxWeight-windowMax)*PROTECTED_PERCENT/100;
+        this.weigher = weigher;
+        this.sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(16, maxWeight/Math.max(1, expectedWeight))));
+    }
+
+    /**
+     * @return the value for the key or null if not present.
+     */
+    public V get(K key) {
+        sketch.increment(key.hashCode());
+        final Node<K, V> node = data.get(key);
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (!readBuffer.offer(node) || readBuffer.size() > READ_BUFFER_SIZE/2) {
+            tryDrain();
+        }
+        return node.value;
+    }
+
+    /**
+     * @return the value for the key or null if not present. Does not count as an access.
+     */
+    public V peek(K key) {
+        final Node<K, V> node = data.get(key);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * @return true if the key is present. Does not count as an access.
+     */
+    public boolean containsKey(K key) {
+        return data.containsKey(key);
+    }
+
+    /**
+     * Add the key-value pair to the cache. Depending on the access frequency of the key, the entry might be rejected
+     * or evicted immediately.
+     */
+    public void put(K key, V value) {
+        final long weight = weigher.weigh(key, value);
+        if (!canHold(weight)) {
+            rejections.increment();
+            return;
+        }
+        final Node<K, V> node = new Node<>(key, value, weight);
+        policyLock.lock();
+        try {
+            drainReadBuffer();
+            final Node<K, V> existing = data.put(key, node);
+            if (existing != null) {
+                unlink(existing);
+            }
+            window.addLast(node);
+            node.queue = Node.WINDOW;
+            windowWeight += weight;
+            totalWeight += weight;
+            evict();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * @return the removed value or null if the key was not present.
+     */
+    public V remove(K key) {
+        policyLock.lock();
+        try {
+            final Node<K, V> node = data.remove(key);
+            if (node == null) {
+                return null;
+            }
+            unlink(node);
+            return node.value;
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    public void clear() {
+        policyLock.lock();
+        try {
+            for (K key: new ArrayList<>(data.keySet())) {
+                remove(key);
+            }
+            readBuffer.clear();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    public long getWeight() {
+        return totalWeight;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * @param weight the weight of an entry.
+     * @return true if an entry with the given weight is not too heavy to be added, see {@link #put}.
+     */
+    public boolean canHold(long weight) {
+        return weight <= maxWeight-windowMax;
+    }
+
+    /**
+     * @param max the maximum number of keys to return.
+     * @return the cached keys, ordered by estimated access frequency with the most frequent first.
+     */
+    public List<K> getHottestKeys(int max) {
+        List<Node<K, V>> nodes = new ArrayList<>(data.values());
+        nodes.sort((n1, n2) -> sketch.frequency(n2.key.hashCode()) - sketch.frequency(n1.key.hashCode()));
+        List<K> keys = new ArrayList<>(Math.min(max, nodes.size()));
+        for (int i = 0 ; i < nodes.size() && i < max ; i++) {
+            keys.add(nodes.get(i).key);
+        }
+        return keys;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+    public long getMisses() {
+        return misses.sum();
+    }
+    public long getEvictions() {
+        return evictions.sum();
+    }
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    public String getStats() {
+        final long h = hits.sum();
+        final long m = misses.sum();
+        return String.format(Locale.ENGLISH,
+                "%s(entries=%d, weight=%,d/%,d, hits=%d, misses=%d, hitRatio=%.2f, evictions=%d, rejections=%d)",
+                designation, data.size(), totalWeight, maxWeight, h, m, h+m == 0 ? 0.0 : 1.0*h/(h+m),
+                evictions.sum(), rejections.sum());
+    }
+
+    @Override
+    public String toString() {
+        return getStats();
+    }
+
+    private void tryDrain() {
+        if (policyLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                policyLock.unlock();
+            }
+        }
+    }
+
+    // Must be called under policyLock
+    private void drainReadBuffer() {
+        Node<K, V> node;
+        while ((node = readBuffer.poll()) != null) {
+            onAccess(node);
+        }
+    }
+
+    // Must be called under policyLock
+    private void onAccess(Node<K, V> node) {
+        switch (node.queue) {
+            case Node.WINDOW:
+                window.moveToLast(node);
+                break;
+            case Node.PROBATION:
+                probation.remove(node);
+                protectedList.addLast(node);
+                node.queue = Node.PROTECTED;
+                protectedWeight += node.weight;
+                while (protectedWeight > protectedMax && protectedList.first() != null) {
+                    Node<K, V> demoted = protectedList.removeFirst();
+                    protectedWeight -= demoted.weight;
+                    probation.addLast(demoted);
+                    demoted.queue = Node.PROBATION;
+                }
+                break;
+            case Node.PROTECTED:
+                protectedList.moveToLast(node);
+                break;
+            default: // Removed since the access was recorded
+        }
+    }
+
+    // Must be called under policyLock
+    private void evict() {
+        // Entries overflowing the window becomes candidates in probation
+        while (windowWeight > windowMax && window.first() != null) {
+            Node<K, V> candidate = window.removeFirst();
+            windowWeight -= candidate.weight;
+            probation.addLast(candidate);
+            candidate.queue = Node.PROBATION;
+        }
+        while (totalWeight > maxWeight) {
+            final Node<K, V> victim = probation.first() != null ? probation.first() :
+                    protectedList.first() != null ? protectedList.first() : window.first();
+            final Node<K, V> candidate = probation.last();
+            if (candidate == null || candidate == victim) {
+                evict(victim, false);
+            } else if (sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+                evict(victim, false);
+            } else {
+                evict(candidate, true);
+            }
+        }
+    }
+
+    // Must be called under policyLock
+    private void evict(Node<K, V> node, boolean rejected) {
+        data.remove(node.key, node);
+        unlink(node);
+        if (rejected) {
+            rejections.increment();
+        } else {
+            evictions.increment();
+        }
+    }
+
+    // Must be called under policyLock
+    private void unlink(Node<K, V> node) {
+        switch (node.queue) {
+            case Node.WINDOW:
+                window.remove(node);
+                windowWeight -= node.weight;
+                break;
+            case Node.PROBATION:
+                probation.remove(node);
+                break;
+            case Node.PROTECTED:
+                protectedList.remove(node);
+                protectedWeight -= node.weight;
+                break;
+            default:
+                return;
+        }
+        totalWeight -= node.weight;
+        node.queue = Node.NONE;
+    }
+
+    private static final class Node<K, V> {
+        private static final int NONE = 0;
+        private static final int WINDOW = 1;
+        private static final int PROBATION = 2;
+        private static final int PROTECTED = 3;
+
+        private final K key;
+        private final V value;
+        private final long weight;
+        private int queue = NONE;
+        private Node<K, V> prev;
+        private Node<K, V> next;
+
+        public Node(K key, V value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    // Doubly linked list with least recently used first
+    private static final class NodeList<K, V> {
+        private Node<K, V> head = null;
+        private Node<K, V> tail = null;
+
+        public Node<K, V> first() {
+            return head;
+        }
+        public Node<K, V> last() {
+            return tail;
+        }
+        public void addLast(Node<K, V> node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+        }
+        public Node<K, V> removeFirst() {
+            final Node<K, V> node = head;
+            if (node != null) {
+                remove(node);
+            }
+            return node;
+        }
+        public void remove(Node<K, V> node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+        public void moveToLast(Node<K, V> node) {
+            if (node != tail) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    /**
+     * Count-Min sketch with 4 hash functions and counters saturating at 15. All counters are halved periodically,
+     * so that old popularity fades. Updates are not synchronized: Lost increments only makes the estimates slightly
+     * less precise.
+     */
+    static final class FrequencySketch {
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x97cb3127, 0x8b7e5fb9, 0x85ebca6b, 0xc2b2ae35};
+
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int expectedEntries) {
+            int size = Integer.highestOneBit(Math.max(16, expectedEntries)*4-1) << 1;
+            counters = new byte[size];
+            mask = size-1;
+            sampleSize = 10*expectedEntries;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int seed: SEEDS) {
+                final int index = index(hash, seed);
+                if (counters[index] < MAX_COUNT) {
+                    counters[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = MAX_COUNT;
+            for (int seed: SEEDS) {
+                frequency = Math.min(frequency, counters[index(hash, seed)]);
+            }
+            return frequency;
+        }
+
+        private void reset() {
+            additions = 0;
+            for (int i = 0 ; i < counters.length ; i++) {
+                counters[i] = (byte) (counters[i] >>> 1);
+            }
+        }
+
+        private int index(int hash, int seed) {
+            int h = (hash ^ seed) * 0x9E3779B9;
+            h ^= h >>> 16;
+            return h & mask;
+        }
+    }
+}
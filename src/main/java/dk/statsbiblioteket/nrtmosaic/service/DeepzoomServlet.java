@@ -0,0 +1,288 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic.service;
+
+import dk.statsbiblioteket.nrtmosaic.Config;
+import dk.statsbiblioteket.nrtmosaic.EncodedTile;
+import dk.statsbiblioteket.nrtmosaic.Prime;
+import dk.statsbiblioteket.nrtmosaic.service.exception.InvalidArgumentServiceException;
+import dk.statsbiblioteket.nrtmosaic.service.exception.NotFoundServiceException;
+import dk.statsbiblioteket.nrtmosaic.service.exception.ServiceException;
+import dk.statsbiblioteket.nrtmosaic.service.exception.ServiceUnavailableServiceException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves deepzoom tiles with the same parameters as {@link NrtmosaicResource#getImageDeepzoom}, but without holding
+ * on to the request thread while tiles are fetched, rendered and encoded. Cached tiles are delivered directly.
+ * Other tiles are resolved by the bounded worker pool in {@link Prime#deepzoomEncodedAsync} and the response is
+ * written from the worker thread when the tile is ready.
+ * </p><p>
+ * The project is compiled against the Servlet 2.5 API, so Servlet 3 async is accessed using reflection. If the
+ * container does not support async, the request thread waits for the tile.
+ * </p><p>
+ * If the client disconnects or the async timeout is reached before the tile is ready, the future for the tile is
+ * cancelled, which stops upstream fetches, mapping and rendering that no other request is waiting for.
+ */
+public class DeepzoomServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    private static Log log = LogFactory.getLog(DeepzoomServlet.class);
+
+    private static final Method START_ASYNC;        // ServletRequest.startAsync()
+    private static final Method IS_ASYNC_SUPPORTED; // ServletRequest.isAsyncSupported()
+    private static final Method SET_TIMEOUT;        // AsyncContext.setTimeout(long)
+    private static final Method COMPLETE;           // AsyncContext.complete()
+    private static final Method ADD_LISTENER;       // AsyncContext.addListener(AsyncListener)
+    static {
+        Method startAsync = null;
+        Method isAsyncSupported = null;
+        Method setTimeout = null;
+        Method complete = null;
+        Method addListener = null;
+        try {
+            startAsync = ServletRequest.class.getMethod("startAsync");
+            isAsyncSupported = ServletRequest.class.getMethod("isAsyncSupported");
+            setTimeout = startAsync.getReturnType().getMethod("setTimeout", long.class);
+            complete = startAsync.getReturnType().getMethod("complete");
+            addListener = startAsync.getReturnType().getMethod(
+                    "addListener", Class.forName("javax.servlet.AsyncListener", false,
+                                                 startAsync.getReturnType().getClassLoader()));
+        } catch (NoSuchMethodException | ClassNotFoundException e) {
+            log.info("Servlet 3 async is not available. Request threads will wait for tiles to be resolved");
+            startAsync = null;
+        }
+        START_ASYNC = startAsync;
+        IS_ASYNC_SUPPORTED = isAsyncSupported;
+        SET_TIMEOUT = setTimeout;
+        COMPLETE = complete;
+        ADD_LISTENER = addListener;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final String deepZoom = request.getParameter("DeepZoom");
+        final String gam = request.getParameter("GAM");
+        final String cnt = request.getParameter("CNT");
+        try {
+            if (deepZoom == null || deepZoom.isEmpty()) {
+                throw new IllegalArgumentException("The parameter DeepZoom must be specified");
+            }
+            if (deepZoom.contains(".dzi")) {
+                writeText(response, HttpServletResponse.SC_OK, "application/xml", Prime.instance().getDZI(deepZoom));
+                return;
+            }
+            final String redirect = Prime.instance().getBasicRedirect(deepZoom, gam, cnt);
+            if (redirect != null) {
+                response.sendRedirect(redirect);
+                return;
+            }
+
+            final CompletableFuture<EncodedTile> future =
+                    Prime.instance().deepzoomEncodedAsync(deepZoom, gam, cnt, getClient(request));
+            if (future.isDone() || !isAsyncSupported(request)) {
+                writeTile(response, await(future));
+                return;
+            }
+            final Object async = START_ASYNC.invoke(request);
+            SET_TIMEOUT.invoke(async, Config.getLong("prime.async.timeout.ms"));
+            // Either the tile, the error or the timeout is delivered, whichever comes first
+            final AtomicBoolean responded = new AtomicBoolean(false);
+            addAbandonListener(async, () -> {
+                if (responded.compareAndSet(false, true)) {
+                    try {
+                        writeError(response, new ServiceUnavailableServiceException(
+                                "Timeout waiting for tile", Config.getInt("upstream.retryafter.seconds")));
+                    } catch (Exception e) {
+                        log.debug("Unable to deliver timeout for " + deepZoom, e);
+                    } finally {
+                        complete(async);
+                    }
+                }
+                future.cancel(false);
+            }, () -> future.cancel(false));
+            future.whenComplete((tile, error) -> {
+                if (!responded.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    if (future.isCancelled()) {
+                        log.debug("Tile request for " + deepZoom + " was abandoned by the client");
+                    } else if (error == null) {
+                        writeTile(response, tile);
+                    } else {
+                        writeError(response, error);
+                    }
+                } catch (Exception e) {
+                    // Typically the async timeout has been reached or the client has disconnected
+                    log.debug("Unable to deliver tile for " + deepZoom, e);
+                } finally {
+                    complete(async);
+                }
+            });
+        } catch (Exception e) {
+            writeError(response, e);
+        }
+    }
+
+    /**
+     * Identifies the client for fair scheduling of tile work, see {@link dk.statsbiblioteket.nrtmosaic.TileScheduler}.
+     * If {@code prime.async.client.header} is set and present in the request, the first value of the header is used.
+     * This is typically {@code X-Forwarded-For} when running behind a proxy.
+     * @return the client for the request or null if it could not be determined.
+     */
+    static String getClient(HttpServletRequest request) {
+        if (request == null) {
+            return null;
+        }
+        final String header = Config.getString("prime.async.client.header");
+        final String forwarded = header.isEmpty() ? null : request.getHeader(header);
+        if (forwarded != null && !forwarded.trim().isEmpty()) {
+            final int comma = forwarded.indexOf(',');
+            return (comma == -1 ? forwarded : forwarded.substring(0, comma)).trim();
+        }
+        return request.getRemoteAddr();
+    }
+
+    /**
+     * Wait for the tile, up to {@code prime.async.timeout.ms}.
+     * @return the tile or null if no tile could be derived.
+     */
+    static EncodedTile await(CompletableFuture<EncodedTile> future) throws Exception {
+        try {
+            return future.get(Config.getLong("prime.async.timeout.ms"), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new ServiceUnavailableServiceException(
+                    "Timeout waiting for tile", Config.getInt("upstream.retryafter.seconds"), e);
+        }
+    }
+
+    private static Exception unwrap(Throwable t) {
+        while ((t instanceof ExecutionException || t instanceof CompletionException ||
+                t instanceof UncheckedIOException) && t.getCause() != null) {
+            t = t.getCause();
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return (Exception) t;
+    }
+
+    private boolean isAsyncSupported(HttpServletRequest request) {
+        if (START_ASYNC == null) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_ASYNC_SUPPORTED.invoke(request);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            log.warn("Unable to determine async support", e);
+            return false;
+        }
+    }
+
+    /**
+     * Calls the given callbacks if the async request times out or fails, typically because the client disconnected.
+     */
+    private void addAbandonListener(Object async, Runnable onTimeout, Runnable onError) {
+        final Class<?> listenerClass = ADD_LISTENER.getParameterTypes()[0];
+        final Object listener = Proxy.newProxyInstance(
+                listenerClass.getClassLoader(), new Class<?>[]{listenerClass}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "onTimeout": onTimeout.run(); return null;
+                        case "onError":   onError.run(); return null;
+                        case "hashCode":  return System.identityHashCode(proxy);
+                        case "equals":    return proxy == args[0];
+                        case "toString":  return "AbandonListener";
+                        default:          return null; // onComplete and onStartAsync
+                    }
+                });
+        try {
+            ADD_LISTENER.invoke(async, listener);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            log.debug("Unable to add async listener. Abandoned requests will not be cancelled", e);
+        }
+    }
+
+    private void complete(Object async) {
+        try {
+            COMPLETE.invoke(async);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            log.debug("Unable to complete async request", e);
+        }
+    }
+
+    private void writeTile(HttpServletResponse response, EncodedTile tile) throws IOException {
+        if (tile == null) {
+            tile = EncodedTile.encode(NrtmosaicResource.renderSampleImage());
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(EncodedTile.MIME);
+        if (!tile.isCacheable()) {
+            response.setHeader("Cache-Control", NrtmosaicResource.getDegradedCacheControl());
+        }
+        response.setContentLength((int) tile.size());
+        tile.writeTo(response.getOutputStream());
+    }
+
+    // Same mapping as the ExceptionMappers used for the Jersey resources
+    private void writeError(HttpServletResponse response, Throwable error) throws IOException {
+        final ServiceException e = NrtmosaicResource.handleServiceExceptions(unwrap(error));
+        if (response.isCommitted()) {
+            log.debug("Unable to deliver error as response was already committed", e);
+            return;
+        }
+        final int status;
+        if (e instanceof InvalidArgumentServiceException) {
+            status = HttpServletResponse.SC_BAD_REQUEST;
+        } else if (e instanceof NotFoundServiceException) {
+            status = HttpServletResponse.SC_NOT_FOUND;
+        } else if (e instanceof ServiceUnavailableServiceException) {
+            status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+            response.setHeader("Retry-After",
+                               Integer.toString(((ServiceUnavailableServiceException) e).getRetryAfterSeconds()));
+        } else {
+            status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+        }
+        writeText(response, status, "text/plain", e.getMessage() == null ? "" : e.getMessage());
+    }
+
+    private void writeText(HttpServletResponse response, int status, String contentType, String content)
+            throws IOException {
+        final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        response.setStatus(status);
+        response.setContentType(contentType + ";charset=utf-8");
+        response.setContentLength(bytes.length);
+        response.getOutputStream().write(bytes);
+    }
+}
@@ -2,20 +2,29 @@ package dk.statsbiblioteket.nrtmosaic.service;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.net.URI;
+import java.util.concurrent.RejectedExecutionException;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
 
+import dk.statsbiblioteket.nrtmosaic.Config;
+import dk.statsbiblioteket.nrtmosaic.EncodedTile;
 import dk.statsbiblioteket.nrtmosaic.Prime;
+import dk.statsbiblioteket.nrtmosaic.UpstreamOverloadedException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import dk.statsbiblioteket.nrtmosaic.service.exception.InternalServiceException;
 import dk.statsbiblioteket.nrtmosaic.service.exception.InvalidArgumentServiceException;
 import dk.statsbiblioteket.nrtmosaic.service.exception.ServiceException;
+import dk.statsbiblioteket.nrtmosaic.service.exception.ServiceUnavailableServiceException;
 
 
 @Path("/")
@@ -23,6 +32,9 @@ public class NrtmosaicResource implements ServletContextListener {
 
     private static Log log = LogFactory.getLog(NrtmosaicResource.class);
 
+    @Context
+    private HttpServletRequest request; // null outside of a servlet container
+
     @Override
     public void contextInitialized(ServletContextEvent sce) {
         Prime.instance(); // Start everything
@@ -30,7 +42,7 @@ public class NrtmosaicResource implements ServletContextListener {
 
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
-        // Nothing to do right now
+        Prime.shutdown(); // Persists the hot working set for warm start
     }
 
     //"http://achernar/iipsrv/?GAM=2.0&CNT=1.1&DeepZoom=/avis-show/symlinks/${P}.jp2_files/8/0_0"
@@ -67,11 +79,21 @@ public class NrtmosaicResource implements ServletContextListener {
                 return Response.ok(Prime.instance().getDZI(deepZoom), MediaType.APPLICATION_XML).build();
             }
 
-            BufferedImage image = Prime.instance().deepzoom(deepZoom, gam, cnt);
-            if (image == null) {
-                image = renderSampleImage();
+            final String redirect = Prime.instance().getBasicRedirect(deepZoom, gam, cnt);
+            if (redirect != null) {
+                return Response.status(302).location(URI.create(redirect)).build();
+            }
+            final EncodedTile tile = DeepzoomServlet.await(Prime.instance().deepzoomEncodedAsync(
+                    deepZoom, gam, cnt, DeepzoomServlet.getClient(request)));
+            if (tile == null) {
+                return Response.ok(renderSampleImage()).build();
+            }
+            ResponseBuilder response = Response.ok((StreamingOutput) tile::writeTo, EncodedTile.MIME).
+                    header("Content-Length", tile.size());
+            if (!tile.isCacheable()) {
+                response.header("Cache-Control", getDegradedCacheControl());
             }
-            return Response.ok(image).build();
+            return response.build();
         } catch (Exception e) {
             throw handleServiceExceptions(e);
         }
@@ -92,6 +114,17 @@ public class NrtmosaicResource implements ServletContextListener {
         }
     }
 
+    @GET
+    @Path("/stats/")
+    @Produces("text/plain")
+    public Response getStats() throws ServiceException {
+        try {
+            return Response.ok(Prime.instance().getStats()).build();
+        } catch (Exception e) {
+            throw handleServiceExceptions(e);
+        }
+    }
+
     @GET
     @Path("/image")
     @Produces("image/jpeg")
@@ -110,8 +143,17 @@ public class NrtmosaicResource implements ServletContextListener {
         }
     }
 
+    /**
+     * Degraded tiles and tiles derived from transient stand-ins, see {@link EncodedTile#isCacheable()}, must not be
+     * stored by shared caches and should be requested again shortly, when the real tile is expected to be ready.
+     * @return the Cache-Control header value for tiles that are not cacheable.
+     */
+    static String getDegradedCacheControl() {
+        return "private, max-age=" + Config.getInt("prime.degraded.maxage.seconds");
+    }
+
     //
-    private static BufferedImage renderSampleImage() {
+    static BufferedImage renderSampleImage() {
         System.setProperty("java.awt.headless", "true");
 
         final int size = 100;
@@ -140,7 +182,19 @@ public class NrtmosaicResource implements ServletContextListener {
         return img;
     }
 
-    private ServiceException handleServiceExceptions(Exception e) {
+    static ServiceException handleServiceExceptions(Exception e) {
+        final UpstreamOverloadedException overloaded = getOverloaded(e);
+        if (overloaded != null) {
+            // Expected under upstream distress and potentially frequent, so no stack trace
+            log.info("ServiceException(HTTP 503) in Service: " + overloaded.getMessage());
+            return new ServiceUnavailableServiceException(overloaded.getMessage(),
+                                                          overloaded.getRetryAfterSeconds(), overloaded);
+        }
+        if (e instanceof RejectedExecutionException) {
+            log.info("ServiceException(HTTP 503) in Service: Tile workers overloaded");
+            return new ServiceUnavailableServiceException("Overloaded, please retry later",
+                                                          Config.getInt("upstream.retryafter.seconds"), e);
+        }
         log.warn("ServiceException", e);
         if (e instanceof ServiceException) {
             log.info("Handling serviceException:" + e.getMessage());
@@ -153,4 +207,15 @@ public class NrtmosaicResource implements ServletContextListener {
             return new InternalServiceException(e.getMessage());
         }
     }
+
+    // The overload exception might be wrapped when thrown from deep inside the rendering
+    private static UpstreamOverloadedException getOverloaded(Throwable e) {
+        while (e != null) {
+            if (e instanceof UpstreamOverloadedException) {
+                return (UpstreamOverloadedException) e;
+            }
+            e = e.getCause();
+        }
+        return null;
+    }
 }
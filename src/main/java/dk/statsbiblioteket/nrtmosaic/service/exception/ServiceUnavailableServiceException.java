@@ -0,0 +1,26 @@
+package dk.statsbiblioteket.nrtmosaic.service.exception;
+
+
+public class ServiceUnavailableServiceException extends ServiceException  {
+
+	   private static final long serialVersionUID = 1L;
+
+	   private final int retryAfterSeconds;
+
+	    public  ServiceUnavailableServiceException(String message, int retryAfterSeconds) {
+	        super(message);
+	        this.retryAfterSeconds = retryAfterSeconds;
+	    }
+
+	    public  ServiceUnavailableServiceException(String message, int retryAfterSeconds, Throwable cause) {
+	        super(message, cause);
+	        this.retryAfterSeconds = retryAfterSeconds;
+	    }
+
+	    /**
+	     * @return the suggested number of seconds before the client retries.
+	     */
+	    public int getRetryAfterSeconds() {
+	        return retryAfterSeconds;
+	    }
+}
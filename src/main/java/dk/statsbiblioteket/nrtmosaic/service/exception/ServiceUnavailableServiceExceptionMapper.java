@@ -0,0 +1,18 @@
+package dk.statsbiblioteket.nrtmosaic.service.exception;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+@Provider
+public class ServiceUnavailableServiceExceptionMapper implements ExceptionMapper<ServiceUnavailableServiceException> {
+    private static final Response.Status responseStatus = Response.Status.SERVICE_UNAVAILABLE;
+
+    @Override
+    public Response toResponse(ServiceUnavailableServiceException exc) {
+        Response.ResponseBuilder builder = Response.status(responseStatus).
+                header("Retry-After", Integer.toString(exc.getRetryAfterSeconds()));
+        return (exc.getMessage() != null)
+                ? builder.entity(exc.getMessage()).type("text/plain").build()
+                : builder.build();
+    }
+}
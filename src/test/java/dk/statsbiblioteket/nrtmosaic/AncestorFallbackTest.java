@@ -0,0 +1,110 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class AncestorFallbackTest {
+    private static final String PRE = "/avis-show/9c05d958-b616-47c1-9e4f-63ec2dd9429e.jp2_files";
+
+    private final Map<String, EncodedTile> cache = new HashMap<>();
+    private AncestorFallback fallback = null;
+
+    @After
+    public void tearDown() {
+        if (fallback != null) {
+            fallback.shutdown();
+        }
+    }
+
+    // Tile with the 4 quadrants in different greys: 0, 80, 160, 240
+    private static BufferedImage createQuadrants(int edge) {
+        BufferedImage image = new BufferedImage(edge, edge, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics g = image.getGraphics();
+        for (int q = 0 ; q < 4 ; q++) {
+            g.setColor(new Color(q*80, q*80, q*80));
+            g.fillRect((q & 1) * edge/2, (q >> 1) * edge/2, edge/2, edge/2);
+        }
+        g.dispose();
+        return image;
+    }
+
+    private EncodedTile getCached(DeepZoomSnippet snippet) {
+        return cache.get(snippet.toNormalised());
+    }
+
+    @Test
+    public void testCropAndScale() {
+        BufferedImage ancestor = createQuadrants(256);
+        BufferedImage tile = AncestorFallback.cropAndScale(ancestor, 1, 3, 2, 256);
+        assertEquals("The crop should be scaled to full width", 256, tile.getWidth());
+        assertEquals("The crop should be scaled to full height", 256, tile.getHeight());
+        assertEquals("The tile should be the upper right quadrant", 80, tile.getRaster().getSample(128, 128, 0));
+
+        BufferedImage small = AncestorFallback.cropAndScale(ancestor.getSubimage(0, 0, 200, 256), 1, 1, 1, 256);
+        assertEquals("The clipped crop should keep its scale", 144, small.getWidth());
+        assertNull("Tiles outside of the ancestor should not be derived",
+                   AncestorFallback.cropAndScale(ancestor.getSubimage(0, 0, 100, 256), 1, 1, 1, 256));
+    }
+
+    @Test
+    public void testFromAncestor() throws IOException {
+        fallback = new AncestorFallback(50, 4, 1);
+        cache.put(PRE + "/10/1_1.jpg", EncodedTile.encode(createQuadrants(Util.EDGE)));
+        EncodedTile degraded = fallback.fromAncestor(DeepZoomSnippet.parse(PRE + "/12/7_7.jpg"), this::getCached);
+        assertNotNull("A degraded tile should be derived from the ancestor 2 levels up", degraded);
+        assertTrue("The tile should be marked as degraded", degraded.isDegraded());
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(degraded.getBytes()));
+        assertEquals("The degraded tile should be full size", Util.EDGE, image.getWidth());
+        assertEquals("The degraded tile should be from the lower right quadrant",
+                     240, image.getRaster().getSample(Util.EDGE/2, Util.EDGE/2, 0), 8);
+
+        assertNull("Tiles without cached ancestors should not be derived",
+                   fallback.fromAncestor(DeepZoomSnippet.parse(PRE + "/12/0_0.jpg"), this::getCached));
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        fallback = new AncestorFallback(50, 4, 1);
+        cache.put(PRE + "/11/0_0.jpg", EncodedTile.encode(createQuadrants(Util.EDGE)));
+        final CompletableFuture<EncodedTile> slow = new CompletableFuture<>();
+        final EncodedTile tile = fallback.withDeadline(
+                slow, DeepZoomSnippet.parse(PRE + "/12/1_0.jpg"), this::getCached).get(5, TimeUnit.SECONDS);
+        assertTrue("A degraded tile should be delivered after the deadline", tile.isDegraded());
+        assertFalse("The real tile should still be pending", slow.isDone());
+
+        final EncodedTile real = EncodedTile.encode(createQuadrants(Util.EDGE));
+        final CompletableFuture<EncodedTile> fast = new CompletableFuture<>();
+        final CompletableFuture<EncodedTile> result = fallback.withDeadline(
+                fast, DeepZoomSnippet.parse(PRE + "/12/1_0.jpg"), this::getCached);
+        fast.complete(real);
+        assertSame("The real tile should be delivered when ready before the deadline",
+                   real, result.get(1, TimeUnit.SECONDS));
+    }
+}
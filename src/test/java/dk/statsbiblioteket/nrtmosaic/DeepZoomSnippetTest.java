@@ -0,0 +1,80 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class DeepZoomSnippetTest {
+    private static final Pattern DEEPZOOM = Pattern.compile("(.*)/([0-9]+)/([0-9]+)_([0-9]+)(.*)");
+    private static final String BASE = "/avis-show/symlinks/9/c/0/5/9c05d958-b616-47c1-9e4f-63ec2dd9429e.jp2_files";
+
+    @Test
+    public void sameAsRegexp() {
+        final String[] TESTS = {
+                BASE + "/10/2_1.jpg",
+                BASE + "/0/0_0.jpg",
+                BASE + "/010/02_001.jpg",
+                BASE + "/23/123456789_987654321",
+                BASE + "/23/12_34/5/6_7.png",
+                "/1/2/3_4",
+                "foo/12/3_4_5.jpg"
+        };
+        for (String test: TESTS) {
+            Matcher matcher = DEEPZOOM.matcher(test);
+            Assert.assertTrue("The regexp should match " + test, matcher.matches());
+            DeepZoomSnippet snippet = DeepZoomSnippet.parse(test);
+            Assert.assertEquals("pre for " + test, matcher.group(1), snippet.getPre());
+            Assert.assertEquals("level for " + test, Integer.parseInt(matcher.group(2)), snippet.getLevel());
+            Assert.assertEquals("fx for " + test, Long.parseLong(matcher.group(3)), snippet.getFX());
+            Assert.assertEquals("fy for " + test, Long.parseLong(matcher.group(4)), snippet.getFY());
+            Assert.assertEquals("post for " + test, matcher.group(5), snippet.getPost());
+            Assert.assertEquals(test, snippet.toString());
+        }
+    }
+
+    @Test
+    public void unparsable() {
+        final String[] TESTS = {"", "foo", BASE + ".dzi", BASE + "/10/2.jpg", BASE + "/a/2_1.jpg", BASE + "/10/_1"};
+        for (String test: TESTS) {
+            Assert.assertNull("There should be no match for " + test, DeepZoomSnippet.find(test));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseFail() {
+        DeepZoomSnippet.parse(BASE + ".dzi");
+    }
+
+    @Test
+    public void idAndNormalise() {
+        DeepZoomSnippet snippet = DeepZoomSnippet.parse(BASE + "/010/02_001.jpg");
+        Assert.assertEquals("9c05d958b61647c19e4f63ec2dd9429e", snippet.getID().toHex());
+        Assert.assertEquals(BASE + "/10/2_1.jpg", snippet.toNormalised());
+        Assert.assertNull(DeepZoomSnippet.parse("/1/2/3_4").getID());
+    }
+
+    @Test
+    public void of() {
+        DeepZoomSnippet snippet = DeepZoomSnippet.of(BASE, 12, 3, 4, ".jpg", null);
+        Assert.assertEquals(BASE + "/12/3_4.jpg", snippet.toString());
+        Assert.assertEquals(BASE, snippet.getPre());
+        Assert.assertEquals(".jpg", snippet.getPost());
+        Assert.assertEquals(12, snippet.getLevel());
+    }
+}
@@ -0,0 +1,135 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class EncodedTileCacheTest {
+    private static final long SIGNATURE = 87L;
+
+    private Path root = null;
+
+    @After
+    public void tearDown() {
+        if (root != null) {
+            Util.deleteFolder(root);
+        }
+    }
+
+    @Test
+    public void testMemoryOnly() throws IOException {
+        EncodedTileCache cache = new EncodedTileCache("test", 1024*1024, null, 0, 0, SIGNATURE);
+        assertNull("Empty cache should return null", cache.get("foo"));
+        cache.put("foo", bytes(100, 1));
+        assertArrayEquals("The stored bytes should be returned", bytes(100, 1), toBytes(cache.get("foo")));
+    }
+
+    @Test
+    public void testDiskPersistence() throws IOException {
+        root = Files.createTempDirectory("encoded_");
+        EncodedTileCache cache = new EncodedTileCache("test", 1024*1024, root, 1024*1024, 10*1024, SIGNATURE);
+        for (int i = 0 ; i < 20 ; i++) {
+            cache.put("key_" + i, bytes(1000, i));
+        }
+
+        EncodedTileCache reopened = new EncodedTileCache("test", 1024*1024, root, 1024*1024, 10*1024, SIGNATURE);
+        for (int i = 0 ; i < 20 ; i++) {
+            EncodedTile tile = reopened.get("key_" + i);
+            assertNotNull("The tile key_" + i + " should be present after reopen", tile);
+            assertEquals("The size for key_" + i + " should be as stored", 1000, tile.size());
+            assertArrayEquals("The content for key_" + i + " should be as stored", bytes(1000, i), toBytes(tile));
+        }
+
+        EncodedTileCache otherCorpus = new EncodedTileCache(
+                "test", 1024*1024, root, 1024*1024, 10*1024, SIGNATURE+1);
+        assertNull("Tiles for another corpus should be discarded", otherCorpus.get("key_0"));
+    }
+
+    @Test
+    public void testDiskEviction() throws IOException {
+        root = Files.createTempDirectory("encoded_");
+        // Memory tier too small to hold anything, forcing disk lookups
+        EncodedTileCache cache = new EncodedTileCache("test", 10, root, 20*1024, 5*1024, SIGNATURE);
+        for (int i = 0 ; i < 100 ; i++) {
+            cache.put("key_" + i, bytes(1000, i));
+        }
+        assertNull("The oldest tile should be evicted", cache.get("key_0"));
+        assertArrayEquals("The newest tile should be available", bytes(1000, 99), toBytes(cache.get("key_99")));
+        long diskBytes = 0;
+        try (Stream<Path> files = Files.list(root)) {
+            diskBytes = files.mapToLong(file -> file.toFile().length()).sum();
+        }
+        assertTrue("The disk usage " + diskBytes + " should be within budget", diskBytes <= 20*1024);
+    }
+
+    @Test
+    public void testDiskPromotion() throws IOException {
+        root = Files.createTempDirectory("encoded_");
+        EncodedTileCache cache = new EncodedTileCache("test", 1024*1024, root, 1024*1024, 10*1024, SIGNATURE);
+        cache.put("foo", bytes(1000, 1));
+
+        EncodedTileCache reopened = new EncodedTileCache("test", 1024*1024, root, 1024*1024, 10*1024, SIGNATURE);
+        assertTrue("The memory tier should be empty after reopen", reopened.getHottestKeys(10).isEmpty());
+        assertArrayEquals("The tile should be delivered from disk", bytes(1000, 1), toBytes(reopened.get("foo")));
+        assertEquals("The tile should be promoted to the memory tier",
+                     Arrays.asList("foo"), reopened.getHottestKeys(10));
+        assertArrayEquals("The promoted tile should be delivered", bytes(1000, 1), toBytes(reopened.get("foo")));
+    }
+
+    @Test
+    public void testInMemoryReleases() throws IOException {
+        root = Files.createTempDirectory("encoded_");
+        EncodedTileCache cache = new EncodedTileCache("test", 10, root, 20*1024, 5*1024, SIGNATURE);
+        for (int i = 0 ; i < 5 ; i++) {
+            cache.put("key_" + i, bytes(1000, i));
+        }
+        EncodedTile detached = cache.get("key_0").inMemory();
+        for (int i = 5 ; i < 100 ; i++) {
+            cache.put("key_" + i, bytes(1000, i));
+        }
+        assertNull("The oldest tile should be evicted", cache.get("key_0"));
+        assertArrayEquals("The detached tile should still be readable", bytes(1000, 0), toBytes(detached));
+        long diskBytes = 0;
+        try (Stream<Path> files = Files.list(root)) {
+            diskBytes = files.mapToLong(file -> file.toFile().length()).sum();
+        }
+        assertTrue("The disk usage " + diskBytes + " should be within budget as the detached tile should not hold " +
+                   "its segment", diskBytes <= 20*1024);
+    }
+
+    private byte[] toBytes(EncodedTile tile) throws IOException {
+        assertNotNull("The tile should be present", tile);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tile.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private byte[] bytes(int length, int fill) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) fill);
+        bytes[0] = (byte) length;
+        return bytes;
+    }
+}
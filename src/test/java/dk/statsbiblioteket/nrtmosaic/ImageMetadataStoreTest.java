@@ -0,0 +1,76 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class ImageMetadataStoreTest {
+    private static final String DZI =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" TileSize=\"256\" Overlap=\"0\" " +
+            "Format=\"jpg\"><Size Width=\"2123\" Height=\"3001\"/></Image>";
+    private static final UUID ID = new UUID("9c05d958-b616-47c1-9e4f-63ec2dd9429e.jp2");
+
+    private Path root = null;
+
+    @After
+    public void tearDown() {
+        if (root != null) {
+            Util.deleteFolder(root);
+        }
+    }
+
+    @Test
+    public void testParseAndGenerate() {
+        ImageMetadataStore.Metadata metadata = ImageMetadataStore.Metadata.parseDZI(DZI);
+        assertEquals("The width should be extracted", 2123, metadata.getWidth());
+        assertEquals("The height should be extracted", 3001, metadata.getHeight());
+        assertEquals("The tile size should be extracted", 256, metadata.getTileSize());
+
+        ImageMetadataStore.Metadata generated = ImageMetadataStore.Metadata.parseDZI(metadata.toDZI(4246, 6002));
+        assertEquals("The generated DZI should have the given width", 4246, generated.getWidth());
+        assertEquals("The generated DZI should have the given height", 6002, generated.getHeight());
+        assertEquals("The generated DZI should keep the format", "jpg", generated.getFormat());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidDZI() {
+        ImageMetadataStore.Metadata.parseDZI("<html>Not found</html>");
+    }
+
+    @Test
+    public void testPersistence() throws IOException {
+        root = Files.createTempDirectory("metadata");
+        Path file = root.resolve("metadata.dat");
+        ImageMetadataStore store = new ImageMetadataStore(file);
+        assertNull("An empty store should not know the image", store.get(ID));
+        store.put(ID, ImageMetadataStore.Metadata.parseDZI(DZI));
+        store.close();
+
+        ImageMetadataStore reloaded = new ImageMetadataStore(file);
+        ImageMetadataStore.Metadata metadata = reloaded.get(ID);
+        assertNotNull("The reloaded store should know the image", metadata);
+        assertEquals("The reloaded width should match", 2123, metadata.getWidth());
+        assertEquals("The reloaded height should match", 3001, metadata.getHeight());
+        reloaded.close();
+    }
+}
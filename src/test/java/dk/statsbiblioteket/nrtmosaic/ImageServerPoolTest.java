@@ -0,0 +1,164 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class ImageServerPoolTest {
+    private static final String CANONICAL = "http://imageserver.invalid/iipsrv?";
+
+    private final List<HttpServer> servers = new ArrayList<>();
+    private final Map<String, AtomicBoolean> down = new HashMap<>();
+    private final Map<String, AtomicInteger> calls = new HashMap<>();
+    private ImageServerPool pool = null;
+
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.close();
+        }
+        for (HttpServer server: servers) {
+            server.stop(0);
+        }
+    }
+
+    // Starts a stand-in image server that answers with its name, 503 while down, after delayMS
+    private String startServer(String name, int delayMS) throws IOException {
+        final AtomicBoolean isDown = new AtomicBoolean(false);
+        final AtomicInteger callCount = new AtomicInteger(0);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/iipsrv", exchange -> {
+            final String query = exchange.getRequestURI().getQuery();
+            final boolean probe = query == null || query.isEmpty();
+            if (!probe) {
+                callCount.incrementAndGet();
+            }
+            try {
+                Thread.sleep(probe ? 0 : delayMS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = name.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(isDown.get() ? 503 : 200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+        servers.add(server);
+        down.put(name, isDown);
+        calls.put(name, callCount);
+        return "http://localhost:" + server.getAddress().getPort() + "/iipsrv?";
+    }
+
+    private static String source(int image) {
+        final String id = String.format("%08x-b616-47c1-9e4f-63ec2dd9429e", image);
+        return CANONICAL + "DeepZoom=/avis-show/" + id + ".jp2_files/13/2_3.jpg";
+    }
+
+    private String fetch(String source) throws IOException {
+        return new String(pool.fetchBytes(source), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testConsistentRouting() throws IOException {
+        pool = new ImageServerPool(CANONICAL, Arrays.asList(startServer("a", 0), startServer("b", 0),
+                                                            startServer("c", 0)),
+                                   new UpstreamClient(1000, 2000, 4), 1000, 3, 1000, 0);
+        final Set<String> used = new HashSet<>();
+        for (int image = 0 ; image < 30 ; image++) {
+            final String first = fetch(source(image));
+            assertEquals("Image " + image + " should be served by the same server each time",
+                         first, fetch(source(image)));
+            used.add(first);
+        }
+        assertEquals("All servers should be used", 3, used.size());
+    }
+
+    @Test
+    public void testEjectAndFailover() throws IOException {
+        pool = new ImageServerPool(CANONICAL, Arrays.asList(startServer("a", 0), startServer("b", 0)),
+                                   new UpstreamClient(1000, 2000, 4), 1000, 2, 60000, 0);
+        down.get("b").set(true);
+        for (int image = 0 ; image < 20 ; image++) {
+            assertEquals("Image " + image + " should be served by the healthy server", "a", fetch(source(image)));
+        }
+        assertEquals("The failing server should only be called until it is ejected", 2, calls.get("b").get());
+        assertTrue("The stats should show the ejection, but was " + pool.getStats(),
+                   pool.getStats().contains("ejected=true, ejections=1"));
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        pool = new ImageServerPool(CANONICAL, Arrays.asList(startServer("a", 0), startServer("b", 0)),
+                                   new UpstreamClient(1000, 2000, 4), 1000, 1, 60000, 20);
+        down.get("b").set(true);
+        for (int image = 0 ; image < 10 ; image++) {
+            fetch(source(image));
+        }
+        assertEquals("The failing server should be ejected after the first failure", 1, calls.get("b").get());
+        down.get("b").set(false);
+        for (int i = 0 ; i < 100 && pool.getStats().contains("ejected=true") ; i++) {
+            Thread.sleep(10);
+        }
+        assertFalse("The server should be reinstated after a successful health check, but was " + pool.getStats(),
+                    pool.getStats().contains("ejected=true"));
+        final Set<String> used = new HashSet<>();
+        for (int image = 0 ; image < 10 ; image++) {
+            used.add(fetch(source(image)));
+        }
+        assertTrue("The reinstated server should receive requests", used.contains("b"));
+    }
+
+    @Test
+    public void testSlowServerAvoided() throws IOException {
+        pool = new ImageServerPool(CANONICAL, Arrays.asList(startServer("fast", 0), startServer("slow", 100)),
+                                   new UpstreamClient(1000, 2000, 4), 2, 3, 1000, 0);
+        for (int image = 0 ; image < 30 ; image++) {
+            fetch(source(image));
+        }
+        assertEquals("The slow server should only be used until its response time is known",
+                     1, calls.get("slow").get());
+    }
+
+    @Test
+    public void testNonCanonical() throws IOException {
+        final String a = startServer("a", 0);
+        pool = new ImageServerPool(CANONICAL, Arrays.asList(startServer("b", 0)),
+                                   new UpstreamClient(1000, 2000, 4), 2, 3, 1000, 0);
+        assertEquals("Sources not on the canonical image server should be fetched directly",
+                     "a", fetch(a + "DeepZoom=foo.dzi"));
+    }
+}
@@ -0,0 +1,126 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class LocalTileSourceTest {
+    private static final String ID = "9c05d958-b616-47c1-9e4f-63ec2dd9429e";
+    private static final String MISSING = "00000000-b616-47c1-9e4f-63ec2dd9429e";
+    private static final String SERVER = "http://example.com/iipsrv.fcgi??DeepZoom=/somewhere/";
+
+    private Path root;
+    private LocalTileSource source;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("localtilesource");
+        // 600x400 pixels where the value of each pixel is derived from its position
+        BufferedImage image = new BufferedImage(600, 400, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0 ; y < image.getHeight() ; y++) {
+            for (int x = 0 ; x < image.getWidth() ; x++) {
+                image.setRGB(x, y, (x/4) << 16 | (y/4) << 8);
+            }
+        }
+        ImageIO.write(image, "png", root.resolve(ID + ".png").toFile());
+        source = new LocalTileSource("(.{8})(.{4})(.{4})(.{4})(.{12})",
+                                     Matcher.quoteReplacement(root.toString()) + "/$1-$2-$3-$4-$5.png", 2, 256, null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        source.close();
+        Files.delete(root.resolve(ID + ".png"));
+        Files.delete(root);
+    }
+
+    @Test
+    public void testMaxLevel() {
+        assertEquals(0, LocalTileSource.getMaxLevel(1, 1));
+        assertEquals(8, LocalTileSource.getMaxLevel(256, 100));
+        assertEquals(9, LocalTileSource.getMaxLevel(100, 257));
+        assertEquals(10, LocalTileSource.getMaxLevel(600, 400));
+    }
+
+    @Test
+    public void testFullLevel() throws IOException {
+        BufferedImage tile = source.getTile(toSource(ID, 10, 2, 1));
+        assertEquals("The right edge tile should be cut at the image width", 600-512, tile.getWidth());
+        assertEquals("The bottom edge tile should be cut at the image height", 400-256, tile.getHeight());
+        assertEquals("The pixel should be from the right position in the image",
+                     (512+10)/4 << 16 | (256+20)/4 << 8, tile.getRGB(10, 20) & 0xFFFFFF);
+        assertEquals(256, source.getTile(toSource(ID, 10, 0, 0)).getWidth());
+    }
+
+    @Test
+    public void testScaledLevel() throws IOException {
+        BufferedImage tile = source.getTile(toSource(ID, 9, 1, 0));
+        assertEquals("Level 9 should be 300 pixels wide", 300-256, tile.getWidth());
+        assertEquals("Level 9 should be 200 pixels high", 200, tile.getHeight());
+        BufferedImage top = source.getTile(toSource(ID, 0, 0, 0));
+        assertEquals("Level 0 should be a single pixel", 1, top.getWidth());
+    }
+
+    @Test
+    public void testOutside() throws IOException {
+        try {
+            source.getTileBytes(toSource(ID, 10, 3, 0));
+            fail("Requesting a tile outside of the image should fail");
+        } catch (FileNotFoundException e) {
+            // Expected
+        }
+        try {
+            source.getTile(toSource(MISSING, 10, 0, 0));
+            fail("Requesting a tile from a missing image without fallback should fail");
+        } catch (IIOException e) {
+            // Expected, as with UpstreamClient.fetchImage
+        }
+    }
+
+    @Test
+    public void testBytesAndPooling() throws IOException {
+        for (int i = 0 ; i < 5 ; i++) {
+            assertTrue("The tile should be a JPEG", EncodedTile.isJPEG(source.getTileBytes(toSource(ID, 8, 0, 0))));
+        }
+        assertTrue("The reader should be reused, but stats were " + source.getStats(),
+                   source.getStats().contains("readerHits=4, readerMisses=1"));
+    }
+
+    @Test
+    public void testDZI() throws IOException {
+        ImageMetadataStore.Metadata metadata =
+                ImageMetadataStore.Metadata.parseDZI(source.getDZI("/somewhere/" + ID + ".png"));
+        assertEquals(600, metadata.getWidth());
+        assertEquals(400, metadata.getHeight());
+        assertEquals(256, metadata.getTileSize());
+    }
+
+    private String toSource(String id, int level, long fx, long fy) {
+        return SERVER + id + ".png_files/" + level + "/" + fx + "_" + fy + ".jpg";
+    }
+}
@@ -0,0 +1,75 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class MappingIndexTest {
+    private static final UUID ID1 = new UUID("9c05d958-b616-47c1-9e4f-63ec2dd9429e.jp2");
+    private static final UUID ID2 = new UUID("02823b5f-223a-4124-9913-985cb5ad815f.jp2");
+
+    private Path root = null;
+
+    @After
+    public void tearDown() {
+        if (root != null) {
+            Util.deleteFolder(root);
+        }
+    }
+
+    @Test
+    public void testWriteAndLookup() throws IOException {
+        CorpusCreator.generateCache();
+        Keeper keeper = new Keeper();
+        Tile23 tile1 = Tile23Test.createSampleTile(keeper, TileProviderTest.SAMPLE_1);
+        Tile23 tile2 = Tile23Test.createSampleTile(keeper, TileProviderTest.SAMPLE_2);
+
+        root = Files.createTempDirectory("mapping_index");
+        try (MappingIndex.Writer writer = new MappingIndex.Writer(root, keeper, "2.0", "1.1")) {
+            // ID1 < ID2 when compared as signed longs
+            writer.add(ID1, 0, 1, tile1);
+            writer.add(ID1, 1, 0, tile2);
+            writer.add(ID2, 3, 4, tile2);
+        }
+
+        MappingIndex index = MappingIndex.open(root, keeper);
+        assertNotNull("The index should be openable", index);
+        assertEquals("The index should contain the right number of mappings", 3, index.size());
+        Tile23Test.assertSameMapping(tile1, index.getTile(ID1, 0, 1, "2.0", "1.1"));
+        Tile23Test.assertSameMapping(tile2, index.getTile(ID1, 1, 0, "2.0", "1.1"));
+        Tile23Test.assertSameMapping(tile2, index.getTile(ID2, 3, 4, "2.0", "1.1"));
+        assertNull("Non-existing coordinates should not be resolved", index.getTile(ID1, 1, 1, "2.0", "1.1"));
+        assertNull("Mismatching GAM should not be resolved", index.getTile(ID1, 0, 1, "1.0", "1.1"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnordered() throws IOException {
+        CorpusCreator.generateCache();
+        Keeper keeper = new Keeper();
+        Tile23 tile = Tile23Test.createSampleTile(keeper, TileProviderTest.SAMPLE_1);
+        root = Files.createTempDirectory("mapping_index");
+        try (MappingIndex.Writer writer = new MappingIndex.Writer(root, keeper, "2.0", "1.1")) {
+            writer.add(ID1, 1, 0, tile);
+            writer.add(ID1, 0, 1, tile);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class MappingStoreTest {
+    private Path root = null;
+
+    @After
+    public void tearDown() {
+        if (root != null) {
+            Util.deleteFolder(root);
+        }
+    }
+
+    @Test
+    public void testPersistence() throws IOException {
+        CorpusCreator.generateCache();
+        Keeper keeper = new Keeper();
+        Tile23 tile1 = Tile23Test.createSampleTile(keeper, TileProviderTest.SAMPLE_1);
+        Tile23 tile2 = Tile23Test.createSampleTile(keeper, TileProviderTest.SAMPLE_2);
+
+        root = Files.createTempDirectory("mapping_store");
+        Path file = root.resolve("mappings.dat");
+        MappingStore store = new MappingStore(file, 4*1024*1024, keeper);
+        assertNull("An empty store should not contain mappings", store.get("foo"));
+        store.put("foo", tile1);
+        store.put("bar", tile2);
+        Tile23Test.assertSameMapping(tile1, store.get("foo"));
+
+        MappingStore reopened = new MappingStore(file, 4*1024*1024, keeper);
+        Tile23Test.assertSameMapping(tile1, reopened.get("foo"));
+        Tile23Test.assertSameMapping(tile2, reopened.get("bar"));
+
+        try {
+            new MappingStore(file, 8*1024*1024, keeper);
+            fail("Opening the store with another size should fail");
+        } catch (IOException e) {
+            // Expected as the store might be in use by other nodes
+        }
+        Tile23Test.assertSameMapping(
+                tile1, new MappingStore(file, 4*1024*1024, keeper).get("foo"));
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        CorpusCreator.generateCache();
+        Keeper keeper = new Keeper();
+        Tile23 tile = Tile23Test.createSampleTile(keeper, TileProviderTest.SAMPLE_1);
+
+        root = Files.createTempDirectory("mapping_store");
+        // Room for a single set of 2 slots
+        MappingStore store = new MappingStore(root.resolve("mappings.dat"), 1, keeper);
+        assertEquals("The store should have the minimum number of slots", 2, store.getSlotCount());
+        for (int i = 0 ; i < 10 ; i++) {
+            store.put("source_" + i, tile);
+        }
+        int present = 0;
+        for (int i = 0 ; i < 10 ; i++) {
+            if (store.get("source_" + i) != null) {
+                present++;
+            }
+        }
+        assertEquals("Only 2 mappings should be present", 2, present);
+        assertNotNull("The newest mapping should be present", store.get("source_9"));
+    }
+}
@@ -0,0 +1,51 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class PathTemplateTest {
+    private static final String[] IDS = {
+            "9c05d958b61647c19e4f63ec2dd9429e", "00000000000000000000000000000000", "0123456789abcdeffedcba9876543210"};
+
+    @Test
+    public void sameAsRegexp() {
+        final String[][] TESTS = {
+                {"(.)(.)(.)(.)(.{4})(.{4})(.{4})(.{4})(.{12})",
+                        "/avis-show/symlinks/$1/$2/$3/$4/$1$2$3$4$5-$6-$7-$8-$9.jp2"},
+                {"(.{8})(.{4})(.{4})(.{4})(.{12})", "/mnt/active/www/nrtmosaic/tiff/$1-$2-$3-$4-$5.tif"},
+                {"(.)(.{31})", "\\$$2/$1$10.tif"},
+                {"(.{32})", "$0"}
+        };
+        for (String[] test: TESTS) {
+            PathTemplate template = PathTemplate.compile(test[0], test[1]);
+            Assert.assertNotNull("The regexp " + test[0] + " should be supported", template);
+            for (String hex: IDS) {
+                Assert.assertEquals("Template for " + test[0] + " with id " + hex,
+                                    hex.replaceFirst(test[0], test[1]), template.apply(new UUID(hex + ".")));
+            }
+        }
+    }
+
+    @Test
+    public void unsupported() {
+        Assert.assertNull(PathTemplate.compile("(.{8}).*", "$1"));
+        Assert.assertNull(PathTemplate.compile("(.{8})", "$1"));
+        Assert.assertNull(PathTemplate.compile("([a-f0-9]{32})", "$1"));
+        Assert.assertNull(PathTemplate.compile("(?<all>.{32})", "${all}"));
+        Assert.assertNull(PathTemplate.compile("(.{32})", "${all}"));
+    }
+}
@@ -2,6 +2,9 @@ package dk.statsbiblioteket.nrtmosaic;
 
 import org.junit.Test;
 
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
 import static org.junit.Assert.*;
 
 /*
@@ -42,4 +45,31 @@ public class PyramidGrey23Test {
         assertEquals("Width should be as specified", 257, pyramid.getSourceWidth());
         assertEquals("Height should be as specified", 258, pyramid.getSourceHeight());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testRenderRegion() {
+        PyramidGrey23 pyramid = new PyramidGrey23(3); // Blocks of 4x4 at level 3, full image 8x12
+        for (int fy = 0 ; fy < 3 ; fy++) {
+            for (int fx = 0 ; fx < 2 ; fx++) {
+                byte[] block = new byte[16];
+                Arrays.fill(block, (byte) (fy*2+fx+1));
+                pyramid.setData(block, 3, fx, fy);
+            }
+        }
+        pyramid.setByte(pyramid.getTileOffset(3, 1, 2)+15, Util.MISSING_GREY);
+
+        BufferedImage full = pyramid.renderRegion(3, 0, 0, 100, 100, 200);
+        assertEquals("The region should be clipped to the full width", 8, full.getWidth());
+        assertEquals("The region should be clipped to the full height", 12, full.getHeight());
+        assertEquals("Upper left should be from block 0,0", 1, full.getRaster().getSample(0, 0, 0));
+        assertEquals("Upper right should be from block 1,0", 2, full.getRaster().getSample(7, 0, 0));
+        assertEquals("Lower left should be from block 0,2", 5, full.getRaster().getSample(0, 11, 0));
+        assertEquals("Missing pixels should be replaced", 200, full.getRaster().getSample(7, 11, 0));
+
+        BufferedImage region = pyramid.renderRegion(3, 3, 5, 2, 2, 200);
+        assertEquals("Region 0,0 should be from block 0,1", 3, region.getRaster().getSample(0, 0, 0));
+        assertEquals("Region 1,0 should be from block 1,1", 4, region.getRaster().getSample(1, 0, 0));
+
+        assertNull("Regions outside of the image should not be rendered", pyramid.renderRegion(3, 8, 0, 2, 2, 200));
+    }
+}
@@ -0,0 +1,56 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class PyramidPrefetcherTest {
+
+    @Test
+    public void testTouch() throws IOException {
+        CorpusCreator.generateCache();
+        Keeper keeper = new Keeper();
+        Tile23 tile = Tile23Test.createSampleTile(keeper, TileProviderTest.SAMPLE_1);
+        PyramidPrefetcher prefetcher = new PyramidPrefetcher(2, 0);
+        try {
+            assertTrue("Some pages should be touched", prefetcher.touch(tile) > 0);
+            assertTrue("Stats should contain the number of tiles", prefetcher.getStats().contains("tiles=1"));
+        } finally {
+            prefetcher.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativePages() {
+        new PyramidPrefetcher(2, -1);
+    }
+
+    @Test
+    public void testTouchLevel() throws IOException {
+        CorpusCreator.generateCache();
+        Keeper keeper = new Keeper();
+        PyramidGrey23 pyramid = keeper.getPyramid(0);
+        assertNotNull("There should be a pyramid with ordinal 0", pyramid);
+        assertTrue("The pyramid should be memory mapped", pyramid.isMapped());
+        // Level 8 holds 6*128*128 bytes
+        final int pages = pyramid.touchLevel(8, 4096);
+        assertTrue("Level 8 should span at least 24 pages but was " + pages, pages >= 24 && pages <= 25);
+        assertEquals("Non-existing levels should not be touched", 0, pyramid.touchLevel(9, 4096));
+    }
+}
@@ -0,0 +1,59 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class RetryBudgetTest {
+
+    @Test
+    public void testRatio() {
+        RetryBudget budget = new RetryBudget(0.1, 0);
+        assertTrue("The initial balance should allow a single withdrawal", budget.tryWithdraw());
+        assertFalse("The balance should be exhausted", budget.tryWithdraw());
+        for (int i = 0 ; i < 10 ; i++) {
+            budget.deposit();
+        }
+        assertTrue("10 deposits at ratio 0.1 should allow a withdrawal", budget.tryWithdraw());
+        assertFalse("The balance should be exhausted again", budget.tryWithdraw());
+        assertTrue("The stats should count the exhaustions, but was " + budget.getStats(),
+                   budget.getStats().contains("exhausted=2"));
+    }
+
+    @Test
+    public void testCap() {
+        RetryBudget budget = new RetryBudget(0.5, 0);
+        for (int i = 0 ; i < 10000 ; i++) {
+            budget.deposit();
+        }
+        int withdrawals = 0;
+        while (budget.tryWithdraw()) {
+            withdrawals++;
+        }
+        assertEquals("The balance should be capped at 100*ratio", 50, withdrawals);
+    }
+
+    @Test
+    public void testMinPerSecond() throws InterruptedException {
+        RetryBudget budget = new RetryBudget(0, 100);
+        while (budget.tryWithdraw()) {
+            // Empty the balance
+        }
+        Thread.sleep(50);
+        assertTrue("The trickle should allow a withdrawal after 50ms", budget.tryWithdraw());
+    }
+}
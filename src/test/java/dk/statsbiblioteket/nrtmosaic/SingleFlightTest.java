@@ -0,0 +1,205 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class SingleFlightTest {
+    private static final int THREADS = 8;
+
+    @Test
+    public void testCoalescing() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<>("test", 10000);
+        final AtomicInteger calls = new AtomicInteger(0);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0 ; i < THREADS ; i++) {
+                results.add(executor.submit(() -> flight.execute("foo", () -> {
+                    calls.incrementAndGet();
+                    release.await();
+                    return "bar";
+                })));
+            }
+            waitForWaiters(flight, THREADS-1);
+            release.countDown();
+            for (Future<String> result: results) {
+                assertEquals("All callers should get the result", "bar", result.get());
+            }
+            assertEquals("The loader should only be called once", 1, calls.get());
+            assertEquals("There should be no jobs in flight", 0, flight.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<>("test", 10000);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0 ; i < THREADS ; i++) {
+                results.add(executor.submit(() -> flight.execute("foo", () -> {
+                    release.await();
+                    throw new IllegalArgumentException("Expected failure");
+                })));
+            }
+            waitForWaiters(flight, THREADS-1);
+            release.countDown();
+            for (Future<String> result: results) {
+                try {
+                    result.get();
+                    fail("An exception should be thrown");
+                } catch (ExecutionException e) {
+                    assertTrue("The exception from the loader should be propagated but got " + e.getCause(),
+                               e.getCause() instanceof IllegalArgumentException);
+                }
+            }
+            assertEquals("The failed job should not be retained", "retry",
+                         flight.execute("foo", () -> "retry"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<>("test", 50);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> leader = executor.submit(() -> flight.execute("foo", () -> {
+                release.await();
+                return "bar";
+            }));
+            while (flight.size() == 0) {
+                Thread.sleep(1);
+            }
+            try {
+                flight.execute("foo", () -> "other");
+                fail("The waiter should time out");
+            } catch (IllegalStateException e) {
+                // Expected
+            }
+            release.countDown();
+            assertEquals("The leader should finish regardless of waiter timeouts", "bar",
+                         leader.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCancelWaiter() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<>("test", 10000);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Cancellation leaderCancellation = new Cancellation();
+        final Cancellation waiterCancellation = new Cancellation();
+        final AtomicInteger checkpoints = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> leader = executor.submit(() -> Cancellation.call(
+                    leaderCancellation, () -> flight.execute("foo", () -> {
+                        release.await();
+                        Cancellation.checkpoint();
+                        checkpoints.incrementAndGet();
+                        return "bar";
+                    })));
+            while (flight.size() == 0) {
+                Thread.sleep(1);
+            }
+            Future<String> waiter = executor.submit(() -> Cancellation.call(
+                    waiterCancellation, () -> flight.execute("foo", () -> "other")));
+            waitForWaiters(flight, 1);
+
+            waiterCancellation.cancel();
+            try {
+                waiter.get(10, TimeUnit.SECONDS);
+                fail("The cancelled waiter should stop waiting");
+            } catch (ExecutionException e) {
+                assertTrue("The waiter should fail with a CancellationException but got " + e.getCause(),
+                           e.getCause() instanceof CancellationException);
+            }
+            release.countDown();
+            assertEquals("The job should continue as the leader still wants the result", "bar",
+                         leader.get(10, TimeUnit.SECONDS));
+            assertEquals("The job should pass the checkpoint", 1, checkpoints.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCancelAll() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<>("test", 10000);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Cancellation leaderCancellation = new Cancellation();
+        final Cancellation waiterCancellation = new Cancellation();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> leader = executor.submit(() -> Cancellation.call(
+                    leaderCancellation, () -> flight.execute("foo", () -> {
+                        release.await();
+                        Cancellation.checkpoint();
+                        return "bar";
+                    })));
+            while (flight.size() == 0) {
+                Thread.sleep(1);
+            }
+            Future<String> waiter = executor.submit(() -> Cancellation.call(
+                    waiterCancellation, () -> flight.execute("foo", () -> "other")));
+            waitForWaiters(flight, 1);
+
+            leaderCancellation.cancel();
+            waiterCancellation.cancel();
+            release.countDown();
+            try {
+                leader.get(10, TimeUnit.SECONDS);
+                fail("The job should be cancelled when nobody wants the result");
+            } catch (ExecutionException e) {
+                assertTrue("The leader should fail with a CancellationException but got " + e.getCause(),
+                           e.getCause() instanceof CancellationException);
+            }
+            assertEquals("A new job should be started for new callers", "retry",
+                         flight.execute("foo", () -> "retry"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void waitForWaiters(SingleFlight<?, ?> flight, int waiters) throws InterruptedException {
+        final long endTime = System.currentTimeMillis() + 10000;
+        while (flight.getCoalesced() < waiters && System.currentTimeMillis() < endTime) {
+            Thread.sleep(1);
+        }
+        assertEquals("All callers but the leader should be waiting", waiters, flight.getCoalesced());
+    }
+}
@@ -2,6 +2,12 @@ package dk.statsbiblioteket.nrtmosaic;
 
 import org.junit.Test;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
 import static org.junit.Assert.*;
 
 /*
@@ -24,4 +30,57 @@ public class Tile23Test {
     public void testCreateTile() throws Exception {
 
     }
+
+    @Test
+    public void testStoreLoad() throws IOException {
+        CorpusCreator.generateCache();
+        Keeper keeper = new Keeper();
+        Tile23 tile = createSampleTile(keeper, TileProviderTest.SAMPLE_1);
+
+        ByteBuffer buffer = ByteBuffer.allocate(Tile23.SERIALIZED_SIZE);
+        tile.store(buffer);
+        assertEquals("The full buffer should be used", Tile23.SERIALIZED_SIZE, buffer.position());
+
+        Tile23 loaded = Tile23.load(buffer, 0, keeper);
+        assertSameMapping(tile, loaded);
+    }
+
+    @Test
+    public void testSortedReads() throws IOException {
+        CorpusCreator.generateCache();
+        Keeper keeper = new Keeper();
+        Tile23 tile = createSampleTile(keeper, TileProviderTest.SAMPLE_1);
+        assertTrue("The pyramids should be memory mapped for the sorted reads to be used",
+                   tile.getPyramid(0, 0).isMapped());
+
+        for (int level = 1 ; level <= Config.imhotep.getMaxTileLevel()+1 ; level++) {
+            final int subTiles = 1 << (level-1);
+            for (int sub : new int[]{0, subTiles/2, subTiles-1}) {
+                int[] direct = tile.renderImage(sub, sub, level, null, false).getRaster().getPixels(
+                        0, 0, Tile23.edge, Tile23.edge, (int[]) null);
+                int[] sorted = tile.renderImage(sub, sub, level, null, true).getRaster().getPixels(
+                        0, 0, Tile23.edge, Tile23.edge, (int[]) null);
+                assertArrayEquals("Sorted and direct reads should render the same for level " + level +
+                                  ", sub tile " + sub, direct, sorted);
+            }
+        }
+    }
+
+    public static Tile23 createSampleTile(Keeper keeper, String source) throws IOException {
+        BufferedImage image = Util.pad(ImageIO.read(Util.resolveURL(source)), Tile23.edge, Tile23.edge);
+        return Tile23.createTile(image, keeper, new Random(source.hashCode()));
+    }
+
+    public static void assertSameMapping(Tile23 expected, Tile23 actual) {
+        for (int y = 0 ; y < Tile23.edge ; y++) {
+            for (int x = 0 ; x < Tile23.edge ; x++) {
+                assertSame("The pyramid at " + x + "x" + y + " should be the same",
+                           expected.getPyramid(x, y), actual.getPyramid(x, y));
+                if (expected.getPyramid(x, y) != null) {
+                    assertEquals("The dynamic grey at " + x + "x" + y + " should be the same",
+                                 expected.getDynamic(x, y), actual.getDynamic(x, y));
+                }
+            }
+        }
+    }
 }
\ No newline at end of file
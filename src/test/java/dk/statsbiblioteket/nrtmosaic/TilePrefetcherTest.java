@@ -0,0 +1,133 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class TilePrefetcherTest {
+
+    @Test
+    public void testNeighbours() throws InterruptedException {
+        CountingLoader loader = new CountingLoader(8);
+        TilePrefetcher prefetcher = new TilePrefetcher(loader, 2, 100, 10);
+        try {
+            prefetcher.prefetchNeighbours("viewer", null, 1, 1, 10, 10, "2.0", "1.1", (fx, fy) -> fx + "_" + fy);
+            assertTrue("All neighbours should be prefetched", loader.done.await(10, TimeUnit.SECONDS));
+            assertEquals("The right number of neighbours should be fetched", 8, loader.loaded.size());
+            assertFalse("The center should not be prefetched", loader.loaded.contains("1_1"));
+        } finally {
+            prefetcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testEdge() throws InterruptedException {
+        CountingLoader loader = new CountingLoader(3);
+        TilePrefetcher prefetcher = new TilePrefetcher(loader, 1, 100, 10);
+        try {
+            prefetcher.prefetchNeighbours("viewer", null, 0, 0, 10, 10, "2.0", "1.1", (fx, fy) -> fx + "_" + fy);
+            assertTrue("All neighbours should be prefetched", loader.done.await(10, TimeUnit.SECONDS));
+            assertEquals("Only existing neighbours should be fetched", 3, loader.loaded.size());
+        } finally {
+            prefetcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testCancelOnMove() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        CountingLoader loader = new CountingLoader(100) {
+            @Override
+            public void prefetchTile(String source, UUID id, long basicFX, long basicFY, String gam, String cnt) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.prefetchTile(source, id, basicFX, basicFY, gam, cnt);
+            }
+        };
+        TilePrefetcher prefetcher = new TilePrefetcher(loader, 1, 100, 10);
+        try {
+            prefetcher.prefetchNeighbours("viewer", null, 1, 1, 100, 100, "2.0", "1.1", (fx, fy) -> fx + "_" + fy);
+            assertTrue("The first job should be started", started.await(10, TimeUnit.SECONDS));
+            // The first job is blocked in the loader. The viewer jumps far away
+            prefetcher.prefetchNeighbours("viewer", null, 50, 50, 100, 100, "2.0", "1.1", (fx, fy) -> fx + "_" + fy);
+            release.countDown();
+            final long endTime = System.currentTimeMillis() + 10000;
+            while (loader.loaded.size() < 9 && System.currentTimeMillis() < endTime) {
+                Thread.sleep(10);
+            }
+            assertEquals("The blocked job and the 8 new neighbours should be loaded", 9, loader.loaded.size());
+            for (String source: loader.loaded) {
+                assertTrue("Jobs around the old position should be cancelled, but got " + source,
+                           source.startsWith("4") || source.startsWith("5") || source.equals("0_0"));
+            }
+        } finally {
+            prefetcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testBudget() throws InterruptedException {
+        CountingLoader loader = new CountingLoader(1);
+        loader.upstreamLoad.set(10);
+        TilePrefetcher prefetcher = new TilePrefetcher(loader, 1, 100, 10);
+        try {
+            prefetcher.prefetchNeighbours("viewer", null, 1, 1, 10, 10, "2.0", "1.1", (fx, fy) -> fx + "_" + fy);
+            Thread.sleep(200);
+            assertTrue("Nothing should be prefetched when the upstream budget is exhausted",
+                       loader.loaded.isEmpty());
+        } finally {
+            prefetcher.shutdown();
+        }
+    }
+
+    private static class CountingLoader implements TilePrefetcher.Loader {
+        final Set<String> loaded = ConcurrentHashMap.newKeySet();
+        final AtomicInteger upstreamLoad = new AtomicInteger(0);
+        final CountDownLatch done;
+
+        public CountingLoader(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void prefetchTile(String source, UUID id, long basicFX, long basicFY, String gam, String cnt) {
+            loaded.add(source);
+            done.countDown();
+        }
+
+        @Override
+        public boolean isCached(String source) {
+            return loaded.contains(source);
+        }
+
+        @Override
+        public int getUpstreamLoad() {
+            return upstreamLoad.get();
+        }
+    }
+}
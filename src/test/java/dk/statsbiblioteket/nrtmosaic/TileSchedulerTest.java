@@ -0,0 +1,111 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class TileSchedulerTest {
+
+    @Test
+    public void testPriority() throws Exception {
+        final TileScheduler scheduler = new TileScheduler(1, 100);
+        final List<String> order = new CopyOnWriteArrayList<>();
+        final CountDownLatch release = block(scheduler);
+        submit(scheduler, TileScheduler.Category.REDIRECT, 23, "a", order);
+        submit(scheduler, TileScheduler.Category.RENDER, 16, "a", order);
+        submit(scheduler, TileScheduler.Category.RENDER, 14, "a", order);
+        submit(scheduler, TileScheduler.Category.BASIC, 10, "a", order);
+        submit(scheduler, TileScheduler.Category.TURTLE, 30, "a", order);
+        submit(scheduler, TileScheduler.Category.BASIC, 9, "a", order);
+        release.countDown();
+        awaitSize(order, 6);
+        assertEquals(Arrays.asList("TURTLE/30/a", "BASIC/9/a", "BASIC/10/a", "RENDER/14/a", "RENDER/16/a",
+                                   "REDIRECT/23/a"), order);
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testFairness() throws Exception {
+        final TileScheduler scheduler = new TileScheduler(1, 100);
+        final List<String> order = new CopyOnWriteArrayList<>();
+        final CountDownLatch release = block(scheduler);
+        for (int i = 0 ; i < 4 ; i++) {
+            submit(scheduler, TileScheduler.Category.RENDER, 15, "burst", order);
+        }
+        submit(scheduler, TileScheduler.Category.RENDER, 15, "single", order);
+        release.countDown();
+        awaitSize(order, 5);
+        assertEquals("The single tile from the second client should not wait for the burst",
+                     "RENDER/15/single", order.get(1));
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        final TileScheduler scheduler = new TileScheduler(1, 2);
+        final List<String> order = new CopyOnWriteArrayList<>();
+        final CountDownLatch release = block(scheduler);
+        submit(scheduler, TileScheduler.Category.BASIC, 9, "a", order);
+        submit(scheduler, TileScheduler.Category.BASIC, 9, "a", order);
+        try {
+            submit(scheduler, TileScheduler.Category.TURTLE, 30, "a", order);
+            fail("The third queued tile should be rejected");
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+        release.countDown();
+        awaitSize(order, 2);
+        scheduler.shutdownNow();
+    }
+
+    // Occupies the only worker thread until the returned latch is released
+    private CountDownLatch block(TileScheduler scheduler) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        scheduler.forTile(TileScheduler.Category.BASIC, 0, null).execute(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue("The blocking job should start", started.await(10, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private void submit(TileScheduler scheduler, TileScheduler.Category category, int level, String client,
+                        List<String> order) {
+        scheduler.forTile(category, level, client).execute(() -> order.add(category + "/" + level + "/" + client));
+    }
+
+    private void awaitSize(List<String> order, int size) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 10000;
+        while (order.size() < size && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals("The number of executed jobs should be as expected in " + order,
+                     size, order.size());
+    }
+}
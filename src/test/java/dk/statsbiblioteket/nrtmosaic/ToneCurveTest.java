@@ -0,0 +1,62 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class ToneCurveTest {
+
+    @Test
+    public void testNeutral() {
+        assertSame("Missing GAM and CNT should be neutral", ToneCurve.NEUTRAL, ToneCurve.of(null, null));
+        assertSame("Explicit 1 should be neutral", ToneCurve.NEUTRAL, ToneCurve.of("1", "1.0"));
+        for (int grey = 0 ; grey < 256 ; grey++) {
+            assertEquals("Neutral should not change grey " + grey, grey, ToneCurve.NEUTRAL.map(grey));
+        }
+    }
+
+    @Test
+    public void testCurve() {
+        ToneCurve curve = ToneCurve.of("2.0", "1.1");
+        assertEquals("Black should stay black", 0, curve.map(0));
+        assertEquals("Mid grey should follow gamma then contrast",
+                     (int) Math.round(255 * Math.pow(128 / 255.0, 2.0) * 1.1), curve.map(128));
+        assertEquals("White should be clipped", 255, curve.map(255));
+        assertEquals("Equivalent numbers should give the same key",
+                     curve.getKey(), ToneCurve.of("2", "1.10").getKey());
+    }
+
+    @Test
+    public void testApply() {
+        BufferedImage image = new BufferedImage(2, 1, BufferedImage.TYPE_BYTE_GRAY);
+        image.getRaster().setSample(0, 0, 0, 100);
+        image.getRaster().setSample(1, 0, 0, 200);
+        ToneCurve curve = ToneCurve.of("0.5", "1.0");
+        BufferedImage adjusted = curve.apply(image);
+        assertEquals("The adjusted pixel should be mapped", curve.map(100), adjusted.getRaster().getSample(0, 0, 0));
+        assertEquals("The adjusted pixel should be mapped", curve.map(200), adjusted.getRaster().getSample(1, 0, 0));
+        assertEquals("The source image should be unchanged", 100, image.getRaster().getSample(0, 0, 0));
+        assertSame("Neutral should return the input", image, ToneCurve.NEUTRAL.apply(image));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalid() {
+        ToneCurve.of("foo", "1.0");
+    }
+}
@@ -0,0 +1,141 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class TransientFallbackTest {
+
+    @Test
+    public void testPropagation() throws Exception {
+        final boolean[] outer = new boolean[1];
+        final boolean[] inner = new boolean[1];
+        final boolean[] sibling = new boolean[1];
+        TransientFallback.call(() -> {
+            TransientFallback.call(() -> "clean", sibling);
+            return TransientFallback.call(() -> {
+                TransientFallback.mark();
+                return "marked";
+            }, inner);
+        }, outer);
+        assertFalse("A job without marks should not be marked", sibling[0]);
+        assertTrue("The marking job should be marked", inner[0]);
+        assertTrue("The enclosing job should be marked", outer[0]);
+
+        final boolean[] next = new boolean[1];
+        TransientFallback.call(() -> "clean", next);
+        assertFalse("Marks should not leak to subsequent jobs", next[0]);
+    }
+
+    @Test
+    public void testConcurrentCallers() throws Exception {
+        CorpusCreator.generateCache();
+        final CountDownLatch release = new CountDownLatch(1);
+        final TileProvider provider = new TileProvider(new Keeper(), new TimeoutTileSource(release));
+        final String source = "transient_" + System.nanoTime();
+        final boolean[] leader = new boolean[1];
+        final boolean[] waiter = new boolean[1];
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Tile23> leaderTile = executor.submit(
+                    () -> TransientFallback.call(() -> provider.getTile(source, true), leader));
+            Future<Tile23> waiterTile = executor.submit(
+                    () -> TransientFallback.call(() -> provider.getTile(source, true), waiter));
+            final long endTime = System.currentTimeMillis() + 10000;
+            while (!provider.getStats().contains("coalesced=1") && System.currentTimeMillis() < endTime) {
+                Thread.sleep(1);
+            }
+            assertTrue("The second caller should join the first", provider.getStats().contains("coalesced=1"));
+            release.countDown();
+            assertSame("Both callers should get the same tile",
+                       leaderTile.get(10, TimeUnit.SECONDS), waiterTile.get(10, TimeUnit.SECONDS));
+            assertTrue("The work of the leading caller should be marked", leader[0]);
+            assertTrue("The work of the joining caller should be marked", waiter[0]);
+            assertFalse("The temporary blank should not be cached", provider.isCached(source));
+        } finally {
+            executor.shutdownNow();
+            provider.shutdown();
+        }
+    }
+
+    @Test
+    public void testUncacheable() {
+        final EncodedTile tile = EncodedTile.of(new byte[]{(byte) 0xFF, (byte) 0xD8});
+        assertTrue("Plain tiles should be cacheable", tile.isCacheable());
+        assertFalse("Tiles from transient stand-ins should not be cacheable",
+                    EncodedTile.uncacheable(tile).isCacheable());
+        assertFalse("Tiles from transient stand-ins should not be degraded",
+                    EncodedTile.uncacheable(tile).isDegraded());
+        assertFalse("Degraded tiles should not be cacheable", EncodedTile.degraded(tile).isCacheable());
+    }
+
+    @Test
+    public void testMissing() {
+        assertTrue("Wrapped FileNotFoundException should count as missing", TileSource.isMissing(
+                new javax.imageio.IIOException("Wrapped", new java.io.FileNotFoundException("HTTP 404"))));
+        assertFalse("Timeouts should not count as missing", TileSource.isMissing(
+                new javax.imageio.IIOException("Wrapped", new java.net.SocketTimeoutException("Read timed out"))));
+    }
+
+    // Times out for all sources when released
+    private static class TimeoutTileSource implements TileSource {
+        private final CountDownLatch release;
+
+        public TimeoutTileSource(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public byte[] getTileBytes(String source) throws IOException {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted", e);
+            }
+            throw new SocketTimeoutException("Read timed out for " + source);
+        }
+
+        @Override
+        public BufferedImage getTile(String source) throws IOException {
+            getTileBytes(source);
+            return null;
+        }
+
+        @Override
+        public String getDZI(String deepZoom) throws IOException {
+            throw new IOException("No DZI for " + deepZoom);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String getStats() {
+            return "TimeoutTileSource()";
+        }
+    }
+}
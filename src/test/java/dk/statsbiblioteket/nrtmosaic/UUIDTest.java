@@ -26,4 +26,28 @@ public class UUIDTest {
             Assert.assertEquals(test.replace("-", ""), new UUID("foo_" + test + ".jpg").toHex());
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void find() {
+        final UUID expected = new UUID("/9/c/0/5/9c05d958-b616-47c1-9e4f-63ec2dd9429e.jp2_files/10/2_1.jpg");
+        Assert.assertEquals("9c05d958b61647c19e4f63ec2dd9429e", expected.toHex());
+        Assert.assertEquals(expected, UUID.find("/9/c/0/5/9C05D958-B616-47C1-9E4F-63EC2DD9429E.jp2_files/10/2_1.jpg"));
+        Assert.assertEquals(expected, UUID.find("9c05d958b61647c19e4f63ec2dd9429e.tif"));
+        Assert.assertNull(UUID.find("/9/c/0/5/9c05d958-b616-47c1-9e4f-63ec2dd9429e"));
+        Assert.assertNull(UUID.find("/9/c/0/5/9c05d958-b616-47c1-9e4f-63ec2dd9429.jp2"));
+        Assert.assertNull(UUID.find(""));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseFail() {
+        new UUID("foo.jpg");
+    }
+
+    @Test
+    public void hexDigits() {
+        final UUID id = new UUID(0x0123456789abcdefL, 0xfedcba9876543210L);
+        Assert.assertEquals("0123456789abcdeffedcba9876543210", id.toHex());
+        Assert.assertEquals('f', id.getHexDigit(16));
+        Assert.assertEquals('0', id.getHexDigit(31));
+    }
+}
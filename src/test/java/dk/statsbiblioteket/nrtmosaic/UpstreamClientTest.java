@@ -0,0 +1,192 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class UpstreamClientTest {
+    private HttpServer server = null;
+    private final AtomicInteger concurrent = new AtomicInteger(0);
+    private final AtomicInteger maxConcurrent = new AtomicInteger(0);
+    private final AtomicInteger flakyCalls = new AtomicInteger(0);
+    private final AtomicInteger stallCalls = new AtomicInteger(0);
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private String startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/hello", exchange -> {
+            byte[] body = "Hello upstream".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/slow", exchange -> {
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            concurrent.decrementAndGet();
+            exchange.sendResponseHeaders(200, 1);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write('x');
+            }
+        });
+        server.createContext("/flaky", exchange -> { // Fails the first 2 calls
+            final int status = flakyCalls.incrementAndGet() <= 2 ? 503 : 200;
+            exchange.sendResponseHeaders(status, 1);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write('x');
+            }
+        });
+        server.createContext("/bad", exchange -> {
+            flakyCalls.incrementAndGet();
+            exchange.sendResponseHeaders(400, -1);
+            exchange.close();
+        });
+        server.createContext("/stall", exchange -> { // Stalls the first call
+            if (stallCalls.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            exchange.sendResponseHeaders(200, 1);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write('x');
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(10));
+        server.start();
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @Test
+    public void testFetch() throws IOException {
+        String root = startServer();
+        UpstreamClient client = new UpstreamClient(1000, 5000, 4);
+        for (int i = 0 ; i < 3 ; i++) {
+            assertEquals("The content should be delivered", "Hello upstream",
+                         new String(client.fetchBytes(new URL(root + "/hello")), StandardCharsets.UTF_8));
+        }
+        assertTrue("The stats should count the requests, but was " + client.getStats(),
+                   client.getStats().contains("requests=3"));
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testNotFound() throws IOException {
+        String root = startServer();
+        new UpstreamClient(1000, 5000, 4).fetchBytes(new URL(root + "/missing"));
+    }
+
+    @Test
+    public void testPerHostCap() throws Exception {
+        String root = startServer();
+        UpstreamClient client = new UpstreamClient(1000, 5000, 2);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<byte[]>> futures = new ArrayList<>();
+            for (int i = 0 ; i < 8 ; i++) {
+                futures.add(executor.submit(() -> client.fetchBytes(new URL(root + "/slow"))));
+            }
+            for (Future<byte[]> future: futures) {
+                assertEquals("Each request should succeed", 1, future.get().length);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue("There should be at most 2 concurrent requests but there was " + maxConcurrent.get(),
+                   maxConcurrent.get() <= 2);
+    }
+
+    @Test
+    public void testRetry() throws IOException {
+        String root = startServer();
+        UpstreamClient client = new UpstreamClient(1000, 5000, 4, () -> new UpstreamLimiter(4, 1, 4, 5000, 10, 5000, 1),
+                                                   2, 1, 0, 0, 0, new RetryBudget(0.1, 10));
+        assertEquals("The content should be delivered after retries", 1,
+                     client.fetchBytes(new URL(root + "/flaky")).length);
+        assertEquals("There should be 1 call plus 2 retries", 3, flakyCalls.get());
+    }
+
+    @Test
+    public void testNoRetryOnClientError() throws IOException {
+        String root = startServer();
+        UpstreamClient client = new UpstreamClient(1000, 5000, 4, () -> new UpstreamLimiter(4, 1, 4, 5000, 10, 5000, 1),
+                                                   2, 1, 0, 0, 0, new RetryBudget(0.1, 10));
+        try {
+            client.fetchBytes(new URL(root + "/bad"));
+            fail("HTTP 400 should fail");
+        } catch (IOException e) {
+            assertEquals("HTTP 400 should not be retried", 1, flakyCalls.get());
+        }
+    }
+
+    @Test
+    public void testRetryBudgetExhausted() throws IOException {
+        String root = startServer();
+        UpstreamClient client = new UpstreamClient(1000, 5000, 4, () -> new UpstreamLimiter(4, 1, 4, 5000, 10, 5000, 1),
+                                                   2, 1, 0, 0, 0, new RetryBudget(0, 0));
+        try {
+            client.fetchBytes(new URL(root + "/flaky"));
+            fail("The fetch should fail as the budget only allows 1 retry");
+        } catch (IOException e) {
+            assertEquals("There should be 1 call plus 1 retry", 2, flakyCalls.get());
+        }
+    }
+
+    @Test
+    public void testHedge() throws IOException {
+        String root = startServer();
+        UpstreamClient client = new UpstreamClient(1000, 5000, 4, () -> new UpstreamLimiter(4, 1, 4, 5000, 10, 5000, 1),
+                                                   0, 1, 90, 10, 8, new RetryBudget(0.1, 10));
+        for (int i = 0 ; i < 100 ; i++) { // Establish the latency percentile
+            client.fetchBytes(new URL(root + "/hello"));
+        }
+        final long start = System.nanoTime();
+        assertEquals("The content should be delivered", 1, client.fetchBytes(new URL(root + "/stall")).length);
+        final long spentMS = (System.nanoTime()-start)/1000000;
+        assertTrue("The hedged request should answer before the stalled request, but it took " + spentMS + "ms",
+                   spentMS < 2000);
+        assertTrue("The stats should count the hedge, but was " + client.getStats(),
+                   client.getStats().contains("hedges=1, hedgeWins=1"));
+    }
+}
@@ -0,0 +1,116 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class UpstreamLimiterTest {
+    private static final long FAST_NS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW_NS = TimeUnit.SECONDS.toNanos(10);
+
+    @Test
+    public void testRejectWhenQueueFull() throws InterruptedException {
+        UpstreamLimiter limiter = new UpstreamLimiter(2, 1, 2, 1000, 0, 1000, 3);
+        limiter.acquire("test");
+        limiter.acquire("test");
+        try {
+            limiter.acquire("test");
+            fail("Acquiring above the limit with no queue should fail");
+        } catch (UpstreamOverloadedException e) {
+            assertEquals("The retry time should be passed on", 3, e.getRetryAfterSeconds());
+        }
+        limiter.release(FAST_NS, false);
+        limiter.acquire("test"); // Should succeed after release
+    }
+
+    @Test
+    public void testLoadAndHeadroom() throws InterruptedException {
+        UpstreamLimiter limiter = new UpstreamLimiter(3, 1, 3, 1000, 0, 1000, 1);
+        assertEquals("An idle limiter should have the full limit as headroom", 3, limiter.getHeadroom());
+        limiter.acquire("test");
+        limiter.acquire("test");
+        assertEquals("The load should be the acquired slots", 2, limiter.getLoad());
+        assertEquals("The headroom should be the free slots", 1, limiter.getHeadroom());
+        limiter.release(FAST_NS, false);
+        assertEquals("The headroom should increase on release", 2, limiter.getHeadroom());
+    }
+
+    @Test
+    public void testRejectOnQueueTimeout() throws InterruptedException {
+        UpstreamLimiter limiter = new UpstreamLimiter(1, 1, 1, 1000, 10, 50, 1);
+        limiter.acquire("test");
+        final long start = System.nanoTime();
+        try {
+            limiter.acquire("test");
+            fail("Acquiring above the limit should fail after the queue timeout");
+        } catch (UpstreamOverloadedException e) {
+            assertTrue("The wait should be at least the queue timeout",
+                       System.nanoTime()-start >= TimeUnit.MILLISECONDS.toNanos(40));
+        }
+    }
+
+    @Test
+    public void testQueuedAcquire() throws InterruptedException {
+        final UpstreamLimiter limiter = new UpstreamLimiter(1, 1, 1, 1000, 10, 10000, 1);
+        limiter.acquire("test");
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                limiter.acquire("test");
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        waiter.start();
+        assertFalse("The queued request should wait", acquired.await(50, TimeUnit.MILLISECONDS));
+        limiter.release(FAST_NS, false);
+        assertTrue("The queued request should get the slot after release", acquired.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDecreaseAndIncrease() throws InterruptedException {
+        UpstreamLimiter limiter = new UpstreamLimiter(10, 2, 10, 0, 0, 0, 1);
+        for (int i = 0 ; i < 30 ; i++) {
+            limiter.acquire("test");
+            Thread.sleep(1); // Decreases are spaced by the latency threshold
+            limiter.release(SLOW_NS, false);
+        }
+        assertEquals("Slow responses should reduce the limit to the minimum", 2, limiter.getLimit());
+
+        for (int i = 0 ; i < 100 ; i++) {
+            limiter.acquire("test");
+            limiter.acquire("test");
+            limiter.release(0, false);
+            limiter.release(0, false);
+        }
+        assertTrue("Fast responses at the limit should increase it, but it was " + limiter.getLimit(),
+                   limiter.getLimit() > 2);
+    }
+
+    @Test
+    public void testCongestion() throws InterruptedException {
+        UpstreamLimiter limiter = new UpstreamLimiter(10, 1, 10, 0, 0, 0, 1);
+        limiter.acquire("test");
+        Thread.sleep(1);
+        limiter.release(0, true);
+        assertEquals("A congested response should reduce the limit", 9, limiter.getLimit());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.statsbiblioteket.nrtmosaic;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the platform thread model ({@code prime.async.threads} workers) with virtual threads
+ * ({@code prime.virtualthreads}) under the same load profile: Bursts of tile requests, each blocking on a simulated
+ * upstream fetch and then scaling and encoding a tile on the CPU.
+ * </p><p>
+ * Virtual threads are measured twice: With the same concurrency limit as the platform workers, which compares the
+ * thread types alone, and with the default {@code prime.virtualthreads.concurrency}, which compares the two setups
+ * as deployed. Differences in the second run thus also reflect the different concurrency limits.
+ * </p><p>
+ * Not a unit test. Run with Java 21+ to include the virtual thread model, e.g.
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=dk.statsbiblioteket.nrtmosaic.VirtualThreadsBenchmark -Dexec.args="2000 50 10"}
+ * with the arguments being requests, upstream latency in ms and rounds.
+ */
+public class VirtualThreadsBenchmark {
+    private static final int PLATFORM_THREADS = 32;  // prime.async.threads
+    private static final int VIRTUAL_CONCURRENCY = 1000; // prime.virtualthreads.concurrency
+    private static final int QUEUE = 100000;
+    private static final BufferedImage SOURCE = createSource();
+
+    public static void main(String[] args) throws Exception {
+        final int requests = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int latencyMS = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        System.out.println(String.format(Locale.ENGLISH, "Java %s, %d processors, %d requests/round, " +
+                                                         "upstream latency %dms, %d rounds",
+                                         System.getProperty("java.version"),
+                                         Runtime.getRuntime().availableProcessors(), requests, latencyMS, rounds));
+        final TileScheduler platform = new TileScheduler(PLATFORM_THREADS, QUEUE);
+        run("platform", platform, requests, latencyMS, rounds);
+        platform.shutdownNow();
+
+        if (!VirtualThreads.isAvailable()) {
+            System.out.println("Virtual threads are not available in this JDK. Run with Java 21+ to compare");
+            return;
+        }
+        VirtualThreads.enable(0);
+        final TileScheduler virtualSame = new TileScheduler(
+                PLATFORM_THREADS, QUEUE, VirtualThreads.factory("BenchmarkWorker-"));
+        run("virtual-" + PLATFORM_THREADS, virtualSame, requests, latencyMS, rounds);
+        virtualSame.shutdownNow();
+        final TileScheduler virtual = new TileScheduler(
+                VIRTUAL_CONCURRENCY, QUEUE, VirtualThreads.factory("BenchmarkWorker-"));
+        run("virtual-" + VIRTUAL_CONCURRENCY, virtual, requests, latencyMS, rounds);
+        virtual.shutdownNow();
+        System.out.println(VirtualThreads.getStats());
+        VirtualThreads.shutdown();
+    }
+
+    private static void run(String designation, TileScheduler scheduler, int requests, int latencyMS, int rounds)
+            throws Exception {
+        burst(scheduler, Math.min(requests, 200), latencyMS); // Warm up
+        for (int round = 1 ; round <= rounds ; round++) {
+            final long startTime = System.nanoTime();
+            final long[] latenciesNS = burst(scheduler, requests, latencyMS);
+            final long totalNS = System.nanoTime() - startTime;
+            Arrays.sort(latenciesNS);
+            System.out.println(String.format(
+                    Locale.ENGLISH, "%-12s round %2d: %7.0f tiles/s, latency p50=%6.1fms, p95=%6.1fms, p99=%6.1fms, " +
+                                    "max=%6.1fms",
+                    designation, round, requests * 1.0e9 / totalNS, percentile(latenciesNS, 50),
+                    percentile(latenciesNS, 95), percentile(latenciesNS, 99),
+                    latenciesNS[latenciesNS.length-1] / 1.0e6));
+        }
+    }
+
+    // Submits all requests at once and waits for them to finish. Returns the latencies
+    private static long[] burst(TileScheduler scheduler, int requests, int latencyMS) throws Exception {
+        final long[] latenciesNS = new long[requests];
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[requests];
+        final AtomicInteger rejected = new AtomicInteger(0);
+        for (int i = 0 ; i < requests ; i++) {
+            final int index = i;
+            final long submitTime = System.nanoTime();
+            try {
+                futures[i] = CompletableFuture.runAsync(() -> {
+                    try {
+                        tile(latencyMS);
+                    } catch (Exception e) {
+                        throw new RuntimeException("Tile failed", e);
+                    }
+                    latenciesNS[index] = System.nanoTime() - submitTime;
+                }, scheduler.forTile(TileScheduler.Category.RENDER, 15, "client" + (i % 10)));
+            } catch (RejectedExecutionException e) {
+                rejected.incrementAndGet();
+                futures[i] = CompletableFuture.completedFuture(null);
+            }
+        }
+        CompletableFuture.allOf(futures).get(10, TimeUnit.MINUTES);
+        if (rejected.get() > 0) {
+            System.out.println("Warning: " + rejected.get() + " requests were rejected");
+        }
+        return latenciesNS;
+    }
+
+    // The load profile for a single tile
+    private static void tile(int latencyMS) throws Exception {
+        // Upstream fetch, +-50% jitter
+        Thread.sleep(latencyMS / 2 + ThreadLocalRandom.current().nextInt(Math.max(1, latencyMS)));
+        // Mapping/rendering and encoding
+        VirtualThreads.onPlatform(() -> EncodedTile.encode(Util.scale(SOURCE, Util.EDGE, Util.EDGE)));
+    }
+
+    private static double percentile(long[] sortedNS, int percentile) {
+        return sortedNS[Math.min(sortedNS.length-1, sortedNS.length * percentile / 100)] / 1.0e6;
+    }
+
+    private static BufferedImage createSource() {
+        final BufferedImage image = new BufferedImage(Util.EDGE*2, Util.EDGE*2, BufferedImage.TYPE_BYTE_GRAY);
+        final Random random = new Random(87);
+        for (int y = 0 ; y < image.getHeight() ; y++) {
+            for (int x = 0 ; x < image.getWidth() ; x++) {
+                image.getRaster().setSample(x, y, 0, (x ^ y) + random.nextInt(16) & 0xFF);
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,64 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class VirtualThreadsTest {
+
+    @Test
+    public void testPlatformCaller() throws Exception {
+        assertFalse("The test thread should not be virtual", VirtualThreads.isVirtual(Thread.currentThread()));
+        final Thread caller = Thread.currentThread();
+        assertSame("Jobs from platform threads should be performed directly",
+                   caller, VirtualThreads.onPlatform(Thread::currentThread));
+    }
+
+    @Test
+    public void testUnavailable() {
+        Assume.assumeTrue(!VirtualThreads.isAvailable());
+        try {
+            VirtualThreads.factory("Test-");
+            fail("Creating a virtual thread factory should fail when virtual threads are not available");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testOffload() throws Exception {
+        Assume.assumeTrue(VirtualThreads.isAvailable());
+        VirtualThreads.enable(2);
+        try {
+            final TileScheduler scheduler = new TileScheduler(4, 10, VirtualThreads.factory("Test-"));
+            final CompletableFuture<Boolean[]> result = CompletableFuture.supplyAsync(() -> new Boolean[]{
+                    VirtualThreads.isVirtual(Thread.currentThread()),
+                    VirtualThreads.computeOnPlatform(() -> VirtualThreads.isVirtual(Thread.currentThread()))
+            }, scheduler.forTile(TileScheduler.Category.RENDER, 15, null));
+            final Boolean[] virtual = result.get(10, TimeUnit.SECONDS);
+            assertTrue("The tile job should run on a virtual thread", virtual[0]);
+            assertFalse("The CPU-heavy job should run on a platform thread", virtual[1]);
+            scheduler.shutdownNow();
+        } finally {
+            VirtualThreads.shutdown();
+        }
+    }
+}
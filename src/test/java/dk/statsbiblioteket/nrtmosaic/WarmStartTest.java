@@ -0,0 +1,141 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class WarmStartTest {
+    private Path root = null;
+
+    @After
+    public void tearDown() {
+        if (root != null) {
+            Util.deleteFolder(root);
+        }
+    }
+
+    @Test
+    public void testSnapshotReplay() throws IOException {
+        root = Files.createTempDirectory("warm_start");
+        Path file = root.resolve("warmstart.dat");
+        RecordingParticipant tiles = new RecordingParticipant("tile", "http://example.com/a?GAM=2.0&CNT=1.1", "b");
+        RecordingParticipant responses = new RecordingParticipant("response", "c", "d", "e");
+
+        WarmStart warmStart = new WarmStart(file, 87, 2, 0, tiles, responses);
+        assertEquals("The number of keys should be limited", 4, warmStart.snapshot());
+        warmStart.shutdown();
+
+        RecordingParticipant tilesRestarted = new RecordingParticipant("tile");
+        RecordingParticipant responsesRestarted = new RecordingParticipant("response");
+        WarmStart restarted = new WarmStart(file, 87, 2, 0, tilesRestarted, responsesRestarted);
+        assertEquals("All persisted keys should be warmed", 4, restarted.replayNow());
+        assertEquals("The tile keys should be replayed in order",
+                     Arrays.asList("http://example.com/a?GAM=2.0&CNT=1.1", "b"), tilesRestarted.warmed);
+        assertEquals("The response keys should be replayed in order",
+                     Arrays.asList("c", "d"), responsesRestarted.warmed);
+        restarted.shutdown();
+    }
+
+    @Test
+    public void testOtherCorpus() throws IOException {
+        root = Files.createTempDirectory("warm_start");
+        Path file = root.resolve("warmstart.dat");
+        WarmStart warmStart = new WarmStart(file, 87, 10, 0, new RecordingParticipant("tile", "a"));
+        warmStart.snapshot();
+        warmStart.shutdown();
+
+        RecordingParticipant restartedTiles = new RecordingParticipant("tile");
+        WarmStart restarted = new WarmStart(file, 88, 10, 0, restartedTiles);
+        assertEquals("Nothing should be warmed from a snapshot for another corpus", 0, restarted.replayNow());
+        assertTrue("No keys should be replayed", restartedTiles.warmed.isEmpty());
+        restarted.shutdown();
+    }
+
+    @Test
+    public void testMissingSnapshot() throws IOException {
+        root = Files.createTempDirectory("warm_start");
+        WarmStart warmStart = new WarmStart(root.resolve("warmstart.dat"), 87, 10, 0, new RecordingParticipant("tile"));
+        assertEquals("Nothing should be warmed without a snapshot", 0, warmStart.replayNow());
+        warmStart.shutdown();
+    }
+
+    @Test
+    public void testShutdownDuringReplay() throws Exception {
+        root = Files.createTempDirectory("warm_start");
+        Path file = root.resolve("warmstart.dat");
+        WarmStart warmStart = new WarmStart(file, 87, 10, 0, new RecordingParticipant("tile", "a", "b"));
+        warmStart.snapshot();
+        warmStart.shutdown();
+        final List<String> before = Files.readAllLines(file);
+
+        final CountDownLatch warming = new CountDownLatch(1);
+        WarmStart restarted = new WarmStart(file, 87, 10, 0, new RecordingParticipant("tile") {
+            @Override
+            public int warm(List<String> keys) {
+                warming.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 0;
+            }
+        });
+        restarted.replay();
+        assertTrue("The replay should start", warming.await(10, TimeUnit.SECONDS));
+        restarted.shutdown();
+        assertEquals("The snapshot should be kept when shutting down before the replay has completed",
+                     before, Files.readAllLines(file));
+    }
+
+    private static class RecordingParticipant implements WarmStart.Participant {
+        private final String name;
+        private final List<String> hot;
+        final List<String> warmed = new ArrayList<>();
+
+        public RecordingParticipant(String name, String... hot) {
+            this.name = name;
+            this.hot = Arrays.asList(hot);
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public List<String> getHotKeys(int max) {
+            return hot.subList(0, Math.min(max, hot.size()));
+        }
+
+        @Override
+        public int warm(List<String> keys) {
+            warmed.addAll(keys);
+            return keys.size();
+        }
+    }
+}
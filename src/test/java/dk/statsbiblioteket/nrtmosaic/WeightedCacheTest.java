@@ -0,0 +1,132 @@
+package dk.statsbiblioteket.nrtmosaic;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+public class WeightedCacheTest {
+
+    @Test
+    public void testBasic() {
+        WeightedCache<String, String> cache = new WeightedCache<>("test", 1000, 10, (key, value) -> value.length());
+        assertNull("Empty cache should return null", cache.get("foo"));
+        cache.put("foo", "bar");
+        assertEquals("The added value should be returned", "bar", cache.get("foo"));
+        assertEquals("The weight should match the value", 3, cache.getWeight());
+        cache.put("foo", "barbar");
+        assertEquals("The weight should be updated on replace", 6, cache.getWeight());
+        assertEquals("The removed value should be returned", "barbar", cache.remove("foo"));
+        assertEquals("The weight should be 0 after remove", 0, cache.getWeight());
+        assertEquals("There should be 1 hit", 1, cache.getHits());
+        assertEquals("There should be 1 miss", 1, cache.getMisses());
+    }
+
+    @Test
+    public void testBudget() {
+        WeightedCache<Integer, byte[]> cache = new WeightedCache<>("test", 1000, 10, (key, value) -> value.length);
+        for (int i = 0 ; i < 1000 ; i++) {
+            cache.put(i, new byte[10]);
+            assertTrue("The weight " + cache.getWeight() + " should be within budget",
+                       cache.getWeight() <= cache.getMaxWeight());
+        }
+        assertEquals("The cache should be full", 100, cache.size());
+        assertEquals("Evicted and rejected should account for the rest",
+                     900, cache.getEvictions() + cache.getRejections());
+        cache.put(-1, new byte[2000]);
+        assertFalse("An entry larger than the cache should be rejected", cache.containsKey(-1));
+    }
+
+    @Test
+    public void testScanResistance() {
+        WeightedCache<Integer, byte[]> cache = new WeightedCache<>("test", 1000, 10, (key, value) -> value.length);
+        final int hot = 50;
+        for (int round = 0 ; round < 5 ; round++) {
+            for (int i = 0 ; i < hot ; i++) {
+                if (cache.get(i) == null) {
+                    cache.put(i, new byte[10]);
+                }
+            }
+        }
+        // One-off requests, such as random browsing
+        for (int i = 1000 ; i < 11000 ; i++) {
+            if (cache.get(i) == null) {
+                cache.put(i, new byte[10]);
+            }
+        }
+        int survivors = 0;
+        for (int i = 0 ; i < hot ; i++) {
+            if (cache.containsKey(i)) {
+                survivors++;
+            }
+        }
+        assertTrue("Most hot entries should survive the scan, but only " + survivors + "/" + hot + " did",
+                   survivors >= hot*9/10);
+
+        // Popularity fades during the scan, so the hot set is requested again before checking frequencies
+        for (int round = 0 ; round < 3 ; round++) {
+            for (int i = 0 ; i < hot ; i++) {
+                cache.get(i);
+            }
+        }
+        List<Integer> hottest = cache.getHottestKeys(10);
+        assertEquals("The requested number of hot keys should be returned", 10, hottest.size());
+        for (Integer key: hottest) {
+            assertTrue("The hottest keys should be from the hot set but got " + key, key < hot);
+        }
+    }
+
+    @Test
+    public void testConcurrent() throws InterruptedException {
+        final WeightedCache<Integer, byte[]> cache = new WeightedCache<>(
+                "test", 10000, 10, (key, value) -> value.length);
+        final List<Throwable> errors = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0 ; t < 8 ; t++) {
+            final Random random = new Random(t);
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0 ; i < 50000 ; i++) {
+                        int key = (int) Math.abs(random.nextGaussian()*2000);
+                        byte[] value = cache.get(key);
+                        if (value == null) {
+                            cache.put(key, new byte[1+key%20]);
+                        } else {
+                            assertEquals("The value should match the key", 1+key%20, value.length);
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        assertTrue("There should be no errors but got " + errors, errors.isEmpty());
+        assertTrue("The weight " + cache.getWeight() + " should be within budget",
+                   cache.getWeight() <= cache.getMaxWeight());
+        assertTrue("There should be hits", cache.getHits() > 0);
+    }
+}